@@ -7,6 +7,7 @@ import java.time.format.DateTimeFormatter
 plugins {
   val configVersion: String by System.getProperties()
   val detektVersion: String by System.getProperties()
+  val jmhPluginVersion: String by System.getProperties()
 //  val kotestPluginVersion: String by System.getProperties()
   val kotlinterVersion: String by System.getProperties()
   val kotlinVersion: String by System.getProperties()
@@ -27,6 +28,7 @@ plugins {
   id("com.github.gmazzo.buildconfig") version configVersion
   id("org.jetbrains.kotlinx.kover") version koverVersion
   id("io.gitlab.arturbosch.detekt") version detektVersion
+  id("me.champeau.jmh") version jmhPluginVersion
   // Turn these off until jacoco fixes their kotlin 1.5.0 SMAP issue
   // id("jacoco")
   // id("com.github.kt3k.coveralls") version "2.12.0"
@@ -65,6 +67,7 @@ val kotlinVersion: String by project
 val ktorVersion: String by project
 val logbackVersion: String by project
 val loggingVersion: String by project
+val lz4Version: String by project
 val tcnativeVersion: String by project
 val prometheusVersion: String by project
 val protobufVersion: String by project
@@ -74,6 +77,7 @@ val slf4jVersion: String by project
 val typesafeVersion: String by project
 val utilsVersion: String by project
 val zipkinVersion: String by project
+val zstdVersion: String by project
 
 dependencies {
   implementation("org.jetbrains.kotlin:kotlin-reflect:$kotlinVersion")
@@ -133,6 +137,9 @@ dependencies {
   implementation("ch.qos.logback:logback-classic:$logbackVersion")
   implementation("org.slf4j:jul-to-slf4j:$slf4jVersion")
 
+  implementation("com.github.luben:zstd-jni:$zstdVersion")
+  implementation("org.lz4:lz4-java:$lz4Version")
+
   testImplementation("org.amshove.kluent:kluent:$kluentVersion")
   testImplementation("org.junit.jupiter:junit-jupiter:$junitVersion")
   testRuntimeOnly("org.junit.platform:junit-platform-launcher:$junitPlatformVersion")
@@ -265,6 +272,11 @@ kotlin {
   }
 }
 
+// Let the benchmarks reach internal classes
+kotlin.target.compilations.named("jmh") {
+  associateWith(kotlin.target.compilations.getByName("main"))
+}
+
 tasks.withType<KotlinCompile> {
   compilerOptions {
     freeCompilerArgs = listOf("-Xbackend-threads=8")
@@ -285,6 +297,12 @@ tasks.withType<LintTask> {
 
 }
 
+jmh {
+  jmhVersion = project.property("jmhVersion") as String
+  profilers.add("gc")
+  resultFormat = "JSON"
+}
+
 kotlinter {
   reporters = arrayOf("checkstyle", "plain")
 }
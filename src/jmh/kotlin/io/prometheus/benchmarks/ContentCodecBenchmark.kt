@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import io.prometheus.common.ContentCodec
+import io.prometheus.common.ContentCodecs
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+// Compares the scrape content codecs on exporter-shaped payloads.
+// The uncompressedBytes and compressedBytes counters are reported per second. The first gives the scrape
+// content throughput, and uncompressedBytes / compressedBytes gives the compression ratio of each codec/payload pair.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ContentCodecBenchmark {
+  @Param(ContentCodecs.GZIP, ContentCodecs.DEFLATE, ContentCodecs.ZSTD, ContentCodecs.LZ4)
+  lateinit var codecName: String
+
+  @Param("node_exporter", "kube_state_metrics")
+  lateinit var payloadName: String
+
+  private lateinit var codec: ContentCodec
+  private lateinit var payload: ByteArray
+  private lateinit var compressed: ByteArray
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  open class Counters {
+    @JvmField
+    var uncompressedBytes = 0L
+
+    @JvmField
+    var compressedBytes = 0L
+
+    @Setup(Level.Iteration)
+    fun reset() {
+      uncompressedBytes = 0
+      compressedBytes = 0
+    }
+  }
+
+  @Setup(Level.Trial)
+  fun setUp() {
+    codec = ContentCodecs.forName(codecName)
+    payload =
+      when (payloadName) {
+        "node_exporter" -> ExpositionPayloads.nodeExporter()
+        else -> ExpositionPayloads.kubeStateMetrics()
+      }
+    compressed = codec.compress(payload)
+  }
+
+  @Benchmark
+  fun compress(counters: Counters): ByteArray {
+    counters.uncompressedBytes += payload.size
+    return codec.compress(payload).also { counters.compressedBytes += it.size }
+  }
+
+  @Benchmark
+  fun decompress(counters: Counters): ByteArray {
+    counters.uncompressedBytes += payload.size
+    counters.compressedBytes += compressed.size
+    return codec.decompress(compressed)
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import kotlin.random.Random
+
+// Synthetic text exposition shaped like real exporters, so compression ratios are representative.
+// Generation is seeded, so every run sees the same bytes.
+internal object ExpositionPayloads {
+  // ~100KB: a mid-sized host with per-cpu, per-device and per-filesystem series
+  fun nodeExporter(seed: Int = 1): ByteArray {
+    val random = Random(seed)
+    return buildString {
+      family("node_cpu_seconds_total", "counter", "Seconds the CPUs spent in each mode.") {
+        for (cpu in 0 until 32)
+          for (mode in listOf("idle", "iowait", "irq", "nice", "softirq", "steal", "system", "user"))
+            sample("cpu=\"$cpu\",mode=\"$mode\"", random.nextDouble(0.0, 5e6))
+      }
+      for (metric in listOf("read_bytes", "written_bytes", "reads_completed", "writes_completed", "io_time_seconds"))
+        family("node_disk_${metric}_total", "counter", "The total number of $metric.") {
+          for (device in listOf("nvme0n1", "nvme1n1", "sda", "sdb", "dm-0", "dm-1"))
+            sample("device=\"$device\"", random.nextLong(0, 1L shl 40).toDouble())
+        }
+      for (metric in listOf("avail_bytes", "files", "files_free", "free_bytes", "readonly", "size_bytes"))
+        family("node_filesystem_$metric", "gauge", "Filesystem $metric.") {
+          for (mount in listOf("/", "/boot", "/home", "/var", "/var/lib/docker", "/run", "/run/user/1000"))
+            sample(
+              "device=\"/dev/nvme0n1p2\",fstype=\"ext4\",mountpoint=\"$mount\"",
+              random.nextLong(0, 1L shl 38).toDouble(),
+            )
+        }
+      for (metric in listOf("receive_bytes", "receive_packets", "receive_errs", "transmit_bytes", "transmit_packets"))
+        family("node_network_${metric}_total", "counter", "Network device statistic $metric.") {
+          for (device in listOf("eth0", "eth1", "lo", "docker0", "cni0") + (0 until 24).map { "veth${hex(random, 7)}" })
+            sample("device=\"$device\"", random.nextLong(0, 1L shl 36).toDouble())
+        }
+      family("node_interrupts_total", "counter", "Interrupt details.") {
+        for (irq in 0 until 120)
+          for (cpu in 0 until 8)
+            sample(
+              "cpu=\"$cpu\",devices=\"irq-$irq\",info=\"IR-PCI-MSI\",type=\"$irq\"",
+              random.nextInt(0, 1 shl 24).toDouble(),
+            )
+      }
+    }.toByteArray()
+  }
+
+  // ~2MB: pod phase, resource and creation series, with high-cardinality pod names and uids
+  fun kubeStateMetrics(seed: Int = 1): ByteArray {
+    val random = Random(seed)
+    val namespaces = listOf("default", "kube-system", "monitoring", "ingress", "payments", "search", "checkout")
+    val pods =
+      (0 until 2_000).map {
+        val namespace = namespaces[random.nextInt(namespaces.size)]
+        val deployment = "svc-${random.nextInt(150)}"
+        Triple(namespace, "$deployment-${hex(random, 10)}-${hex(random, 5)}", uuid(random))
+      }
+    return buildString {
+      family("kube_pod_status_phase", "gauge", "The pods current phase.") {
+        for ((namespace, pod, uid) in pods)
+          for (phase in listOf("Pending", "Succeeded", "Failed", "Unknown", "Running"))
+            sample(
+              "namespace=\"$namespace\",pod=\"$pod\",uid=\"$uid\",phase=\"$phase\"",
+              if (phase == "Running") 1.0 else 0.0,
+            )
+      }
+      family("kube_pod_container_resource_requests", "gauge", "The number of requested resources by a container.") {
+        for ((namespace, pod, uid) in pods)
+          for (resource in listOf("cpu" to "core", "memory" to "byte"))
+            sample(
+              "namespace=\"$namespace\",pod=\"$pod\",uid=\"$uid\",container=\"app\"," +
+                "node=\"node-${random.nextInt(60)}\"," +
+                "resource=\"${resource.first}\",unit=\"${resource.second}\"",
+              random.nextInt(1, 1 shl 30).toDouble(),
+            )
+      }
+      family("kube_pod_created", "gauge", "Unix creation timestamp.") {
+        for ((namespace, pod, uid) in pods)
+          sample(
+            "namespace=\"$namespace\",pod=\"$pod\",uid=\"$uid\"",
+            random.nextLong(1_600_000_000, 1_700_000_000).toDouble(),
+          )
+      }
+    }.toByteArray()
+  }
+
+  private fun StringBuilder.family(
+    name: String,
+    type: String,
+    help: String,
+    samples: SampleWriter.() -> Unit,
+  ) {
+    append("# HELP ").append(name).append(' ').append(help).append('\n')
+    append("# TYPE ").append(name).append(' ').append(type).append('\n')
+    SampleWriter(this, name).samples()
+  }
+
+  private class SampleWriter(
+    private val sb: StringBuilder,
+    private val name: String,
+  ) {
+    fun sample(
+      labels: String,
+      value: Double,
+    ) {
+      sb.append(name).append('{').append(labels).append("} ").append(value).append('\n')
+    }
+  }
+
+  private fun hex(
+    random: Random,
+    length: Int,
+  ) = buildString { repeat(length) { append("0123456789abcdef"[random.nextInt(16)]) } }
+
+  private fun uuid(random: Random) =
+    "${hex(random, 8)}-${hex(random, 4)}-${hex(random, 4)}-${hex(random, 4)}-${hex(random, 12)}"
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.benchmarks
+
+import com.google.common.collect.Maps.newConcurrentMap
+import io.prometheus.common.ConcurrentLongMap
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Threads
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import org.openjdk.jmh.infra.ThreadParams
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.TimeUnit
+
+// Models the scrape_id correlation maps: each op adds a new scrape, looks it up as results arrive,
+// and retires the oldest one in the thread's window, with 100k scrapes in flight.
+// Run with ./gradlew jmh; the gc profiler reports allocation per op.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+open class ScrapeIdMapBenchmark {
+  private val payload = Any()
+  private lateinit var longMap: ConcurrentLongMap<Any>
+  private lateinit var boxedMap: ConcurrentMap<Long, Any>
+
+  @State(Scope.Thread)
+  open class Cursor {
+    var next = 0L
+    var oldest = 0L
+
+    @Setup(Level.Iteration)
+    fun setUp(params: ThreadParams) {
+      // Give each thread a disjoint range of scrape_ids above the prefilled ones
+      next = (params.threadIndex + 1L) shl 40
+      oldest = next
+    }
+  }
+
+  @Setup(Level.Iteration)
+  fun setUp() {
+    longMap = ConcurrentLongMap()
+    boxedMap = newConcurrentMap()
+    repeat(IN_FLIGHT) {
+      longMap[it.toLong()] = payload
+      boxedMap[it.toLong()] = payload
+    }
+  }
+
+  @Benchmark
+  fun concurrentLongMap(
+    cursor: Cursor,
+    bh: Blackhole,
+  ) {
+    val scrapeId = cursor.next++
+    longMap[scrapeId] = payload
+    bh.consume(longMap[scrapeId])
+    if (cursor.next - cursor.oldest > THREAD_WINDOW)
+      bh.consume(longMap.remove(cursor.oldest++))
+  }
+
+  @Benchmark
+  fun guavaConcurrentMap(
+    cursor: Cursor,
+    bh: Blackhole,
+  ) {
+    val scrapeId = cursor.next++
+    boxedMap[scrapeId] = payload
+    bh.consume(boxedMap[scrapeId])
+    if (cursor.next - cursor.oldest > THREAD_WINDOW)
+      bh.consume(boxedMap.remove(cursor.oldest++))
+  }
+
+  // Lookups only, as when results arrive for scrapes already in flight, so readers contend only with each other
+  @Benchmark
+  fun concurrentLongMapGet(
+    cursor: Cursor,
+    bh: Blackhole,
+  ) {
+    bh.consume(longMap[cursor.next++ % IN_FLIGHT])
+  }
+
+  @Benchmark
+  fun guavaConcurrentMapGet(
+    cursor: Cursor,
+    bh: Blackhole,
+  ) {
+    bh.consume(boxedMap[cursor.next++ % IN_FLIGHT])
+  }
+
+  companion object {
+    private const val IN_FLIGHT = 100_000
+    private const val THREAD_WINDOW = 1_024
+  }
+}
@@ -15,6 +15,11 @@ public class ConfigVals {
   }
 
   public static class Agent {
+
+    /**
+     * Tune the chunk size to the measured gRPC write throughput
+     */
+    public final boolean adaptiveChunkSizeEnabled;
     public final Agent.Admin admin;
 
     /**
@@ -22,12 +27,57 @@ public class ConfigVals {
      * Threshold for chunking data to Proxy and buffer size
      */
     public final int chunkContentSizeKbs;
+
+    /**
+     * Application codecs offered to the proxy, in order of preference
+     */
+    public final java.lang.String compressionCodecs;
+
+    /**
+     * Compression: application (gzip content), transport (gRPC), none
+     */
+    public final java.lang.String compressionMode;
     public final boolean consolidated;
+
+    /**
+     * Send only changed series when the proxy holds the previous scrape
+     */
+    public final boolean deltaEncodingEnabled;
+
+    /**
+     * Compress small payloads against per-path trained zstd dictionaries
+     */
+    public final boolean dictionaryCompressionEnabled;
+
+    /**
+     * Maximum trained dictionary size
+     */
+    public final int dictionaryMaxSizeKbs;
+
+    /**
+     * Scrapes before a path dictionary is retrained (0 disables retraining)
+     */
+    public final int dictionaryRetrainScrapes;
+
+    /**
+     * Payloads collected per path before training a dictionary
+     */
+    public final int dictionaryTrainingSamples;
     public final Agent.Grpc grpc;
     public final Agent.Http http;
     public final Agent.Internal internal;
+
+    /**
+     * Largest adaptive chunk size (kept under the 4MB gRPC message limit)
+     */
+    public final int maxChunkSizeKbs;
     public final Agent.Metrics metrics;
 
+    /**
+     * Smallest adaptive chunk size
+     */
+    public final int minChunkSizeKbs;
+
     /**
      * Minimum size for content to be gzipped
      */
@@ -38,6 +88,16 @@ public class ConfigVals {
      */
     public final java.lang.String name;
     public final java.util.List<Agent.PathConfigs$Elm> pathConfigs;
+
+    /**
+     * Watched HOCON or JSON file with more pathConfigs, applied without a restart
+     */
+    public final java.lang.String pathConfigsFile;
+
+    /**
+     * Quiet period before changes to pathConfigsFile are applied together
+     */
+    public final int pathConfigsReloadMillis;
     public final Agent.Proxy proxy;
 
     /**
@@ -45,10 +105,35 @@ public class ConfigVals {
      */
     public final int scrapeMaxRetries;
 
+    /**
+     * Retries the agent can save up across all targets
+     */
+    public final int scrapeRetryBudgetAgentMaxTokens;
+
+    /**
+     * Cap retries at a percentage of recent successful scrapes
+     */
+    public final boolean scrapeRetryBudgetEnabled;
+
+    /**
+     * Retries a target can save up
+     */
+    public final int scrapeRetryBudgetMaxTokens;
+
+    /**
+     * Retries earned per 100 successful scrapes
+     */
+    public final int scrapeRetryBudgetPercent;
+
     /**
      * Scrape timeout time in seconds
      */
     public final int scrapeTimeoutSecs;
+
+    /**
+     * Write time per chunk the adaptive chunk size aims for
+     */
+    public final int targetChunkWriteMillis;
     public final Agent.Tls tls;
 
     /**
@@ -104,11 +189,16 @@ public class ConfigVals {
     }
 
     public static class Grpc {
+      /**
+       * gRPC connections to the proxy; extra ones carry chunked responses
+       */
+      public final int channelPoolSize;
       public final long keepAliveTimeSecs;
       public final long keepAliveTimeoutSecs;
       public final boolean keepAliveWithoutCalls;
 
       public Grpc(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.channelPoolSize = c.hasPathOrNull("channelPoolSize") ? c.getInt("channelPoolSize") : 1;
         this.keepAliveTimeSecs = c.hasPathOrNull("keepAliveTimeSecs") ? c.getLong("keepAliveTimeSecs") : -1;
         this.keepAliveTimeoutSecs = c.hasPathOrNull("keepAliveTimeoutSecs") ? c.getLong("keepAliveTimeoutSecs") : -1;
         this.keepAliveWithoutCalls = c.hasPathOrNull("keepAliveWithoutCalls") && c.getBoolean("keepAliveWithoutCalls");
@@ -128,19 +218,36 @@ public class ConfigVals {
     }
 
     public Agent(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+      this.adaptiveChunkSizeEnabled = c.hasPathOrNull("adaptiveChunkSizeEnabled") && c.getBoolean("adaptiveChunkSizeEnabled");
       this.admin = c.hasPathOrNull("admin") ? new Agent.Admin(c.getConfig("admin"), parentPath + "admin.", $tsCfgValidator) : new Agent.Admin(com.typesafe.config.ConfigFactory.parseString("admin{}"), parentPath + "admin.", $tsCfgValidator);
       this.chunkContentSizeKbs = c.hasPathOrNull("chunkContentSizeKbs") ? c.getInt("chunkContentSizeKbs") : 32;
+      this.compressionCodecs = c.hasPathOrNull("compressionCodecs") ? c.getString("compressionCodecs") : "zstd,lz4,gzip,deflate";
+      this.compressionMode = c.hasPathOrNull("compressionMode") ? c.getString("compressionMode") : "application";
       this.consolidated = c.hasPathOrNull("consolidated") && c.getBoolean("consolidated");
+      this.deltaEncodingEnabled = c.hasPathOrNull("deltaEncodingEnabled") && c.getBoolean("deltaEncodingEnabled");
+      this.dictionaryCompressionEnabled = c.hasPathOrNull("dictionaryCompressionEnabled") && c.getBoolean("dictionaryCompressionEnabled");
+      this.dictionaryMaxSizeKbs = c.hasPathOrNull("dictionaryMaxSizeKbs") ? c.getInt("dictionaryMaxSizeKbs") : 64;
+      this.dictionaryRetrainScrapes = c.hasPathOrNull("dictionaryRetrainScrapes") ? c.getInt("dictionaryRetrainScrapes") : 10000;
+      this.dictionaryTrainingSamples = c.hasPathOrNull("dictionaryTrainingSamples") ? c.getInt("dictionaryTrainingSamples") : 16;
       this.grpc = c.hasPathOrNull("grpc") ? new Agent.Grpc(c.getConfig("grpc"), parentPath + "grpc.", $tsCfgValidator) : new Agent.Grpc(com.typesafe.config.ConfigFactory.parseString("grpc{}"), parentPath + "grpc.", $tsCfgValidator);
       this.http = c.hasPathOrNull("http") ? new Agent.Http(c.getConfig("http"), parentPath + "http.", $tsCfgValidator) : new Agent.Http(com.typesafe.config.ConfigFactory.parseString("http{}"), parentPath + "http.", $tsCfgValidator);
       this.internal = c.hasPathOrNull("internal") ? new Agent.Internal(c.getConfig("internal"), parentPath + "internal.", $tsCfgValidator) : new Agent.Internal(com.typesafe.config.ConfigFactory.parseString("internal{}"), parentPath + "internal.", $tsCfgValidator);
+      this.maxChunkSizeKbs = c.hasPathOrNull("maxChunkSizeKbs") ? c.getInt("maxChunkSizeKbs") : 1024;
       this.metrics = c.hasPathOrNull("metrics") ? new Agent.Metrics(c.getConfig("metrics"), parentPath + "metrics.", $tsCfgValidator) : new Agent.Metrics(com.typesafe.config.ConfigFactory.parseString("metrics{}"), parentPath + "metrics.", $tsCfgValidator);
+      this.minChunkSizeKbs = c.hasPathOrNull("minChunkSizeKbs") ? c.getInt("minChunkSizeKbs") : 16;
       this.minGzipSizeBytes = c.hasPathOrNull("minGzipSizeBytes") ? c.getInt("minGzipSizeBytes") : 512;
       this.name = c.hasPathOrNull("name") ? c.getString("name") : "";
       this.pathConfigs = $_LAgent_PathConfigs$Elm(c.getList("pathConfigs"), parentPath, $tsCfgValidator);
+      this.pathConfigsFile = c.hasPathOrNull("pathConfigsFile") ? c.getString("pathConfigsFile") : "";
+      this.pathConfigsReloadMillis = c.hasPathOrNull("pathConfigsReloadMillis") ? c.getInt("pathConfigsReloadMillis") : 500;
       this.proxy = c.hasPathOrNull("proxy") ? new Agent.Proxy(c.getConfig("proxy"), parentPath + "proxy.", $tsCfgValidator) : new Agent.Proxy(com.typesafe.config.ConfigFactory.parseString("proxy{}"), parentPath + "proxy.", $tsCfgValidator);
       this.scrapeMaxRetries = c.hasPathOrNull("scrapeMaxRetries") ? c.getInt("scrapeMaxRetries") : 0;
+      this.scrapeRetryBudgetAgentMaxTokens = c.hasPathOrNull("scrapeRetryBudgetAgentMaxTokens") ? c.getInt("scrapeRetryBudgetAgentMaxTokens") : 100;
+      this.scrapeRetryBudgetEnabled = !c.hasPathOrNull("scrapeRetryBudgetEnabled") || c.getBoolean("scrapeRetryBudgetEnabled");
+      this.scrapeRetryBudgetMaxTokens = c.hasPathOrNull("scrapeRetryBudgetMaxTokens") ? c.getInt("scrapeRetryBudgetMaxTokens") : 10;
+      this.scrapeRetryBudgetPercent = c.hasPathOrNull("scrapeRetryBudgetPercent") ? c.getInt("scrapeRetryBudgetPercent") : 10;
       this.scrapeTimeoutSecs = c.hasPathOrNull("scrapeTimeoutSecs") ? c.getInt("scrapeTimeoutSecs") : 15;
+      this.targetChunkWriteMillis = c.hasPathOrNull("targetChunkWriteMillis") ? c.getInt("targetChunkWriteMillis") : 50;
       this.tls = c.hasPathOrNull("tls") ? new Agent.Tls(c.getConfig("tls"), parentPath + "tls.", $tsCfgValidator) : new Agent.Tls(com.typesafe.config.ConfigFactory.parseString("tls{}"), parentPath + "tls.", $tsCfgValidator);
       this.transportFilterDisabled = c.hasPathOrNull("transportFilterDisabled") && c.getBoolean("transportFilterDisabled");
     }
@@ -164,7 +271,17 @@ public class ConfigVals {
       public final int heartbeatMaxInactivitySecs;
 
       /**
-       * Pause interval between connect attempts in seconds
+       * Highest proxy protocol version to negotiate (1 disables scrapeStream)
+       */
+      public final int protocolVersion;
+
+      /**
+       * Maximum jittered pause between connect attempts in seconds
+       */
+      public final int reconnectMaxPauseSecs;
+
+      /**
+       * Minimum pause between connect attempts in seconds
        */
       public final int reconnectPauseSecs;
 
@@ -196,6 +313,8 @@ public class ConfigVals {
         this.heartbeatCheckPauseMillis = c.hasPathOrNull("heartbeatCheckPauseMillis") ? c.getInt("heartbeatCheckPauseMillis") : 500;
         this.heartbeatEnabled = !c.hasPathOrNull("heartbeatEnabled") || c.getBoolean("heartbeatEnabled");
         this.heartbeatMaxInactivitySecs = c.hasPathOrNull("heartbeatMaxInactivitySecs") ? c.getInt("heartbeatMaxInactivitySecs") : 5;
+        this.protocolVersion = c.hasPathOrNull("protocolVersion") ? c.getInt("protocolVersion") : 2;
+        this.reconnectMaxPauseSecs = c.hasPathOrNull("reconnectMaxPauseSecs") ? c.getInt("reconnectMaxPauseSecs") : 60;
         this.reconnectPauseSecs = c.hasPathOrNull("reconnectPauseSecs") ? c.getInt("reconnectPauseSecs") : 3;
         this.scrapeRequestBacklogUnhealthySize = c.hasPathOrNull("scrapeRequestBacklogUnhealthySize") ? c.getInt("scrapeRequestBacklogUnhealthySize") : 25;
         this.zipkin = c.hasPathOrNull("zipkin") ? new Internal.Zipkin(c.getConfig("zipkin"), parentPath + "zipkin.", $tsCfgValidator) : new Internal.Zipkin(com.typesafe.config.ConfigFactory.parseString("zipkin{}"), parentPath + "zipkin.", $tsCfgValidator);
@@ -501,6 +620,11 @@ public class ConfigVals {
     }
 
     public static class Internal2 {
+
+      /**
+       * Pause suggested to agents told to retry registration later
+       */
+      public final int agentRetryHintMillis;
       public final Internal2.Blitz blitz;
 
       /**
@@ -508,11 +632,41 @@ public class ConfigVals {
        */
       public final int chunkContextMapUnhealthySize;
 
+      /**
+       * Callers waiting for admission before others are told to retry later
+       */
+      public final int maxAdmissionQueueSize;
+
       /**
        * Seconds of inactivity before agent is evicted in seconds
        */
       public final int maxAgentInactivitySecs;
 
+      /**
+       * Agents between connectAgent and registerAgent at once, 0 disables the limit
+       */
+      public final int maxConcurrentAgentAdmissions;
+
+      /**
+       * Paths registered per second across all agents, 0 disables the limit
+       */
+      public final int maxPathRegistrationsPerSec;
+
+      /**
+       * Unregistered agents before others are told to retry later, 0 disables
+       */
+      public final int maxPendingAgentRegistrations;
+
+      /**
+       * Path label selecting a dispatch class: high, normal or low
+       */
+      public final java.lang.String priorityLabelName;
+
+      /**
+       * Taken off the Prometheus scrape timeout, up to half of it, leaving time to return results
+       */
+      public final int scrapeDeadlineMarginMillis;
+
       /**
        * Threshold for returning an unhealthy healthcheck
        */
@@ -532,12 +686,22 @@ public class ConfigVals {
        * Timeout for scrape requests in seconds
        */
       public final int scrapeRequestTimeoutSecs;
+
+      /**
+       * Grace period for a disconnected agent to resume its session, 0 disables
+       */
+      public final int sessionResumeGraceSecs;
       public final boolean staleAgentCheckEnabled;
 
       /**
-       * Pause interval for agent cleanup in seconds
+       * Cache each path's last payload, so agents can skip resending it
+       */
+      public final boolean unchangedContentCacheEnabled;
+
+      /**
+       * Upper bound on cached payload bytes, beyond which payloads are not cached
        */
-      public final int staleAgentCheckPauseSecs;
+      public final int unchangedContentCacheMaxMBytes;
       public final Internal2.Zipkin2 zipkin;
       public static class Blitz {
         public final boolean enabled;
@@ -568,20 +732,39 @@ public class ConfigVals {
       }
 
       public Internal2(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.agentRetryHintMillis = c.hasPathOrNull("agentRetryHintMillis") ? c.getInt("agentRetryHintMillis") : 5000;
         this.blitz = c.hasPathOrNull("blitz") ? new Internal2.Blitz(c.getConfig("blitz"), parentPath + "blitz.", $tsCfgValidator) : new Internal2.Blitz(com.typesafe.config.ConfigFactory.parseString("blitz{}"), parentPath + "blitz.", $tsCfgValidator);
         this.chunkContextMapUnhealthySize = c.hasPathOrNull("chunkContextMapUnhealthySize") ? c.getInt("chunkContextMapUnhealthySize") : 25;
+        this.maxAdmissionQueueSize = c.hasPathOrNull("maxAdmissionQueueSize") ? c.getInt("maxAdmissionQueueSize") : 1000;
         this.maxAgentInactivitySecs = c.hasPathOrNull("maxAgentInactivitySecs") ? c.getInt("maxAgentInactivitySecs") : 60;
+        this.maxConcurrentAgentAdmissions = c.hasPathOrNull("maxConcurrentAgentAdmissions") ? c.getInt("maxConcurrentAgentAdmissions") : 0;
+        this.maxPathRegistrationsPerSec = c.hasPathOrNull("maxPathRegistrationsPerSec") ? c.getInt("maxPathRegistrationsPerSec") : 0;
+        this.maxPendingAgentRegistrations = c.hasPathOrNull("maxPendingAgentRegistrations") ? c.getInt("maxPendingAgentRegistrations") : 0;
+        this.priorityLabelName = c.hasPathOrNull("priorityLabelName") ? c.getString("priorityLabelName") : "__priority__";
+        this.scrapeDeadlineMarginMillis = c.hasPathOrNull("scrapeDeadlineMarginMillis") ? c.getInt("scrapeDeadlineMarginMillis") : 250;
         this.scrapeRequestBacklogUnhealthySize = c.hasPathOrNull("scrapeRequestBacklogUnhealthySize") ? c.getInt("scrapeRequestBacklogUnhealthySize") : 25;
         this.scrapeRequestCheckMillis = c.hasPathOrNull("scrapeRequestCheckMillis") ? c.getInt("scrapeRequestCheckMillis") : 500;
         this.scrapeRequestMapUnhealthySize = c.hasPathOrNull("scrapeRequestMapUnhealthySize") ? c.getInt("scrapeRequestMapUnhealthySize") : 25;
         this.scrapeRequestTimeoutSecs = c.hasPathOrNull("scrapeRequestTimeoutSecs") ? c.getInt("scrapeRequestTimeoutSecs") : 90;
+        this.sessionResumeGraceSecs = c.hasPathOrNull("sessionResumeGraceSecs") ? c.getInt("sessionResumeGraceSecs") : 30;
         this.staleAgentCheckEnabled = !c.hasPathOrNull("staleAgentCheckEnabled") || c.getBoolean("staleAgentCheckEnabled");
-        this.staleAgentCheckPauseSecs = c.hasPathOrNull("staleAgentCheckPauseSecs") ? c.getInt("staleAgentCheckPauseSecs") : 10;
+        this.unchangedContentCacheEnabled = c.hasPathOrNull("unchangedContentCacheEnabled") && c.getBoolean("unchangedContentCacheEnabled");
+        this.unchangedContentCacheMaxMBytes = c.hasPathOrNull("unchangedContentCacheMaxMBytes") ? c.getInt("unchangedContentCacheMaxMBytes") : 64;
         this.zipkin = c.hasPathOrNull("zipkin") ? new Internal2.Zipkin2(c.getConfig("zipkin"), parentPath + "zipkin.", $tsCfgValidator) : new Internal2.Zipkin2(com.typesafe.config.ConfigFactory.parseString("zipkin{}"), parentPath + "zipkin.", $tsCfgValidator);
       }
     }
 
     public static class Grpc3 {
+
+      /**
+       * Enable gRPC message compression for messages sent to agents
+       */
+      public final boolean compressionEnabled;
+
+      /**
+       * Minimum message size for gRPC message compression
+       */
+      public final int compressionMinSizeBytes;
       public final long handshakeTimeoutSecs;
       public final long keepAliveTimeSecs;
       public final long keepAliveTimeoutSecs;
@@ -592,6 +775,8 @@ public class ConfigVals {
       public final boolean permitKeepAliveWithoutCalls;
 
       public Grpc3(com.typesafe.config.Config c, java.lang.String parentPath, $TsCfgValidator $tsCfgValidator) {
+        this.compressionEnabled = c.hasPathOrNull("compressionEnabled") && c.getBoolean("compressionEnabled");
+        this.compressionMinSizeBytes = c.hasPathOrNull("compressionMinSizeBytes") ? c.getInt("compressionMinSizeBytes") : 512;
         this.handshakeTimeoutSecs = c.hasPathOrNull("handshakeTimeoutSecs") ? c.getLong("handshakeTimeoutSecs") : -1;
         this.keepAliveTimeSecs = c.hasPathOrNull("keepAliveTimeSecs") ? c.getLong("keepAliveTimeSecs") : -1;
         this.keepAliveTimeoutSecs = c.hasPathOrNull("keepAliveTimeoutSecs") ? c.getLong("keepAliveTimeoutSecs") : -1;
@@ -621,6 +806,11 @@ public class ConfigVals {
       public final boolean garbageCollectorExportsEnabled;
       public final Metrics2.Grpc4 grpc;
 
+      /**
+       * Histogram buckets for scrape latencies in seconds
+       */
+      public final java.lang.String latencyBuckets;
+
       /**
        * Include JVM memory pool metrics
        */
@@ -631,6 +821,11 @@ public class ConfigVals {
        */
       public final java.lang.String path;
 
+      /**
+       * Max distinct path label values before paths are reported as "other"
+       */
+      public final int pathLabelLimit;
+
       /**
        * Listen port for metrics endpoint
        */
@@ -674,8 +869,10 @@ public class ConfigVals {
         this.enabled = c.hasPathOrNull("enabled") && c.getBoolean("enabled");
         this.garbageCollectorExportsEnabled = c.hasPathOrNull("garbageCollectorExportsEnabled") && c.getBoolean("garbageCollectorExportsEnabled");
         this.grpc = c.hasPathOrNull("grpc") ? new Metrics2.Grpc4(c.getConfig("grpc"), parentPath + "grpc.", $tsCfgValidator) : new Metrics2.Grpc4(com.typesafe.config.ConfigFactory.parseString("grpc{}"), parentPath + "grpc.", $tsCfgValidator);
+        this.latencyBuckets = c.hasPathOrNull("latencyBuckets") ? c.getString("latencyBuckets") : ".005,.01,.025,.05,.1,.25,.5,1,2.5,5,10,30,60";
         this.memoryPoolsExportsEnabled = c.hasPathOrNull("memoryPoolsExportsEnabled") && c.getBoolean("memoryPoolsExportsEnabled");
         this.path = c.hasPathOrNull("path") ? c.getString("path") : "metrics";
+        this.pathLabelLimit = c.hasPathOrNull("pathLabelLimit") ? c.getInt("pathLabelLimit") : 500;
         this.port = c.hasPathOrNull("port") ? c.getInt("port") : 8082;
         this.standardExportsEnabled = c.hasPathOrNull("standardExportsEnabled") && c.getBoolean("standardExportsEnabled");
         this.threadExportsEnabled = c.hasPathOrNull("threadExportsEnabled") && c.getBoolean("threadExportsEnabled");
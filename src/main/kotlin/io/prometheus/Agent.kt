@@ -19,6 +19,7 @@
 package io.prometheus
 
 import com.github.pambrose.common.coroutine.delay
+import com.github.pambrose.common.delegate.AtomicDelegates.atomicBoolean
 import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
 import com.github.pambrose.common.service.GenericService
@@ -30,18 +31,22 @@ import com.github.pambrose.common.util.getBanner
 import com.github.pambrose.common.util.hostInfo
 import com.github.pambrose.common.util.randomId
 import com.github.pambrose.common.util.simpleClassName
-import com.google.common.util.concurrent.RateLimiter
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.grpc.Status
 import io.grpc.StatusException
 import io.grpc.StatusRuntimeException
 import io.prometheus.agent.AgentConnectionContext
+import io.prometheus.agent.AgentDeltaManager
+import io.prometheus.agent.AgentDictionaryManager
 import io.prometheus.agent.AgentGrpcService
 import io.prometheus.agent.AgentHttpService
 import io.prometheus.agent.AgentMetrics
 import io.prometheus.agent.AgentOptions
+import io.prometheus.agent.AgentPathConfigWatcher
 import io.prometheus.agent.AgentPathManager
+import io.prometheus.agent.CompressionMode
 import io.prometheus.agent.EmbeddedAgentInfo
+import io.prometheus.agent.ReconnectBackoff
 import io.prometheus.agent.RequestFailureException
 import io.prometheus.client.Summary
 import io.prometheus.common.BaseOptions.Companion.DEBUG
@@ -49,6 +54,10 @@ import io.prometheus.common.ConfigVals
 import io.prometheus.common.ConfigWrappers.newAdminConfig
 import io.prometheus.common.ConfigWrappers.newMetricsConfig
 import io.prometheus.common.ConfigWrappers.newZipkinConfig
+import io.prometheus.common.Constants.PROTOCOL_V2
+import io.prometheus.common.ContentCodec
+import io.prometheus.common.ContentCodecs
+import io.prometheus.common.GrpcObjects.retryAfter
 import io.prometheus.common.Utils.getVersionDesc
 import io.prometheus.common.Utils.lambda
 import kotlinx.coroutines.Dispatchers
@@ -58,7 +67,7 @@ import kotlinx.coroutines.runBlocking
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit.MILLISECONDS
 import kotlin.concurrent.atomics.AtomicInt
-import kotlin.math.roundToInt
+import kotlin.concurrent.atomics.minusAssign
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.Duration.Companion.seconds
@@ -84,11 +93,25 @@ class Agent(
   isTestMode = testMode,
 ) {
   private val clock = Monotonic
+  internal val compressionMode = CompressionMode.fromString(options.compressionMode)
+
+  // Negotiated with the proxy on each registerAgent
+  internal var contentCodec: ContentCodec by nonNullableReference(ContentCodecs.forName(""))
+  internal var dictionaryCompression by atomicBoolean(false)
+  internal var deltaEncoding by atomicBoolean(false)
+  internal val dictionaryManager = AgentDictionaryManager(this)
+  internal val deltaManager = AgentDeltaManager(this)
   private val agentHttpService = AgentHttpService(this)
   private val initialConnectionLatch = CountDownLatch(1)
 
-  // Prime the limiter
-  private val reconnectLimiter: RateLimiter
+  // Released when the agent is stopped, which ends any reconnect pause
+  private val shutdownLatch = CountDownLatch(1)
+
+  internal val reconnectBackoff =
+    ReconnectBackoff(
+      minPause = agentConfigVals.internal.reconnectPauseSecs.seconds,
+      maxPause = agentConfigVals.internal.reconnectMaxPauseSecs.seconds,
+    )
   private var lastMsgSentMark: TimeMark by nonNullableReference(clock.markNow())
 
   internal val agentName = options.agentName.ifBlank { "Unnamed-${hostInfo.hostName}" }
@@ -96,14 +119,22 @@ class Agent(
   internal val pathManager = AgentPathManager(this)
   internal val grpcService = AgentGrpcService(this, options, inProcessServerName)
   internal var agentId: String by nonNullableReference("")
+
+  // Issued by the proxy on registerAgent, and presented on the next one to keep the registered paths
+  internal var sessionToken: String by nonNullableReference("")
+
+  // Issued by the proxy on registerAgent, and sent on the extra pool connections
+  internal var attachToken: String by nonNullableReference("")
   internal val launchId = randomId(15)
   internal val metrics by lazy { AgentMetrics(this) }
 
+  // Declared after agentId, which its initial load reads
+  private val pathConfigWatcher =
+    configVals.agent.pathConfigsFile.takeIf { it.isNotEmpty() }?.let { AgentPathConfigWatcher(this, it) }
+
   val agentConfigVals: ConfigVals.Agent get() = configVals.agent
 
   init {
-    reconnectLimiter = RateLimiter.create(1.0 / agentConfigVals.internal.reconnectPauseSecs).apply { acquire() }
-
     fun toPlainText() =
       """
         Prometheus Agent Info [${getVersionDesc(false)}]
@@ -122,7 +153,11 @@ class Agent(
       """.trimIndent()
 
     logger.info { "Agent name: $agentName" }
-    logger.info { "Proxy reconnect pause time: ${agentConfigVals.internal.reconnectPauseSecs.seconds}" }
+    logger.info {
+      with(agentConfigVals.internal) {
+        "Proxy reconnect pause time: ${reconnectPauseSecs.seconds} to ${reconnectMaxPauseSecs.seconds}"
+      }
+    }
     logger.info { "Scrape timeout time: ${options.scrapeTimeoutSecs.seconds}" }
 
     initServletService {
@@ -148,43 +183,72 @@ class Agent(
       }
 
       // Reset values for each connection attempt
-      pathManager.clear()
       scrapeRequestBacklogSize.store(0)
       lastMsgSentMark = clock.markNow()
 
       if (grpcService.connectAgent(configVals.agent.transportFilterDisabled)) {
-        grpcService.registerAgent(initialConnectionLatch)
-        pathManager.registerPaths()
+        val (protocolVersion, newSessionToken, sessionResumed) = grpcService.registerAgent(initialConnectionLatch)
+        logger.info { "Using protocol v$protocolVersion with proxy at $proxyHost" }
+        reconnectBackoff.reset()
+        if (sessionResumed) {
+          logger.info { "Resumed session with proxy at $proxyHost with ${pathManager.pathContextSize} paths" }
+          // Path configs may have changed while disconnected
+          pathManager.syncPaths()
+        } else {
+          pathManager.registerPaths()
+        }
+        // Only a session with all of its paths registered is worth resuming
+        sessionToken = newSessionToken
 
-        val connectionContext = AgentConnectionContext()
+        val connectionContext = AgentConnectionContext(this@Agent)
 
         coroutineScope {
-          launch(Dispatchers.IO) {
-            runCatching {
-              grpcService.readRequestsFromProxy(agentHttpService, connectionContext)
-            }.onFailure { e ->
-              if (grpcService.agent.isRunning)
-                Status.fromThrowable(e).apply { logger.error(e) { "readRequestsFromProxy(): $code $description" } }
+          if (protocolVersion >= PROTOCOL_V2) {
+            launch(Dispatchers.IO) {
+              runCatching {
+                grpcService.scrapeStream(agentHttpService, connectionContext)
+              }.onFailure { e ->
+                if (grpcService.agent.isRunning)
+                  Status.fromThrowable(e).apply { logger.error(e) { "scrapeStream(): $code $description" } }
+              }
             }
-          }
 
-          launch(Dispatchers.IO) {
-            runCatching {
-              startHeartBeat(connectionContext)
-            }.onFailure { e ->
-              if (grpcService.agent.isRunning)
-                Status.fromThrowable(e).apply { logger.error(e) { "startHeartBeat(): $code $description" } }
+            launch(Dispatchers.IO) {
+              runCatching {
+                startHeartBeat(connectionContext) { grpcService.sendStreamHeartBeat(connectionContext) }
+              }.onFailure { e ->
+                if (grpcService.agent.isRunning)
+                  Status.fromThrowable(e).apply { logger.error(e) { "startHeartBeat(): $code $description" } }
+              }
+            }
+          } else {
+            launch(Dispatchers.IO) {
+              runCatching {
+                grpcService.readRequestsFromProxy(agentHttpService, connectionContext)
+              }.onFailure { e ->
+                if (grpcService.agent.isRunning)
+                  Status.fromThrowable(e).apply { logger.error(e) { "readRequestsFromProxy(): $code $description" } }
+              }
             }
-          }
 
-          // This exceptionHandler is not necessary
-          launch(Dispatchers.IO) {
-            runCatching {
-              grpcService.writeResponsesToProxyUntilDisconnected(this@Agent, connectionContext)
-            }.onFailure { e ->
-              if (grpcService.agent.isRunning)
-                Status.fromThrowable(e)
-                  .apply { logger.error(e) { "writeResponsesToProxyUntilDisconnected(): $code $description" } }
+            launch(Dispatchers.IO) {
+              runCatching {
+                startHeartBeat(connectionContext) { grpcService.sendHeartBeat() }
+              }.onFailure { e ->
+                if (grpcService.agent.isRunning)
+                  Status.fromThrowable(e).apply { logger.error(e) { "startHeartBeat(): $code $description" } }
+              }
+            }
+
+            // This exceptionHandler is not necessary
+            launch(Dispatchers.IO) {
+              runCatching {
+                grpcService.writeResponsesToProxyUntilDisconnected(this@Agent, connectionContext)
+              }.onFailure { e ->
+                if (grpcService.agent.isRunning)
+                  Status.fromThrowable(e)
+                    .apply { logger.error(e) { "writeResponsesToProxyUntilDisconnected(): $code $description" } }
+              }
             }
           }
 
@@ -194,7 +258,10 @@ class Agent(
               for (scrapeRequestAction in connectionContext.scrapeRequestsChannel) {
                 // The url fetch occurs during the invoke() on the scrapeRequestAction
                 val scrapeResponse = scrapeRequestAction.invoke()
-                connectionContext.scrapeResultsChannel.send(scrapeResponse)
+                if (scrapeResponse == null)
+                  scrapeRequestBacklogSize -= 1
+                else
+                  connectionContext.scrapeResultsChannel.send(scrapeResponse)
               }
             }.onFailure { e ->
               if (grpcService.agent.isRunning)
@@ -212,6 +279,7 @@ class Agent(
             connectToProxy()
           }
         }.onFailure { e ->
+          e.retryAfter()?.also { reconnectBackoff.retryAfter(it) }
           when (e) {
             is RequestFailureException ->
               logger.info { "Disconnected from proxy at $proxyHost after invalid response ${e.message}" }
@@ -227,7 +295,9 @@ class Agent(
           }
         }
       } finally {
-        logger.info { "Waited ${reconnectLimiter.acquire().roundToInt().seconds} to reconnect" }
+        val pause = reconnectBackoff.nextPause()
+        logger.info { "Waiting $pause to reconnect" }
+        shutdownLatch.await(pause.inWholeMilliseconds, MILLISECONDS)
       }
     }
   }
@@ -250,7 +320,10 @@ class Agent(
     )
   }
 
-  private suspend fun startHeartBeat(connectionContext: AgentConnectionContext) {
+  private suspend fun startHeartBeat(
+    connectionContext: AgentConnectionContext,
+    sendHeartBeat: suspend () -> Unit,
+  ) {
     with(agentConfigVals.internal) {
       if (heartbeatEnabled) {
         val heartbeatPauseTime = heartbeatCheckPauseMillis.milliseconds
@@ -261,7 +334,7 @@ class Agent(
           val timeSinceLastWrite = lastMsgSentMark.elapsedNow()
           if (timeSinceLastWrite > maxInactivityTime) {
             logger.debug { "Sending heartbeat" }
-            grpcService.sendHeartBeat()
+            sendHeartBeat()
           }
           delay(heartbeatPauseTime)
         }
@@ -289,8 +362,16 @@ class Agent(
       args.invoke(metrics)
   }
 
+  override fun triggerShutdown() {
+    shutdownLatch.countDown()
+    super.triggerShutdown()
+  }
+
   override fun shutDown() {
+    pathConfigWatcher?.close()
+    grpcService.closeScrapeStream()
     grpcService.shutDown()
+    agentHttpService.close()
     super.shutDown()
   }
 
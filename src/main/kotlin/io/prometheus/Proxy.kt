@@ -25,7 +25,6 @@ import com.github.pambrose.common.dsl.MetricsDsl.healthCheck
 import com.github.pambrose.common.service.GenericService
 import com.github.pambrose.common.servlet.LambdaServlet
 import com.github.pambrose.common.time.format
-import com.github.pambrose.common.util.MetricsUtils.newMapHealthCheck
 import com.github.pambrose.common.util.Version
 import com.github.pambrose.common.util.getBanner
 import com.github.pambrose.common.util.isNotNull
@@ -45,6 +44,9 @@ import io.prometheus.common.Utils.toJsonElement
 import io.prometheus.proxy.AgentContext
 import io.prometheus.proxy.AgentContextCleanupService
 import io.prometheus.proxy.AgentContextManager
+import io.prometheus.proxy.ChunkedContext
+import io.prometheus.proxy.PathTemplateTrie.Companion.isTemplate
+import io.prometheus.proxy.ProxyAdmissionController
 import io.prometheus.proxy.ProxyGrpcService
 import io.prometheus.proxy.ProxyHttpService
 import io.prometheus.proxy.ProxyMetrics
@@ -97,7 +99,9 @@ class Proxy(
   internal val metrics by lazy { ProxyMetrics(this) }
   internal val pathManager by lazy { ProxyPathManager(this, isTestMode) }
   internal val agentContextManager = AgentContextManager(isTestMode)
-  internal val scrapeRequestManager = ScrapeRequestManager()
+  internal val scrapeRequestManager =
+    ScrapeRequestManager(proxyConfigVals.internal.unchangedContentCacheMaxMBytes * 1024L * 1024L)
+  internal val admissionController = ProxyAdmissionController(this)
 
   val proxyConfigVals: ConfigVals.Proxy2 get() = configVals.proxy
 
@@ -144,20 +148,20 @@ class Proxy(
   override fun startUp() {
     super.startUp()
 
+    // Started before the gRPC service so agents are scheduled for eviction as soon as they connect.
+    // It always runs because it also reaps orphaned chunked contexts.
+    agentCleanupService.startSync()
+    if (!proxyConfigVals.internal.staleAgentCheckEnabled)
+      logger.info { "Agent eviction disabled" }
+
     grpcService.startSync()
     httpService.startSync()
-
-    if (proxyConfigVals.internal.staleAgentCheckEnabled)
-      agentCleanupService.startSync()
-    else
-      logger.info { "Agent eviction thread not started" }
   }
 
   override fun shutDown() {
     grpcService.stopSync()
     httpService.stopSync()
-    if (proxyConfigVals.internal.staleAgentCheckEnabled)
-      agentCleanupService.stopSync()
+    agentCleanupService.stopSync()
     super.shutDown()
   }
 
@@ -176,17 +180,15 @@ class Proxy(
         register("grpc_service", grpcService.healthCheck)
         register(
           "chunking_map_check",
-          newMapHealthCheck(
-            agentContextManager.chunkedContextMap,
-            proxyConfigVals.internal.chunkContextMapUnhealthySize,
-          ),
+          newSizeHealthCheck(proxyConfigVals.internal.chunkContextMapUnhealthySize) {
+            agentContextManager.chunkedContextSize
+          },
         )
         register(
           "scrape_response_map_check",
-          newMapHealthCheck(
-            scrapeRequestManager.scrapeRequestMap,
-            proxyConfigVals.internal.scrapeRequestMapUnhealthySize,
-          ),
+          newSizeHealthCheck(proxyConfigVals.internal.scrapeRequestMapUnhealthySize) {
+            scrapeRequestManager.scrapeMapSize
+          },
         )
         register(
           "agent_scrape_request_backlog",
@@ -211,7 +213,89 @@ class Proxy(
       }
   }
 
-  // This is called on agent disconnects
+  private fun newSizeHealthCheck(
+    unhealthySize: Int,
+    currentSize: () -> Int,
+  ) = healthCheck {
+    currentSize().let { size ->
+      if (size < unhealthySize)
+        HealthCheck.Result.healthy()
+      else
+        HealthCheck.Result.unhealthy("Large size: $size")
+    }
+  }
+
+  // This is called on agent connects
+  internal fun addAgentContext(agentContext: AgentContext) {
+    agentContextManager.addAgentContext(agentContext)
+    if (proxyConfigVals.internal.staleAgentCheckEnabled)
+      agentCleanupService.scheduleEviction(agentContext)
+  }
+
+  internal fun addChunkedContext(
+    scrapeId: Long,
+    chunkedContext: ChunkedContext,
+  ) {
+    agentContextManager.chunkedContextMap[scrapeId] = chunkedContext
+    agentCleanupService.scheduleChunkedContextSweep(chunkedContext)
+  }
+
+  // Called for chunked contexts whose summary will never arrive
+  internal fun reapChunkedContext(
+    scrapeId: Long,
+    reason: String,
+  ) {
+    agentContextManager.chunkedContextMap.remove(scrapeId)
+      ?.also { chunkedContext ->
+        val byteCount = chunkedContext.bufferedByteCount
+        logger.info {
+          "Reaped chunked context for scrapeId: $scrapeId agentId: ${chunkedContext.ownerAgentId} " +
+            "with $byteCount bytes ($reason)"
+        }
+        metrics { chunkContextReapedBytes.labels(reason).inc(byteCount.toDouble()) }
+      }
+  }
+
+  // Called when an agent's connection is lost. A registered agent's paths are kept for the session resume
+  // grace period, so an agent that reconnects in time does not have to register them again.
+  // Agents that close their connection, and all agents at proxy shutdown, are removed right away.
+  internal fun disconnectAgentContext(
+    agentId: String,
+    reason: String,
+    resumable: Boolean = true,
+  ): AgentContext? {
+    val agentContext = agentContextManager.getAgentContext(agentId)
+    val holdSession = resumable && isRunning && proxyConfigVals.internal.sessionResumeGraceSecs > 0
+    return if (agentContext?.registered == true && holdSession) {
+      if (agentContext.park()) {
+        logger.info { "Holding session of $agentContext for resumption ($reason)" }
+        agentCleanupService.scheduleSessionExpiry(agentContext)
+      }
+      agentContext
+    } else {
+      removeAgentContext(agentId, reason)
+    }
+  }
+
+  // Moves the paths and queued scrapes of an agent's previous connection to its new one.
+  // Returns false if there is no session to resume.
+  internal suspend fun resumeAgentSession(
+    sessionToken: String,
+    agentContext: AgentContext,
+  ): Boolean {
+    val previous = agentContextManager.takeSession(sessionToken, agentContext) ?: return false
+
+    // The loss of the previous connection may not have been detected yet
+    previous.park()
+    val pathCount = pathManager.transferPaths(previous, agentContext)
+    previous.transferScrapeRequests(agentContext)
+    scrapeRequestManager.removeCachedContent(previous.agentId)
+    agentContextManager.removeFromContextManager(previous.agentId, "Resumed by agentId: ${agentContext.agentId}")
+    logger.info { "Resumed session of agentId: ${previous.agentId} with $pathCount paths for $agentContext" }
+    metrics { agentSessionResumeCount.inc() }
+    return true
+  }
+
   internal fun removeAgentContext(
     agentId: String,
     reason: String,
@@ -219,6 +303,7 @@ class Proxy(
     require(agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG }
 
     pathManager.removeFromPathManager(agentId, reason)
+    scrapeRequestManager.removeCachedContent(agentId)
     return agentContextManager.removeFromContextManager(agentId, reason)
   }
 
@@ -240,7 +325,8 @@ class Proxy(
 
   fun buildServiceDiscoveryJson(): JsonArray =
     buildJsonArray {
-      pathManager.allPaths.forEach { path ->
+      // Templates are not scrape targets themselves
+      pathManager.allPaths.filterNot { isTemplate(it) }.forEach { path ->
         addJsonObject {
           putJsonArray("targets") {
             add(JsonPrimitive(options.sdTargetPrefix))
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import io.grpc.CallOptions
+import io.grpc.Channel
+import io.grpc.ClientCall
+import io.grpc.ClientInterceptor
+import io.grpc.ForwardingClientCall
+import io.grpc.Metadata
+import io.grpc.MethodDescriptor
+import io.prometheus.Agent
+import io.prometheus.proxy.ProxyServerInterceptor.Companion.META_AGENT_ID_KEY
+import io.prometheus.proxy.ProxyServerInterceptor.Companion.META_ATTACH_TOKEN_KEY
+
+// Sends the agent_id with calls on the extra pool connections, so the proxy attaches them to the agent's context
+internal class AgentBulkChannelInterceptor(
+  private val agent: Agent,
+) : ClientInterceptor {
+  override fun <ReqT, RespT> interceptCall(
+    method: MethodDescriptor<ReqT, RespT>,
+    callOptions: CallOptions,
+    next: Channel,
+  ): ClientCall<ReqT, RespT> =
+    object : ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+      override fun start(
+        responseListener: Listener<RespT>,
+        metadata: Metadata,
+      ) {
+        metadata.put(META_AGENT_ID_KEY, agent.agentId)
+        metadata.put(META_ATTACH_TOKEN_KEY, agent.attachToken)
+        super.start(responseListener, metadata)
+      }
+    }
+}
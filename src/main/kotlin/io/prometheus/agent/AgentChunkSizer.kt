@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import io.prometheus.Agent
+import io.prometheus.grpc.ChunkedScrapeResponse
+import kotlin.time.TimeSource.Monotonic
+
+// Sizes the chunks of one connection so each takes about targetChunkWriteMillis to write.
+// Fast links get large chunks and less per-message overhead. Slow links get small chunks, so other
+// messages do not wait long behind a bulk transfer.
+internal class AgentChunkSizer(
+  private val agent: Agent,
+  lane: Int,
+) {
+  private val laneLabel = lane.toString()
+  private val enabled = agent.agentConfigVals.adaptiveChunkSizeEnabled
+  private val minSize = agent.agentConfigVals.minChunkSizeKbs * 1024
+  private val maxSize = (agent.agentConfigVals.maxChunkSizeKbs * 1024).coerceIn(minSize, MAX_CHUNK_SIZE)
+  private val targetSecs = agent.agentConfigVals.targetChunkWriteMillis / 1000.0
+
+  private var bytesPerSec = 0.0
+  private var lastChunkMark: Monotonic.ValueTimeMark? = null
+  private var lastChunkSize = 0
+
+  @Volatile
+  var chunkSize: Int =
+    agent.options.chunkContentSizeKbs.let { if (enabled) it.coerceIn(minSize, maxSize) else it }
+    private set
+
+  init {
+    publish()
+  }
+
+  // Called as the gRPC stub takes each message off the outbound flow. The stub only takes the next message
+  // once the call is ready again, so the gap between consecutive chunks is the write time of the first.
+  fun messageTaken(response: ChunkedScrapeResponse) {
+    if (!enabled)
+      return
+
+    if (!response.hasChunk()) {
+      // Headers and summaries separate transfers, and the gap around them may include idle time
+      lastChunkMark = null
+      return
+    }
+
+    val now = Monotonic.markNow()
+    lastChunkMark?.also { mark ->
+      val elapsedSecs = (now - mark).inWholeNanoseconds / 1e9
+      if (elapsedSecs > 0) {
+        val sample = lastChunkSize / elapsedSecs
+        bytesPerSec = if (bytesPerSec == 0.0) sample else bytesPerSec + EWMA_WEIGHT * (sample - bytesPerSec)
+        val size = (bytesPerSec * targetSecs).toLong().coerceIn(minSize.toLong(), maxSize.toLong()).toInt()
+        if (size != chunkSize) {
+          chunkSize = size
+          publish()
+        }
+      }
+    }
+    lastChunkMark = now
+    lastChunkSize = response.chunk.chunkByteCount
+  }
+
+  private fun publish() {
+    agent.metrics { chunkSizeBytes.labels(agent.launchId, laneLabel).set(chunkSize.toDouble()) }
+  }
+
+  companion object {
+    private const val EWMA_WEIGHT = 0.2
+
+    // Leaves room under the default 4MB gRPC max inbound message size for the rest of the message
+    private const val MAX_CHUNK_SIZE = 4 * 1024 * 1024 - 64 * 1024
+  }
+}
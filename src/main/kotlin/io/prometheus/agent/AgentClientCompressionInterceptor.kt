@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.google.protobuf.MessageLite
+import io.grpc.CallOptions
+import io.grpc.Channel
+import io.grpc.ClientCall
+import io.grpc.ClientInterceptor
+import io.grpc.ForwardingClientCall
+import io.grpc.MethodDescriptor
+
+// Compresses outgoing messages with grpc-encoding: gzip, skipping messages too small to benefit
+internal class AgentClientCompressionInterceptor(
+  private val minSizeBytes: Int,
+) : ClientInterceptor {
+  override fun <ReqT, RespT> interceptCall(
+    method: MethodDescriptor<ReqT, RespT>,
+    callOptions: CallOptions,
+    next: Channel,
+  ): ClientCall<ReqT, RespT> =
+    object : ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(
+      next.newCall(method, callOptions.withCompression(GZIP)),
+    ) {
+      override fun sendMessage(message: ReqT) {
+        // serializedSize is memoized, so this does not serialize the message twice
+        setMessageCompression(((message as? MessageLite)?.serializedSize ?: 0) >= minSizeBytes)
+        super.sendMessage(message)
+      }
+    }
+
+  companion object {
+    const val GZIP = "gzip"
+  }
+}
@@ -19,21 +19,111 @@
 package io.prometheus.agent
 
 import com.github.pambrose.common.delegate.AtomicDelegates.atomicBoolean
+import com.google.common.collect.Maps.newConcurrentMap
 import io.ktor.utils.io.core.Closeable
+import io.prometheus.Agent
 import io.prometheus.common.ScrapeRequestAction
 import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.AgentMessage
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import java.util.concurrent.ConcurrentHashMap
 
-internal class AgentConnectionContext : Closeable {
+internal class AgentConnectionContext(
+  agent: Agent,
+) : Closeable {
   private var disconnected by atomicBoolean(false)
+  // One per pool connection, since each connection has its own throughput
+  val chunkSizers = List(agent.grpcService.channelPoolSize) { lane -> AgentChunkSizer(agent, lane) }
   val scrapeRequestsChannel = Channel<ScrapeRequestAction>(Channel.UNLIMITED)
   val scrapeResultsChannel = Channel<ScrapeResults>(Channel.UNLIMITED)
 
+  // Outbound messages on the protocol v2 scrapeStream. The buffer is small, so senders wait on the stream
+  // and results that arrive during a bulk transfer are interleaved with its chunks.
+  val agentMessagesChannel = Channel<AgentMessage>(OUTBOUND_BUFFER_SIZE)
+
+  // Where each scrape_id is between arrival and its result being sent, so a CancelScrape can find it
+  private val queuedScrapeIds = ConcurrentHashMap.newKeySet<Long>()
+  private val activeFetches = newConcurrentMap<Long, Job>()
+  private val pendingResultIds = ConcurrentHashMap.newKeySet<Long>()
+  private val cancelledResultIds = ConcurrentHashMap.newKeySet<Long>()
+
+  fun addQueuedScrape(scrapeId: Long) {
+    queuedScrapeIds += scrapeId
+  }
+
+  // Returns null if the scrape is cancelled before or during the fetch. A result is returned if the fetch
+  // finished just as it was cancelled, and isResultCancelled() then tells the sender to drop it.
+  suspend fun runScrape(
+    scrapeId: Long,
+    fetch: suspend () -> ScrapeResults?,
+  ): ScrapeResults? {
+    var results: ScrapeResults? = null
+    try {
+      results =
+        coroutineScope {
+          val job = async(start = CoroutineStart.LAZY) { fetch() }
+          // Registered before leaving the queue, so a concurrent cancelScrape() finds it in one place or the other
+          activeFetches[scrapeId] = job
+          if (!queuedScrapeIds.remove(scrapeId))
+            job.cancel()
+          job.await()
+        }
+      // Added before the fetch is removed below, so a concurrent cancelScrape() still finds it
+      results?.also { pendingResultIds += scrapeId }
+    } catch (e: CancellationException) {
+      // Only the fetch was cancelled, unless the connection is going away too
+      currentCoroutineContext().ensureActive()
+    } finally {
+      // Serialized with cancelScrape() on the same key. Without a result there is nothing to drop later.
+      activeFetches.compute(scrapeId) { _, _ ->
+        if (results == null)
+          cancelledResultIds -= scrapeId
+        null
+      }
+    }
+    return results
+  }
+
+  // Returns true if the scrape was found
+  fun cancelScrape(scrapeId: Long): Boolean =
+    when {
+      queuedScrapeIds.remove(scrapeId) -> true
+      cancelActiveFetch(scrapeId) -> true
+      scrapeId in pendingResultIds -> cancelledResultIds.add(scrapeId)
+      else -> false
+    }
+
+  // Marked under the map's lock for scrapeId, so a fetch that finishes anyway has its result dropped
+  private fun cancelActiveFetch(scrapeId: Long): Boolean =
+    activeFetches
+      .computeIfPresent(scrapeId) { _, job -> job.also { cancelledResultIds += scrapeId } }
+      ?.also { it.cancel() } != null
+
+  // Returns true if the result's remaining messages should be dropped
+  fun isResultCancelled(scrapeId: Long): Boolean = scrapeId in cancelledResultIds
+
+  fun removePendingResult(scrapeId: Long) {
+    pendingResultIds -= scrapeId
+    cancelledResultIds -= scrapeId
+  }
+
   override fun close() {
     disconnected = true
     scrapeRequestsChannel.cancel()
     scrapeResultsChannel.cancel()
+    agentMessagesChannel.cancel()
   }
 
   val connected get() = !disconnected
+
+  companion object {
+    const val OUTBOUND_BUFFER_SIZE = 4
+  }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
+import com.google.common.collect.Maps.newConcurrentMap
+import io.prometheus.Agent
+import io.prometheus.common.ScrapeResults
+import io.prometheus.common.SeriesDelta
+import io.prometheus.grpc.ScrapeRequest
+import kotlin.concurrent.atomics.AtomicLong
+import kotlin.concurrent.atomics.incrementAndFetch
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource.Monotonic
+
+// Keeps the most recent expositions of each scrape target, each tagged with a content_version.
+// When the proxy asks for a delta against a version still held here, only the changed series are sent.
+// Nothing is kept unless the proxy negotiated deltas, and targets that stop being scraped are dropped.
+internal class AgentDeltaManager(
+  private val agent: Agent,
+) {
+  private class Snapshot(
+    val version: Long,
+    val content: ByteArray,
+  )
+
+  private class Target(
+    val snapshots: List<Snapshot>,
+    val lastUseMark: TimeMark = Monotonic.markNow(),
+  )
+
+  // Map path and query params to snapshots, newest first
+  private val targets = newConcurrentMap<String, Target>()
+  private val versionGenerator = AtomicLong(0L)
+  private var lastSweepMark: TimeMark by nonNullableReference(Monotonic.markNow())
+
+  // Returns the bytes to send for content, and records the versions on scrapeResults
+  fun encode(
+    scrapeRequest: ScrapeRequest,
+    content: ByteArray,
+    scrapeResults: ScrapeResults,
+  ): ByteArray {
+    if (!agent.deltaEncoding || PROTOBUF_FORMAT in scrapeResults.contentType)
+      return content
+
+    evictIdleTargets()
+
+    val version = versionGenerator.incrementAndFetch()
+    val requestedBase = scrapeRequest.deltaBaseVersion
+    var base: Snapshot? = null
+    targets.compute(snapshotKey(scrapeRequest.path, scrapeRequest.encodedQueryParams)) { _, target ->
+      // Beyond the cap, new targets are sent in full
+      if (target == null && targets.size >= MAX_TARGETS)
+        return@compute null
+      if (requestedBase != 0L)
+        base = target?.snapshots?.firstOrNull { it.version == requestedBase }
+      Target(listOf(Snapshot(version, content)) + target?.snapshots.orEmpty().take(MAX_SNAPSHOTS - 1))
+    } ?: return content
+    scrapeResults.contentVersion = version
+
+    return base
+      ?.let { SeriesDelta.encode(it.content, content) }
+      ?.takeIf { it.size < content.size }
+      ?.also { scrapeResults.deltaBaseVersion = requestedBase }
+      ?: content
+  }
+
+  fun removePath(path: String) {
+    targets.keys.removeIf { it.substringBefore('?') == path }
+  }
+
+  fun clear() = targets.clear()
+
+  private fun evictIdleTargets() {
+    if (lastSweepMark.elapsedNow() > TARGET_IDLE_TIME) {
+      lastSweepMark = Monotonic.markNow()
+      targets.values.removeIf { it.lastUseMark.elapsedNow() > TARGET_IDLE_TIME }
+    }
+  }
+
+  companion object {
+    private const val PROTOBUF_FORMAT = "vnd.google.protobuf"
+
+    // Concurrent scrapes of a target can leave the proxy a version or two behind the newest one
+    private const val MAX_SNAPSHOTS = 3
+    private const val MAX_TARGETS = 1_000
+    private val TARGET_IDLE_TIME = 10.minutes
+
+    private fun snapshotKey(
+      path: String,
+      encodedQueryParams: String,
+    ) = "$path?$encodedQueryParams"
+  }
+}
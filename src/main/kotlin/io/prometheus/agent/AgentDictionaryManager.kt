@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.github.pambrose.common.util.simpleClassName
+import com.google.common.collect.Maps.newConcurrentMap
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.Agent
+import io.prometheus.common.ZstdDictionaryCodec
+import kotlin.concurrent.atomics.AtomicLong
+import kotlin.concurrent.atomics.incrementAndFetch
+import kotlin.time.Duration.Companion.hours
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource.Monotonic
+
+// Trains a zstd dictionary per path from its first payloads and compresses later payloads against it.
+// Dictionaries are retrained every dictionaryRetrainScrapes uses, each time with a new dictionaryId.
+// Only payloads sent non-chunked are sampled and compressed this way.
+internal class AgentDictionaryManager(
+  private val agent: Agent,
+) {
+  private val pathDictionaries = newConcurrentMap<String, PathDictionary>()
+  private val dictionaryIdGenerator = AtomicLong(0L)
+
+  fun codecFor(
+    path: String,
+    content: ByteArray,
+  ): ZstdDictionaryCodec? =
+    if (!agent.dictionaryCompression || content.size >= agent.options.chunkContentSizeKbs)
+      null
+    else
+      pathDictionaries.computeIfAbsent(path) { PathDictionary(it) }.codecFor(content)
+
+  fun removePath(path: String) {
+    pathDictionaries.remove(path)
+  }
+
+  private inner class PathDictionary(
+    private val path: String,
+  ) {
+    private val samples = mutableListOf<ByteArray>()
+    private var codec: ZstdDictionaryCodec? = null
+    private var useCount = 0
+    private var trainingFailures = 0
+    private var retryTrainingMark: TimeMark? = null
+
+    @Synchronized
+    fun codecFor(content: ByteArray): ZstdDictionaryCodec? {
+      val retrainScrapes = agent.agentConfigVals.dictionaryRetrainScrapes
+      val current = codec
+      if (current != null && (retrainScrapes <= 0 || ++useCount < retrainScrapes))
+        return current
+
+      // The current dictionary, if any, stays in use while samples for its replacement are collected
+      if (retryTrainingMark?.hasPassedNow() != false) {
+        samples += content
+        if (samples.size >= agent.agentConfigVals.dictionaryTrainingSamples)
+          train()
+      }
+      return codec
+    }
+
+    private fun train() {
+      runCatching {
+        val maxSize = agent.agentConfigVals.dictionaryMaxSizeKbs * 1024
+        ZstdDictionaryCodec.train(path, dictionaryIdGenerator.incrementAndFetch(), samples, maxSize)
+      }.onSuccess {
+        logger.info { "Trained ${it.dictionary.size} byte dictionary ${it.dictionaryId} for /$path" }
+        codec = it
+        useCount = 0
+        trainingFailures = 0
+        retryTrainingMark = null
+      }.onFailure { e ->
+        // Typically the payloads are too small or too few to train on, which may change later
+        val backoff = (TRAINING_RETRY_MIN * (1 shl trainingFailures.coerceAtMost(6))).coerceAtMost(TRAINING_RETRY_MAX)
+        logger.warn {
+          "Unable to train dictionary for /$path, retrying in $backoff - ${e.simpleClassName}: ${e.message}"
+        }
+        trainingFailures++
+        retryTrainingMark = Monotonic.markNow() + backoff
+      }
+      samples.clear()
+    }
+  }
+
+  companion object {
+    private val logger = KotlinLogging.logger {}
+    private val TRAINING_RETRY_MIN = 1.minutes
+    private val TRAINING_RETRY_MAX = 1.hours
+  }
+}
@@ -30,41 +30,59 @@ import io.grpc.ClientInterceptor
 import io.grpc.ClientInterceptors
 import io.grpc.ManagedChannel
 import io.grpc.Status
+import io.grpc.StatusException
 import io.grpc.StatusRuntimeException
 import io.prometheus.Agent
+import io.prometheus.agent.AgentConnectionContext.Companion.OUTBOUND_BUFFER_SIZE
+import io.prometheus.agent.CompressionMode.APPLICATION
+import io.prometheus.agent.CompressionMode.TRANSPORT
 import io.prometheus.common.BaseOptions.Companion.HTTPS_PREFIX
 import io.prometheus.common.BaseOptions.Companion.HTTP_PREFIX
+import io.prometheus.common.Constants.PROTOCOL_V1
+import io.prometheus.common.ContentCodecs
 import io.prometheus.common.DefaultObjects.EMPTY_INSTANCE
-import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
-import io.prometheus.common.GrpcObjects.newScrapeResponseSummary
+import io.prometheus.common.GrpcObjects.retryAfter
+import io.prometheus.common.GrpcObjects.toCompressionDictionary
 import io.prometheus.common.Messages.EMPTY_AGENT_ID_MSG
 import io.prometheus.common.Messages.EMPTY_PATH_MSG
 import io.prometheus.common.ScrapeResults
 import io.prometheus.grpc.AgentInfo
+import io.prometheus.grpc.AgentMessage
 import io.prometheus.grpc.ChunkedScrapeResponse
 import io.prometheus.grpc.HeartBeatRequest
 import io.prometheus.grpc.PathMapSizeRequest
+import io.prometheus.grpc.PathRegistration
+import io.prometheus.grpc.ProxyMessage.MessageOneOfCase.CANCEL_SCRAPE
+import io.prometheus.grpc.ProxyMessage.MessageOneOfCase.HEART_BEAT_RESPONSE
+import io.prometheus.grpc.ProxyMessage.MessageOneOfCase.SCRAPE_REQUEST
 import io.prometheus.grpc.ProxyServiceGrpcKt
 import io.prometheus.grpc.RegisterAgentRequest
 import io.prometheus.grpc.RegisterPathRequest
 import io.prometheus.grpc.RegisterPathResponse
+import io.prometheus.grpc.RegisterPathsRequest
+import io.prometheus.grpc.RegisterPathsResponse
 import io.prometheus.grpc.ScrapeRequest
 import io.prometheus.grpc.ScrapeResponse
 import io.prometheus.grpc.UnregisterPathRequest
 import io.prometheus.grpc.UnregisterPathResponse
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.consumeAsFlow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
-import java.io.ByteArrayInputStream
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit.SECONDS
-import java.util.zip.CRC32
 import kotlin.concurrent.atomics.minusAssign
 import kotlin.concurrent.atomics.plusAssign
 import kotlin.properties.Delegates.notNull
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.TimeSource.Monotonic
 
 internal class AgentGrpcService(
   internal val agent: Agent,
@@ -76,8 +94,26 @@ internal class AgentGrpcService(
   private val tracing by lazy { agent.zipkinReporterService.newTracing("grpc_client") }
   private val grpcTracing by lazy { GrpcTracing.create(tracing) }
 
+  // Configured codecs that are usable on this platform, in order of preference
+  private val supportedCodecs by lazy {
+    agent.agentConfigVals.compressionCodecs
+      .split(",")
+      .map { it.trim() }
+      .filter { it in ContentCodecs.available }
+  }
+
+  val channelPoolSize = agent.agentConfigVals.grpc.channelPoolSize.coerceAtLeast(1)
+
   var channel: ManagedChannel by notNull()
 
+  // Extra connections to the proxy, which carry chunked responses alongside the primary channel
+  private var bulkChannels: List<ManagedChannel> = emptyList()
+  private var bulkStubs: List<ProxyServiceGrpcKt.ProxyServiceCoroutineStub> = emptyList()
+
+  // The connection of the most recent scrapeStream, which is closed once the stream ends
+  @Volatile
+  private var streamConnectionContext: AgentConnectionContext? = null
+
   val hostName: String
   val port: Int
 
@@ -121,12 +157,24 @@ internal class AgentGrpcService(
     resetGrpcStubs()
   }
 
+  // Half-closes an open scrapeStream, so the proxy drops the agent's session instead of holding it for resumption
+  fun closeScrapeStream() {
+    streamConnectionContext
+      ?.takeIf { it.connected }
+      ?.also { connectionContext ->
+        connectionContext.agentMessagesChannel.close()
+        channel.shutdown().awaitTermination(STREAM_CLOSE_WAIT_SECS, SECONDS)
+      }
+  }
+
   @Synchronized
   fun shutDown() {
     if (agent.isZipkinEnabled)
       tracing.close()
-    if (grpcStarted)
+    if (grpcStarted) {
       channel.shutdownNow()
+      bulkChannels.forEach { it.shutdownNow() }
+    }
   }
 
   @Synchronized
@@ -138,36 +186,54 @@ internal class AgentGrpcService(
     else
       grpcStarted = true
 
-    channel =
-      channel(
-        hostName = hostName,
-        port = port,
-        enableRetry = true,
-        tlsContext = tlsContext,
-        overrideAuthority = agent.options.overrideAuthority,
-        inProcessServerName = inProcessServerName,
-      ) {
-        if (agent.isZipkinEnabled)
-          intercept(grpcTracing.newClientInterceptor())
-
-        if (options.keepAliveTimeSecs > -1L)
-          keepAliveTime(options.keepAliveTimeSecs, SECONDS)
-
-        if (options.keepAliveTimeoutSecs > -1L)
-          keepAliveTimeout(options.keepAliveTimeoutSecs, SECONDS)
-
-        if (options.keepAliveWithoutCalls)
-          keepAliveWithoutCalls(options.keepAliveWithoutCalls)
-      }
+    channel = newChannel()
 
     val interceptors =
       buildList<ClientInterceptor> {
         if (!options.transportFilterDisabled)
           add(AgentClientInterceptor(agent))
+        // Must be last, since AgentClientInterceptor creates calls directly on the channel
+        if (agent.compressionMode == TRANSPORT)
+          add(AgentClientCompressionInterceptor(options.minGzipSizeBytes))
       }
     stub = ProxyServiceGrpcKt.ProxyServiceCoroutineStub(ClientInterceptors.intercept(channel, interceptors))
+
+    val bulkInterceptors =
+      buildList<ClientInterceptor> {
+        add(AgentBulkChannelInterceptor(agent))
+        if (agent.compressionMode == TRANSPORT)
+          add(AgentClientCompressionInterceptor(options.minGzipSizeBytes))
+      }
+    // Each channel is its own HTTP/2 connection, with its own TCP congestion window
+    bulkChannels = List(channelPoolSize - 1) { newChannel() }
+    bulkStubs =
+      bulkChannels
+        .map { ClientInterceptors.intercept(it, bulkInterceptors) }
+        .map { ProxyServiceGrpcKt.ProxyServiceCoroutineStub(it) }
   }
 
+  private fun newChannel(): ManagedChannel =
+    channel(
+      hostName = hostName,
+      port = port,
+      enableRetry = true,
+      tlsContext = tlsContext,
+      overrideAuthority = agent.options.overrideAuthority,
+      inProcessServerName = inProcessServerName,
+    ) {
+      if (agent.isZipkinEnabled)
+        intercept(grpcTracing.newClientInterceptor())
+
+      if (options.keepAliveTimeSecs > -1L)
+        keepAliveTime(options.keepAliveTimeSecs, SECONDS)
+
+      if (options.keepAliveTimeoutSecs > -1L)
+        keepAliveTimeout(options.keepAliveTimeoutSecs, SECONDS)
+
+      if (options.keepAliveWithoutCalls)
+        keepAliveWithoutCalls(options.keepAliveWithoutCalls)
+    }
+
   // If successful, will create an agentContext on the Proxy and an interceptor will add an agent_id to the headers`
   suspend fun connectAgent(transportFilterDisabled: Boolean) =
     runCatching {
@@ -182,13 +248,14 @@ internal class AgentGrpcService(
       true
     }.getOrElse { e ->
       agent.metrics { connectCount.labels(agent.launchId, "failure").inc() }
+      e.retryAfter()?.also { agent.reconnectBackoff.retryAfter(it) }
       logger.info {
         "Cannot connect to proxy at ${agent.proxyHost} using ${tlsContext.desc()} - ${e.simpleClassName}: ${e.message}"
       }
       false
     }
 
-  suspend fun registerAgent(initialConnectionLatch: CountDownLatch) {
+  suspend fun registerAgent(initialConnectionLatch: CountDownLatch): Registration {
     val request =
       RegisterAgentRequest
         .newBuilder()
@@ -199,15 +266,36 @@ internal class AgentGrpcService(
           it.agentName = agent.agentName
           it.hostName = hostName
           it.consolidated = agent.options.consolidated
+          it.protocolVersion = agent.agentConfigVals.internal.protocolVersion
+          if (agent.compressionMode == APPLICATION)
+            it.addAllSupportedCodecs(supportedCodecs)
+          it.sessionToken = agent.sessionToken
         }
         .build()
-    stub.registerAgent(request)
-      .also { response ->
-        agent.markMsgSent()
-        if (!response.valid)
-          throw RequestFailureException("registerAgent() - ${response.reason}")
-      }
+    val response =
+      stub.registerAgent(request)
+        .also { response ->
+          agent.markMsgSent()
+          if (!response.valid)
+            throw RequestFailureException("registerAgent() - ${response.reason}")
+        }
+    agent.contentCodec = ContentCodecs.forName(response.codec)
+    agent.attachToken = response.attachToken
+    agent.dictionaryCompression = response.dictionaryCompression && agent.agentConfigVals.dictionaryCompressionEnabled
+    agent.deltaEncoding = response.deltaEncoding && agent.agentConfigVals.deltaEncodingEnabled
+    if (!agent.deltaEncoding)
+      agent.deltaManager.clear()
+    logger.info {
+      val dictionaries = if (agent.dictionaryCompression) " with dictionaries" else ""
+      "Using ${agent.contentCodec.name} compression codec$dictionaries"
+    }
     initialConnectionLatch.countDown()
+    return Registration(
+      // Proxies that predate negotiation leave protocol_version unset
+      protocolVersion = response.protocolVersion.coerceAtLeast(PROTOCOL_V1),
+      sessionToken = response.sessionToken,
+      sessionResumed = response.sessionResumed,
+    )
   }
 
   fun pathMapSize() =
@@ -242,7 +330,7 @@ internal class AgentGrpcService(
           it.labels = labelsJson
         }
         .build()
-    return stub.registerPath(request)
+    return retryWhenThrottled { stub.registerPath(request) }
       .apply {
         agent.markMsgSent()
         if (!valid)
@@ -250,6 +338,50 @@ internal class AgentGrpcService(
       }
   }
 
+  suspend fun registerPathsOnProxy(paths: List<Pair<String, String>>): RegisterPathsResponse {
+    val request =
+      RegisterPathsRequest
+        .newBuilder()
+        .also {
+          require(agent.agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG }
+          it.agentId = agent.agentId
+          paths.forEach { (path, labelsJson) ->
+            require(path.isNotEmpty()) { EMPTY_PATH_MSG }
+            it.addPaths(
+              PathRegistration
+                .newBuilder()
+                .also { reg ->
+                  reg.path = path
+                  reg.labels = labelsJson
+                },
+            )
+          }
+        }
+        .build()
+    return retryWhenThrottled { stub.registerPaths(request) }
+      .apply {
+        agent.markMsgSent()
+        if (!valid)
+          throw RequestFailureException("registerPathsOnProxy() - $reason")
+      }
+  }
+
+  // Registrations turned away by the proxy's admission limits are sent again after its retry hint,
+  // rather than dropping the session and registering every path again
+  private suspend fun <T> retryWhenThrottled(call: suspend () -> T): T {
+    while (true) {
+      try {
+        return call()
+      } catch (e: StatusException) {
+        val retryAfter = e.retryAfter()
+        if (e.status.code != Status.Code.RESOURCE_EXHAUSTED || retryAfter == null || !agent.isRunning)
+          throw e
+        logger.info { "Proxy is throttling path registrations, retrying in $retryAfter" }
+        delay(retryAfter)
+      }
+    }
+  }
+
   suspend fun unregisterPathOnProxy(path: String): UnregisterPathResponse {
     val request =
       UnregisterPathRequest
@@ -268,6 +400,19 @@ internal class AgentGrpcService(
       }
   }
 
+  // Waits for room on the stream rather than dropping the heartbeat
+  suspend fun sendStreamHeartBeat(connectionContext: AgentConnectionContext) {
+    agent.agentId
+      .also { agentId ->
+        if (agentId.isNotEmpty()) {
+          val request = HeartBeatRequest.newBuilder().also { it.agentId = agentId }.build()
+          val message = AgentMessage.newBuilder().also { it.heartBeatRequest = request }.build()
+          connectionContext.agentMessagesChannel.send(message)
+          agent.markMsgSent()
+        }
+      }
+  }
+
   suspend fun sendHeartBeat() {
     agent.agentId
       .also { agentId ->
@@ -306,76 +451,207 @@ internal class AgentGrpcService(
           .collect { grpcRequest: ScrapeRequest ->
             // The actual fetch happens at the other end of the channel, not here.
             logger.debug { "readRequestsFromProxy():\n$grpcRequest" }
-            connectionContext.scrapeRequestsChannel.send { agentHttpService.fetchScrapeUrl(grpcRequest) }
-            agent.scrapeRequestBacklogSize += 1
+            enqueueScrapeRequest(agentHttpService, connectionContext, grpcRequest)
+          }
+      }
+  }
+
+  private suspend fun enqueueScrapeRequest(
+    agentHttpService: AgentHttpService,
+    connectionContext: AgentConnectionContext,
+    grpcRequest: ScrapeRequest,
+  ) {
+    val scrapeId = grpcRequest.scrapeId
+    // The deadline runs from receipt on the local clock, so the proxy and agent clocks need not agree
+    val deadline = grpcRequest.timeoutMillis.takeIf { it > 0 }?.let { Monotonic.markNow() + it.milliseconds }
+    connectionContext.addQueuedScrape(scrapeId)
+    connectionContext.scrapeRequestsChannel.send {
+      connectionContext.runScrape(scrapeId) { agentHttpService.fetchScrapeUrl(grpcRequest, deadline) }
+    }
+    agent.scrapeRequestBacklogSize += 1
+  }
+
+  // Protocol v2: a single bidi stream replaces readRequestsFromProxy, writeResponsesToProxy,
+  // writeChunkedResponsesToProxy and sendHeartBeat
+  suspend fun scrapeStream(
+    agentHttpService: AgentHttpService,
+    connectionContext: AgentConnectionContext,
+  ) {
+    coroutineScope {
+      val agentMessages = connectionContext.agentMessagesChannel
+      val shippedDictionaryIds = mutableSetOf<Long>()
+      // Chunked responses on the extra pool connections use writeChunkedResponsesToProxy
+      val bulkChunkedChannels = bulkStubs.map { Channel<ChunkedScrapeResponse>(OUTBOUND_BUFFER_SIZE) }
+
+      val streamLane: suspend (ChunkedScrapeResponse) -> Unit =
+        { agentMessages.send(AgentMessage.newBuilder().also { msg -> msg.chunkedResponse = it }.build()) }
+
+      launch(Dispatchers.IO) {
+        try {
+          runCatching {
+            processScrapeResults(
+              agent,
+              connectionContext,
+              bytesSupported = true,
+              { agentMessages.send(AgentMessage.newBuilder().also { msg -> msg.scrapeResponse = it }.build()) },
+              listOf(streamLane) + bulkChunkedChannels.map { it.toLane() },
+              beforeSend = { scrapeResults ->
+                // The proxy only keeps dictionaries for the current stream, so each is shipped once per stream
+                scrapeResults.dictionaryCodec
+                  ?.takeIf { shippedDictionaryIds.add(it.dictionaryId) }
+                  ?.also { codec ->
+                    val dictionary = codec.toCompressionDictionary()
+                    agentMessages.send(AgentMessage.newBuilder().also { it.compressionDictionary = dictionary }.build())
+                  }
+              },
+            )
+          }.onFailure { e ->
+            if (agent.isRunning)
+              Status.fromThrowable(e).apply { logger.error(e) { "processScrapeResults(): $code $description" } }
           }
+        } finally {
+          bulkChunkedChannels.forEach { it.close() }
+        }
+      }
+
+      bulkStubs.forEachIndexed { i, bulkStub ->
+        launchChunkedStream(bulkStub, bulkChunkedChannels[i], connectionContext.chunkSizers[i + 1])
       }
+
+      streamConnectionContext = connectionContext
+      connectionContext
+        .use {
+          val agentInfo =
+            AgentInfo.newBuilder().also {
+              require(agent.agentId.isNotEmpty()) { EMPTY_AGENT_ID_MSG }
+              it.agentId = agent.agentId
+            }.build()
+
+          val outbound =
+            flow {
+              emit(AgentMessage.newBuilder().also { it.agentInfo = agentInfo }.build())
+              val chunkSizer = connectionContext.chunkSizers.first()
+              emitAll(
+                agentMessages.consumeAsFlow()
+                  .onEach { if (it.hasChunkedResponse()) chunkSizer.messageTaken(it.chunkedResponse) },
+              )
+            }
+
+          stub.scrapeStream(outbound)
+            .collect { message ->
+              when (message.messageOneOfCase) {
+                SCRAPE_REQUEST -> {
+                  logger.debug { "scrapeStream():\n${message.scrapeRequest}" }
+                  enqueueScrapeRequest(agentHttpService, connectionContext, message.scrapeRequest)
+                }
+
+                CANCEL_SCRAPE -> {
+                  val scrapeId = message.cancelScrape.cancelScrapeId
+                  if (connectionContext.cancelScrape(scrapeId)) {
+                    logger.debug { "Cancelled scrapeId: $scrapeId" }
+                    agent.updateScrapeCounter(CANCELLED_MSG)
+                  }
+                }
+
+                HEART_BEAT_RESPONSE ->
+                  if (!message.heartBeatResponse.valid) {
+                    logger.error { "AgentId ${agent.agentId} not found on proxy" }
+                    throw StatusRuntimeException(Status.NOT_FOUND)
+                  }
+
+                else -> logger.warn { "Ignoring unknown message type from proxy: ${message.messageOneOfCase}" }
+              }
+            }
+
+          logger.info { "Disconnected from proxy at ${agent.proxyHost}" }
+        }
+    }
   }
 
   private suspend fun processScrapeResults(
     agent: Agent,
-    scrapeResultsChannel: Channel<ScrapeResults>,
-    nonChunkedChannel: Channel<ScrapeResponse>,
-    chunkedChannel: Channel<ChunkedScrapeResponse>,
-  ) = try {
-    for (scrapeResults: ScrapeResults in scrapeResultsChannel) {
+    connectionContext: AgentConnectionContext,
+    bytesSupported: Boolean,
+    sendNonChunked: suspend (ScrapeResponse) -> Unit,
+    // A sender for each pool connection
+    chunkedLanes: List<suspend (ChunkedScrapeResponse) -> Unit>,
+    beforeSend: suspend (ScrapeResults) -> Unit = {},
+  ) {
+    val scrapeResultsChannel = connectionContext.scrapeResultsChannel
+    // Chunked results are interleaved a chunk at a time, so no result waits for a bulk transfer to finish
+    val transfers = ArrayDeque<ChunkedTransfer>()
+
+    suspend fun startResult(scrapeResults: ScrapeResults) {
       val scrapeId = scrapeResults.scrapeId
+      if (connectionContext.isResultCancelled(scrapeId)) {
+        connectionContext.removePendingResult(scrapeId)
+        agent.scrapeRequestBacklogSize -= 1
+        return
+      }
+      beforeSend(scrapeResults)
 
-      if (!scrapeResults.zipped) {
-        logger.debug { "Writing non-chunked msg scrapeId: $scrapeId length: ${scrapeResults.contentAsText.length}" }
-        nonChunkedChannel.send(scrapeResults.toScrapeResponse())
-        agent.metrics { scrapeResultCount.labels(agent.launchId, "non-gzipped").inc() }
-      } else {
-        val zipped = scrapeResults.contentAsZipped
-        val chunkContentSize = options.chunkContentSizeKbs
-
-        logger.debug { "Comparing ${zipped.size} and $chunkContentSize" }
-
-        if (zipped.size < chunkContentSize) {
-          logger.debug { "Writing zipped non-chunked msg scrapeId: $scrapeId length: ${zipped.size}" }
-          nonChunkedChannel.send(scrapeResults.toScrapeResponse())
-          agent.metrics { scrapeResultCount.labels(agent.launchId, "gzipped").inc() }
-        } else {
-          scrapeResults.toScrapeResponseHeader()
-            .also {
-              logger.debug { "Writing header length: ${zipped.size} for scrapeId: $scrapeId " }
-              chunkedChannel.send(it)
-            }
+      val content = if (scrapeResults.zipped) scrapeResults.contentAsZipped else scrapeResults.contentAsBytes
+      val chunkContentSize = options.chunkContentSizeKbs
+      val desc = if (scrapeResults.zipped) "gzipped" else "non-gzipped"
 
-          var totalByteCount = 0
-          var totalChunkCount = 0
-          val checksum = CRC32()
-          val bais = ByteArrayInputStream(zipped)
-          val buffer = ByteArray(chunkContentSize)
-          var readByteCount: Int
-
-          while (bais.read(buffer).also { bytesRead -> readByteCount = bytesRead } > 0) {
-            totalChunkCount++
-            totalByteCount += readByteCount
-            checksum.update(buffer, 0, buffer.size)
-
-            newScrapeResponseChunk(scrapeId, totalChunkCount, readByteCount, checksum, buffer)
-              .also {
-                logger.debug { "Writing chunk $totalChunkCount for scrapeId: $scrapeId" }
-                chunkedChannel.send(it)
-              }
+      logger.debug { "Comparing ${content.size} and $chunkContentSize" }
+
+      if (content.size < chunkContentSize) {
+        logger.debug { "Writing $desc non-chunked msg scrapeId: $scrapeId length: ${content.size}" }
+        sendNonChunked(scrapeResults.toScrapeResponse(bytesSupported))
+        agent.metrics { scrapeResultCount.labels(agent.launchId, desc).inc() }
+        agent.markMsgSent()
+        connectionContext.removePendingResult(scrapeId)
+        agent.scrapeRequestBacklogSize -= 1
+      } else {
+        // Spread the transfers across the pool connections
+        val lane = chunkedLanes.indices.minBy { lane -> transfers.count { it.lane == lane } }
+        scrapeResults.toScrapeResponseHeader()
+          .also {
+            logger.debug { "Writing header length: ${content.size} for scrapeId: $scrapeId " }
+            chunkedLanes[lane](it)
           }
+        transfers.addLast(ChunkedTransfer(scrapeResults, lane))
+      }
+    }
 
-          newScrapeResponseSummary(scrapeId, totalChunkCount, totalByteCount, checksum)
-            .also {
-              logger.debug { "Writing summary totalChunkCount: $totalChunkCount for scrapeID: $scrapeId" }
-              chunkedChannel.send(it)
-              agent.metrics { scrapeResultCount.labels(agent.launchId, "chunked").inc() }
-            }
-        }
+    while (true) {
+      if (transfers.isEmpty())
+        startResult(scrapeResultsChannel.receiveCatching().getOrNull() ?: break)
+
+      // Results that arrived during the last chunk go ahead of the next one
+      while (true)
+        startResult(scrapeResultsChannel.tryReceive().getOrNull() ?: break)
+
+      val transfer = transfers.removeFirstOrNull() ?: continue
+      val scrapeId = transfer.scrapeId
+      // The proxy discarded what it had of a cancelled transfer, so the rest of it is not sent
+      if (connectionContext.isResultCancelled(scrapeId)) {
+        connectionContext.removePendingResult(scrapeId)
+        agent.scrapeRequestBacklogSize -= 1
+        continue
       }
+      val sendChunked = chunkedLanes[transfer.lane]
+      transfer.nextChunk(connectionContext.chunkSizers[transfer.lane].chunkSize)
+        .also {
+          logger.debug { "Writing chunk ${it.chunk.chunkCount} for scrapeId: $scrapeId" }
+          sendChunked(it)
+        }
 
-      agent.markMsgSent()
-      agent.scrapeRequestBacklogSize -= 1
+      if (transfer.isComplete) {
+        transfer.summary()
+          .also {
+            logger.debug { "Writing summary totalChunkCount: ${it.summary.summaryChunkCount} for scrapeID: $scrapeId" }
+            sendChunked(it)
+            agent.metrics { scrapeResultCount.labels(agent.launchId, "chunked").inc() }
+          }
+        agent.markMsgSent()
+        connectionContext.removePendingResult(scrapeId)
+        agent.scrapeRequestBacklogSize -= 1
+      } else {
+        transfers.addLast(transfer)
+      }
     }
-  } finally {
-    nonChunkedChannel.close()
-    chunkedChannel.close()
   }
 
   suspend fun writeResponsesToProxyUntilDisconnected(
@@ -384,14 +660,26 @@ internal class AgentGrpcService(
   ) {
     coroutineScope {
       val nonChunkedChannel = Channel<ScrapeResponse>(Channel.UNLIMITED)
-      val chunkedChannel = Channel<ChunkedScrapeResponse>(Channel.UNLIMITED)
+      val chunkedStubs = listOf(stub) + bulkStubs
+      val chunkedChannels = chunkedStubs.map { Channel<ChunkedScrapeResponse>(OUTBOUND_BUFFER_SIZE) }
 
       launch(Dispatchers.IO) {
-        runCatching {
-          processScrapeResults(agent, connectionContext.scrapeResultsChannel, nonChunkedChannel, chunkedChannel)
-        }.onFailure { e ->
-          if (agent.isRunning)
-            Status.fromThrowable(e).apply { logger.error(e) { "processScrapeResults(): $code $description" } }
+        try {
+          runCatching {
+            processScrapeResults(
+              agent,
+              connectionContext,
+              bytesSupported = false,
+              { nonChunkedChannel.send(it) },
+              chunkedChannels.map { it.toLane() },
+            )
+          }.onFailure { e ->
+            if (agent.isRunning)
+              Status.fromThrowable(e).apply { logger.error(e) { "processScrapeResults(): $code $description" } }
+          }
+        } finally {
+          nonChunkedChannel.close()
+          chunkedChannels.forEach { it.close() }
         }
       }
 
@@ -407,14 +695,8 @@ internal class AgentGrpcService(
               }
             }
 
-            launch(Dispatchers.IO) {
-              runCatching {
-                stub.writeChunkedResponsesToProxy(chunkedChannel.consumeAsFlow())
-              }.onFailure { e ->
-                if (agent.isRunning)
-                  Status.fromThrowable(e)
-                    .apply { logger.error(e) { "writeChunkedResponsesToProxy(): $code $description" } }
-              }
+            chunkedStubs.forEachIndexed { i, chunkedStub ->
+              launchChunkedStream(chunkedStub, chunkedChannels[i], connectionContext.chunkSizers[i])
             }
           }
 
@@ -423,7 +705,33 @@ internal class AgentGrpcService(
     }
   }
 
+  private fun CoroutineScope.launchChunkedStream(
+    chunkedStub: ProxyServiceGrpcKt.ProxyServiceCoroutineStub,
+    chunkedChannel: Channel<ChunkedScrapeResponse>,
+    chunkSizer: AgentChunkSizer,
+  ) = launch(Dispatchers.IO) {
+    runCatching {
+      chunkedStub.writeChunkedResponsesToProxy(chunkedChannel.consumeAsFlow().onEach { chunkSizer.messageTaken(it) })
+    }.onFailure { e ->
+      if (agent.isRunning)
+        Status.fromThrowable(e)
+          .apply { logger.error(e) { "writeChunkedResponsesToProxy(): $code $description" } }
+    }
+    // Unblocks processScrapeResults() if the stream ended before the channel was drained
+    chunkedChannel.cancel()
+  }
+
+  data class Registration(
+    val protocolVersion: Int,
+    val sessionToken: String,
+    val sessionResumed: Boolean,
+  )
+
   companion object {
     private val logger = KotlinLogging.logger {}
+    private const val CANCELLED_MSG = "cancelled"
+    private const val STREAM_CLOSE_WAIT_SECS = 2L
+
+    private fun Channel<ChunkedScrapeResponse>.toLane(): suspend (ChunkedScrapeResponse) -> Unit = { send(it) }
   }
 }
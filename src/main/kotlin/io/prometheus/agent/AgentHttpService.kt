@@ -22,13 +22,15 @@ import com.github.pambrose.common.dsl.KtorDsl.get
 import com.github.pambrose.common.util.isNotNull
 import com.github.pambrose.common.util.isNull
 import com.github.pambrose.common.util.simpleClassName
-import com.github.pambrose.common.util.zip
+import com.google.common.collect.Maps.newConcurrentMap
 import com.google.common.net.HttpHeaders.ACCEPT
 import com.google.common.net.HttpHeaders.CONTENT_TYPE
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.ktor.client.HttpClient
 import io.ktor.client.engine.cio.CIO
+import io.ktor.client.network.sockets.ConnectTimeoutException
 import io.ktor.client.plugins.HttpRequestRetry
+import io.ktor.client.plugins.HttpRequestTimeoutException
 import io.ktor.client.plugins.HttpTimeout
 import io.ktor.client.plugins.auth.Auth
 import io.ktor.client.plugins.auth.providers.BasicAuthCredentials
@@ -37,43 +39,70 @@ import io.ktor.client.plugins.timeout
 import io.ktor.client.request.HttpRequestBuilder
 import io.ktor.client.request.header
 import io.ktor.client.statement.HttpResponse
-import io.ktor.client.statement.bodyAsText
+import io.ktor.client.statement.readRawBytes
 import io.ktor.http.HttpStatusCode
 import io.ktor.http.Url
 import io.ktor.http.isSuccess
+import io.ktor.network.sockets.SocketTimeoutException
 import io.prometheus.Agent
+import io.prometheus.agent.CompressionMode.APPLICATION
 import io.prometheus.common.ScrapeResults
 import io.prometheus.common.ScrapeResults.Companion.errorCode
 import io.prometheus.common.Utils.decodeParams
 import io.prometheus.common.Utils.ifTrue
 import io.prometheus.common.Utils.lambda
 import io.prometheus.grpc.ScrapeRequest
+import kotlinx.coroutines.CancellationException
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeMark
 
 internal class AgentHttpService(
   val agent: Agent,
 ) {
-  suspend fun fetchScrapeUrl(scrapeRequest: ScrapeRequest): ScrapeResults {
-    val pathContext = agent.pathManager[scrapeRequest.path]
+  // Clients are reused across scrapes, keyed by the basic auth credentials in the target url
+  private val httpClients = newConcurrentMap<String, HttpClient>()
+  private val retryBudget = ScrapeRetryBudget(agent)
+
+  // deadline is null when the proxy did not send a timeout
+  suspend fun fetchScrapeUrl(
+    scrapeRequest: ScrapeRequest,
+    deadline: TimeMark? = null,
+  ): ScrapeResults? {
+    // The proxy stopped waiting for requests that expired while queued, so the target is not scraped
+    deadline?.elapsedNow()?.also { overdue ->
+      if (overdue >= Duration.ZERO) {
+        logger.debug { "Dropping scrapeId: ${scrapeRequest.scrapeId} $overdue past its deadline" }
+        agent.updateScrapeCounter(EXPIRED_MSG)
+        return null
+      }
+    }
+
+    val pathContext = agent.pathManager[scrapeRequest.pathTemplate.ifEmpty { scrapeRequest.path }]
     return if (pathContext.isNull())
       handleInvalidPath(scrapeRequest)
     else
-      fetchContentFromUrl(scrapeRequest, pathContext)
+      fetchContentFromUrl(scrapeRequest, pathContext, deadline)
   }
 
   private suspend fun AgentHttpService.fetchContentFromUrl(
     scrapeRequest: ScrapeRequest,
     pathContext: AgentPathManager.PathContext,
+    deadline: TimeMark?,
   ): ScrapeResults =
     ScrapeResults(agentId = scrapeRequest.agentId, scrapeId = scrapeRequest.scrapeId).also { scrapeResults ->
       val requestTimer = if (agent.isMetricsEnabled) agent.startTimer(agent) else null
-      // Add the incoming query params to the url
-      val url = pathContext.url + decodeParams(scrapeRequest.encodedQueryParams)
+      // Fill in any template params, then add the incoming query params to the url
+      val url =
+        scrapeRequest.pathParamsMap.entries.fold(pathContext.url) { url, (name, value) ->
+          url.replace("{$name}", value)
+        } + decodeParams(scrapeRequest.encodedQueryParams)
       logger.debug { "Fetching $pathContext ${if (url.isNotBlank()) "URL: $url" else ""}" }
 
       // Content is fetched here
       try {
-        fetchContent(url, scrapeRequest, scrapeResults)
+        fetchContent(url, scrapeRequest, scrapeResults, deadline)
       } finally {
         requestTimer?.observeDuration()
       }
@@ -84,15 +113,14 @@ internal class AgentHttpService(
     url: String,
     scrapeRequest: ScrapeRequest,
     scrapeResults: ScrapeResults,
+    deadline: TimeMark?,
   ) {
     runCatching {
-      newHttpClient(url).use { client ->
-        client.get(
-          url = url,
-          setUp = prepareRequestHeaders(scrapeRequest),
-          block = processHttpResponse(url, scrapeRequest, scrapeResults),
-        )
-      }
+      httpClientFor(url).get(
+        url = url,
+        setUp = prepareRequestHeaders(scrapeRequest, deadline),
+        block = processHttpResponse(url, scrapeRequest, scrapeResults),
+      )
     }.onFailure { e ->
       with(scrapeResults) {
         statusCode = errorCode(e, url)
@@ -103,10 +131,16 @@ internal class AgentHttpService(
     }
   }
 
-  private fun prepareRequestHeaders(request: ScrapeRequest): HttpRequestBuilder.() -> Unit =
+  private fun prepareRequestHeaders(
+    request: ScrapeRequest,
+    deadline: TimeMark?,
+  ): HttpRequestBuilder.() -> Unit =
     lambda {
       request.accept.also { if (it.isNotEmpty()) header(ACCEPT, it) }
-      val scrapeTimeout = agent.options.scrapeTimeoutSecs.seconds
+      val scrapeTimeout =
+        agent.options.scrapeTimeoutSecs.seconds.let { timeout ->
+          deadline?.let { minOf(-it.elapsedNow(), timeout).coerceAtLeast(1.milliseconds) } ?: timeout
+        }
       logger.debug { "Setting scrapeTimeoutSecs = $scrapeTimeout" }
       timeout { requestTimeoutMillis = scrapeTimeout.inWholeMilliseconds }
       val authHeader = request.authHeader.ifBlank { null }
@@ -131,16 +165,18 @@ internal class AgentHttpService(
   ) {
     with(scrapeResults) {
       if (response.status.isSuccess()) {
+        retryBudget.recordSuccess(response.call.request.url)
         contentType = response.headers[CONTENT_TYPE].orEmpty()
         if (agent.options.debugEnabled)
           logger.info { "CT check - setScrapeDetailsAndDebugInfo() contentType: $contentType" }
-        // Zip the content here
-        val content = response.bodyAsText()
-        zipped = content.length > agent.configVals.agent.minGzipSizeBytes
-        if (zipped)
-          contentAsZipped = content.zip()
+        // Read the raw bytes, so binary formats such as protobuf exposition pass through untouched
+        val rawContent = response.readRawBytes()
+        contentHash = ScrapeResults.contentHash(rawContent)
+        // The proxy still holds this exact payload, so only the hash is sent back
+        if (scrapeRequest.unchangedContentHash != 0L && contentHash == scrapeRequest.unchangedContentHash)
+          contentUnchanged = true
         else
-          contentAsText = content
+          setContent(scrapeRequest, rawContent)
         validResponse = true
 
         scrapeRequest.debugEnabled.ifTrue { setDebugInfo(url) }
@@ -152,7 +188,43 @@ internal class AgentHttpService(
     }
   }
 
-  private fun newHttpClient(url: String): HttpClient =
+  private fun ScrapeResults.setContent(
+    scrapeRequest: ScrapeRequest,
+    rawContent: ByteArray,
+  ) {
+    // Text content becomes a series delta when the proxy holds a recent version of it
+    val content = agent.deltaManager.encode(scrapeRequest, rawContent, this)
+    zipped = agent.compressionMode == APPLICATION && content.size > agent.configVals.agent.minGzipSizeBytes
+    if (zipped) {
+      // Deltas are not representative of the path's payloads, so they are not used for dictionaries
+      val pathCodec =
+        if (deltaBaseVersion == 0L)
+          agent.dictionaryManager.codecFor(scrapeRequest.pathTemplate.ifEmpty { scrapeRequest.path }, content)
+        else
+          null
+      val codec = pathCodec ?: agent.contentCodec
+      contentAsZipped = codec.compress(content)
+      contentEncoding = codec.name
+      pathCodec?.also {
+        dictionaryCodec = it
+        dictionaryId = it.dictionaryId
+      }
+    } else {
+      contentAsBytes = content
+    }
+  }
+
+  private fun httpClientFor(url: String): HttpClient =
+    Url(url).let { urlObj ->
+      httpClients.computeIfAbsent("${urlObj.user}:${urlObj.password}") { newHttpClient(urlObj) }
+    }
+
+  fun close() {
+    httpClients.values.forEach { it.close() }
+    httpClients.clear()
+  }
+
+  private fun newHttpClient(urlObj: Url): HttpClient =
     HttpClient(CIO) {
       expectSuccess = false
       engine {
@@ -175,9 +247,18 @@ internal class AgentHttpService(
           if (maxRetries <= 0) {
             noRetry()
           } else {
-            retryOnException(maxRetries)
-            retryIf(maxRetries) { _, response ->
-              !response.status.isSuccess() && response.status != HttpStatusCode.NotFound
+            // Matches retryOnException(), which does not retry timeouts, with the retry budget checked last
+            retryOnExceptionIf(maxRetries) { request, cause ->
+              cause !is CancellationException &&
+                cause !is HttpRequestTimeoutException &&
+                cause !is ConnectTimeoutException &&
+                cause !is SocketTimeoutException &&
+                retryBudget.tryRetry(request.url.build())
+            }
+            retryIf(maxRetries) { request, response ->
+              !response.status.isSuccess() &&
+                response.status != HttpStatusCode.NotFound &&
+                retryBudget.tryRetry(request.url.build())
             }
             modifyRequest { it.headers.append("x-retry-count", retryCount.toString()) }
             exponentialDelay()
@@ -185,7 +266,6 @@ internal class AgentHttpService(
         }
       }
 
-      val urlObj = Url(url)
       val user = urlObj.user
       val passwd = urlObj.password
       if (user.isNotNull() && passwd.isNotNull()) {
@@ -204,6 +284,7 @@ internal class AgentHttpService(
     private const val INVALID_PATH_MSG = "invalid_path"
     private const val SUCCESS_MSG = "success"
     private const val UNSUCCESSFUL_MSG = "unsuccessful"
+    private const val EXPIRED_MSG = "expired"
 
     private fun handleInvalidPath(scrapeRequest: ScrapeRequest): ScrapeResults {
       val scrapeResults = with(scrapeRequest) { ScrapeResults(agentId = agentId, scrapeId = scrapeId) }
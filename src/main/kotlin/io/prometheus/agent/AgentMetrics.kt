@@ -56,6 +56,20 @@ internal class AgentMetrics(
       labelNames(LAUNCH_ID, AGENT_NAME)
     }
 
+  val scrapeRetryBudgetExhaustedCount =
+    counter {
+      name("agent_scrape_retry_budget_exhausted_count")
+      help("Agent scrape retries skipped because the target or agent retry budget was exhausted")
+      labelNames(LAUNCH_ID, TYPE)
+    }
+
+  val chunkSizeBytes =
+    gauge {
+      name("agent_chunk_size_bytes")
+      help("Agent chunk size in bytes of each pooled connection, lane 0 being the scrapeStream connection")
+      labelNames(LAUNCH_ID, LANE)
+    }
+
   init {
     gauge {
       name("agent_start_time_seconds")
@@ -76,5 +90,6 @@ internal class AgentMetrics(
     private const val LAUNCH_ID = "launch_id"
     private const val AGENT_NAME = "agent_name"
     private const val TYPE = "type"
+    private const val LANE = "lane"
   }
 }
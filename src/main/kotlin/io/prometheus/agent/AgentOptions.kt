@@ -25,6 +25,7 @@ import io.prometheus.common.BaseOptions
 import io.prometheus.common.EnvVars.AGENT_CONFIG
 import io.prometheus.common.EnvVars.AGENT_NAME
 import io.prometheus.common.EnvVars.CHUNK_CONTENT_SIZE_KBS
+import io.prometheus.common.EnvVars.COMPRESSION_MODE
 import io.prometheus.common.EnvVars.CONSOLIDATED
 import io.prometheus.common.EnvVars.KEEPALIVE_WITHOUT_CALLS
 import io.prometheus.common.EnvVars.MIN_GZIP_SIZE_BYTES
@@ -77,6 +78,10 @@ class AgentOptions(
   var minGzipSizeBytes = -1
     private set
 
+  @Parameter(names = ["--compression"], description = "Compression mode: application, transport or none")
+  var compressionMode = ""
+    private set
+
   @Parameter(names = ["--trust_all_x509"], description = "Disable SSL verification for https agent endpoints")
   var trustAllX509Certificates = false
     private set
@@ -128,6 +133,10 @@ class AgentOptions(
           minGzipSizeBytes = MIN_GZIP_SIZE_BYTES.getEnv(agentConfigVals.minGzipSizeBytes)
         logger.info { "minGzipSizeBytes: $minGzipSizeBytes" }
 
+        if (compressionMode.isEmpty())
+          compressionMode = COMPRESSION_MODE.getEnv(agentConfigVals.compressionMode)
+        logger.info { "compressionMode: $compressionMode" }
+
         if (overrideAuthority.isEmpty())
           overrideAuthority = OVERRIDE_AUTHORITY.getEnv(agentConfigVals.tls.overrideAuthority)
         logger.info { "overrideAuthority: $overrideAuthority" }
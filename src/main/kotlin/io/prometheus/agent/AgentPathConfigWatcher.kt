@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.github.pambrose.common.util.simpleClassName
+import com.typesafe.config.Config
+import com.typesafe.config.ConfigFactory
+import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.Agent
+import kotlinx.coroutines.runBlocking
+import java.io.Closeable
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.StandardWatchEventKinds.ENTRY_CREATE
+import java.nio.file.StandardWatchEventKinds.ENTRY_DELETE
+import java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY
+import java.nio.file.StandardWatchEventKinds.OVERFLOW
+import java.nio.file.WatchKey
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import kotlin.concurrent.thread
+
+// Watches agent.pathConfigsFile, which holds a pathConfigs list in the same HOCON or JSON form as the agent config,
+// and applies its changes to the registered paths without a restart. Changes that arrive within
+// pathConfigsReloadMillis of each other are applied as one batch.
+internal class AgentPathConfigWatcher(
+  private val agent: Agent,
+  filename: String,
+) : Closeable {
+  private val file = Paths.get(filename).toAbsolutePath()
+  private val reloadMillis = agent.agentConfigVals.pathConfigsReloadMillis.toLong()
+
+  // The directory is watched, since editors and ConfigMap updates replace the file rather than modify it
+  private val watchService = file.fileSystem.newWatchService()
+
+  init {
+    file.parent.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE)
+    logger.info { "Watching $file for path configs" }
+    // Loaded before the first connection, so the initial registration includes these paths
+    reload()
+    thread(isDaemon = true, name = "path-config-watcher") { watch() }
+  }
+
+  private fun watch() {
+    try {
+      while (true) {
+        if (!watchService.take().hasFileEvent())
+          continue
+        // Gather the rest of a burst of changes
+        while (true) {
+          val key = watchService.poll(reloadMillis, MILLISECONDS) ?: break
+          key.hasFileEvent()
+        }
+        reload()
+      }
+    } catch (_: ClosedWatchServiceException) {
+      // The agent is shutting down
+    } catch (_: InterruptedException) {
+      // The agent is shutting down
+    }
+  }
+
+  // Other files in the directory are ignored. An overflow may have dropped an event for the file.
+  private fun WatchKey.hasFileEvent(): Boolean {
+    val events = pollEvents()
+    reset()
+    return events.any { it.kind() == OVERFLOW || it.context() == file.fileName }
+  }
+
+  private fun reload() {
+    runCatching {
+      // A missing file holds no paths, so deleting it unregisters them
+      val configs =
+        if (Files.exists(file))
+          ConfigFactory.parseFile(file.toFile()).resolve().getConfigList(PATH_CONFIGS)
+        else
+          emptyList<Config>()
+      runBlocking { agent.pathManager.updateFilePathConfigs(configs) }
+    }.onFailure { e ->
+      // The current paths stay registered until the file can be read again
+      logger.error { "Unable to apply path configs from $file - ${e.simpleClassName}: ${e.message}" }
+    }
+  }
+
+  override fun close() {
+    watchService.close()
+  }
+
+  companion object {
+    private val logger = KotlinLogging.logger {}
+    private const val PATH_CONFIGS = "pathConfigs"
+  }
+}
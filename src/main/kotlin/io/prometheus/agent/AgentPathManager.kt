@@ -21,10 +21,15 @@ package io.prometheus.agent
 import com.github.pambrose.common.util.isNotNull
 import com.github.pambrose.common.util.isNull
 import com.google.common.collect.Maps.newConcurrentMap
+import com.typesafe.config.Config
 import io.github.oshai.kotlinlogging.KotlinLogging
+import io.grpc.Status
+import io.grpc.StatusException
 import io.prometheus.Agent
 import io.prometheus.common.Messages.EMPTY_PATH_MSG
 import io.prometheus.common.Utils.defaultEmptyJsonObject
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 
 internal class AgentPathManager(
   private val agent: Agent,
@@ -34,7 +39,7 @@ internal class AgentPathManager(
 
   operator fun get(path: String): PathContext? = pathContextMap[path]
 
-  fun clear() = pathContextMap.clear()
+  val pathContextSize: Int get() = pathContextMap.size
 
   fun pathMapSize(): Int = agent.grpcService.pathMapSize()
 
@@ -52,16 +57,94 @@ internal class AgentPathManager(
         logger.info { "Proxy path /${it[PATH]} will be assigned to ${it[URL]} with labels ${it[LABELS]}" }
       }
 
+  // Path configs read from agent.pathConfigsFile, which can change while the agent runs
+  @Volatile
+  private var filePathConfigs: List<Map<String, String?>> = emptyList()
+
+  private val allPathConfigs: List<Map<String, String?>>
+    get() = pathConfigs + filePathConfigs
+
+  // Paths added with registerPath(), which are kept across config changes and new sessions
+  private val apiPathConfigs = newConcurrentMap<String, PathConfig>()
+
+  // Serializes full registrations and incremental updates of the registered paths
+  private val registrationMutex = Mutex()
+
+  // A new session starts without any paths, so those from an earlier connection are registered again
   suspend fun registerPaths() =
-    pathConfigs.forEach {
+    registrationMutex.withLock {
+      pathContextMap.clear()
+      registerPathConfigs(desiredPathConfigs().values.toList())
+    }
+
+  // Registers and unregisters paths until the proxy has exactly the configured and registerPath() ones
+  suspend fun syncPaths() =
+    registrationMutex.withLock {
+      val desired = desiredPathConfigs()
+      val removed = pathContextMap.keys.filter { it !in desired }
+      val changed =
+        desired.values.filter { config ->
+          pathContextMap[config.path]?.let { it.url == config.url && it.labels == config.labels } != true
+        }
+      removed.forEach { unregisterPathOnProxy(it) }
+      registerPathConfigs(changed)
+      if (removed.isNotEmpty() || changed.isNotEmpty())
+        logger.info { "Synced paths: ${changed.size} registered, ${removed.size} unregistered" }
+    }
+
+  suspend fun updateFilePathConfigs(configs: List<Config>) {
+    filePathConfigs =
+      configs.map {
+        mapOf(
+          NAME to """"${it.getString(NAME)}"""",
+          PATH to it.getString(PATH),
+          URL to it.getString(URL),
+          LABELS to if (it.hasPath(LABELS)) it.getString(LABELS) else "{}",
+        )
+      }
+    // Paths are registered with the rest once connected
+    if (agent.agentId.isNotEmpty())
+      syncPaths()
+  }
+
+  private fun desiredPathConfigs(): Map<String, PathConfig> =
+    (configuredPathConfigs() + apiPathConfigs.values).associateBy { it.path }
+
+  private fun configuredPathConfigs(): List<PathConfig> =
+    allPathConfigs.mapNotNull {
       val path = it[PATH]
       val url = it[URL]
       val labels = it[LABELS]
-      if (path.isNotNull() && url.isNotNull() && labels.isNotNull())
-        registerPath(path, url, labels)
-      else
+      if (path.isNotNull() && url.isNotNull() && labels.isNotNull()) {
+        require(path.isNotEmpty()) { EMPTY_PATH_MSG }
+        require(url.isNotEmpty()) { "Empty URL" }
+        PathConfig(path.removePrefix("/"), url, labels.defaultEmptyJsonObject())
+      } else {
         logger.error { "Null path/url/labels value: $path/$url/$labels" }
+        null
+      }
+    }
+
+  private suspend fun registerPathConfigs(registrations: List<PathConfig>) {
+    try {
+      registrations.chunked(PATH_BATCH_SIZE).forEach { registerPathBatch(it) }
+    } catch (e: StatusException) {
+      if (e.status.code != Status.Code.UNIMPLEMENTED)
+        throw e
+      // Proxies that predate registerPaths() take one path per call
+      logger.info { "Proxy does not support batch path registration, registering paths individually" }
+      registrations.forEach { registerPathOnProxy(it) }
     }
+  }
+
+  private suspend fun registerPathBatch(registrations: List<PathConfig>) {
+    val pathIds = agent.grpcService.registerPathsOnProxy(registrations.map { it.path to it.labels }).pathIdsList
+    registrations.forEachIndexed { i, (path, url, labelsJson) ->
+      if (!agent.isTestMode)
+        logger.info { "Registered $url as /$path with labels $labelsJson" }
+      pathContextMap[path] = PathContext(pathIds[i], path, url, labelsJson)
+    }
+  }
 
   suspend fun registerPath(
     pathVal: String,
@@ -72,19 +155,36 @@ internal class AgentPathManager(
     require(url.isNotEmpty()) { "Empty URL" }
 
     val path = if (pathVal.startsWith("/")) pathVal.substring(1) else pathVal
-    val labelsJson = labels.defaultEmptyJsonObject()
-    val pathId = agent.grpcService.registerPathOnProxy(path, labelsJson).pathId
-    if (!agent.isTestMode)
-      logger.info { "Registered $url as /$path with labels $labelsJson" }
-    pathContextMap[path] = PathContext(pathId, path, url, labelsJson)
+    val pathConfig = PathConfig(path, url, labels.defaultEmptyJsonObject())
+    registrationMutex.withLock {
+      registerPathOnProxy(pathConfig)
+      apiPathConfigs[path] = pathConfig
+    }
   }
 
   suspend fun unregisterPath(pathVal: String) {
     require(pathVal.isNotEmpty()) { EMPTY_PATH_MSG }
 
     val path = if (pathVal.startsWith("/")) pathVal.substring(1) else pathVal
+    registrationMutex.withLock {
+      apiPathConfigs.remove(path)
+      unregisterPathOnProxy(path)
+    }
+  }
+
+  private suspend fun registerPathOnProxy(pathConfig: PathConfig) {
+    val (path, url, labelsJson) = pathConfig
+    val pathId = agent.grpcService.registerPathOnProxy(path, labelsJson).pathId
+    if (!agent.isTestMode)
+      logger.info { "Registered $url as /$path with labels $labelsJson" }
+    pathContextMap[path] = PathContext(pathId, path, url, labelsJson)
+  }
+
+  private suspend fun unregisterPathOnProxy(path: String) {
     agent.grpcService.unregisterPathOnProxy(path)
     val pathContext = pathContextMap.remove(path)
+    agent.dictionaryManager.removePath(path)
+    agent.deltaManager.removePath(path)
     when {
       pathContext.isNull() -> logger.info { "No path value /$path found in pathContextMap when unregistering" }
       !agent.isTestMode -> logger.info { "Unregistered /$path for ${pathContext.url}" }
@@ -92,10 +192,11 @@ internal class AgentPathManager(
   }
 
   fun toPlainText(): String {
-    val maxName = pathConfigs.maxOfOrNull { it[NAME].orEmpty().length } ?: 0
-    val maxPath = pathConfigs.maxOfOrNull { it[PATH].orEmpty().length } ?: 0
+    val configs = allPathConfigs
+    val maxName = configs.maxOfOrNull { it[NAME].orEmpty().length } ?: 0
+    val maxPath = configs.maxOfOrNull { it[PATH].orEmpty().length } ?: 0
     return "Agent Path Configs:\n" + "Name".padEnd(maxName + 1) + "Path".padEnd(maxPath + 2) + "URL\n" +
-      pathConfigs.joinToString("\n") { c -> "${c[NAME]?.padEnd(maxName)} /${c[PATH]?.padEnd(maxPath)} ${c[URL]}" }
+      configs.joinToString("\n") { c -> "${c[NAME]?.padEnd(maxName)} /${c[PATH]?.padEnd(maxPath)} ${c[URL]}" }
   }
 
   companion object {
@@ -104,8 +205,17 @@ internal class AgentPathManager(
     private const val PATH = "path"
     private const val URL = "url"
     private const val LABELS = "labels"
+
+    // Keeps each registerPaths() request well under the 4MB gRPC message limit
+    private const val PATH_BATCH_SIZE = 1000
   }
 
+  private data class PathConfig(
+    val path: String,
+    val url: String,
+    val labels: String,
+  )
+
   data class PathContext(
     val pathId: Long,
     val path: String,
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import io.prometheus.common.GrpcObjects.newScrapeResponseChunk
+import io.prometheus.common.GrpcObjects.newScrapeResponseSummary
+import io.prometheus.common.ScrapeResults
+import io.prometheus.grpc.ChunkedScrapeResponse
+import java.util.zip.CRC32
+
+// A chunked result in progress, sent a chunk at a time so several can be interleaved on one stream
+internal class ChunkedTransfer(
+  scrapeResults: ScrapeResults,
+  // The pool connection carrying the transfer, which keeps its header, chunks and summary in order
+  val lane: Int,
+) {
+  val scrapeId = scrapeResults.scrapeId
+  private val content = if (scrapeResults.zipped) scrapeResults.contentAsZipped else scrapeResults.contentAsBytes
+  private val checksum = CRC32()
+  private var totalChunkCount = 0
+  private var offset = 0
+
+  val isComplete: Boolean
+    get() = offset >= content.size
+
+  fun nextChunk(chunkSize: Int): ChunkedScrapeResponse {
+    val readByteCount = minOf(chunkSize, content.size - offset)
+    totalChunkCount++
+    checksum.update(content, offset, readByteCount)
+    return newScrapeResponseChunk(scrapeId, totalChunkCount, readByteCount, checksum, content, offset)
+      .also { offset += readByteCount }
+  }
+
+  fun summary(): ChunkedScrapeResponse = newScrapeResponseSummary(scrapeId, totalChunkCount, offset, checksum)
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+internal enum class CompressionMode {
+  // Scrape content is compressed by the agent, with the codec negotiated at registration, and decompressed by the proxy
+  APPLICATION,
+
+  // gRPC message compression (grpc-encoding: gzip) on messages above minGzipSizeBytes
+  TRANSPORT,
+
+  NONE,
+  ;
+
+  companion object {
+    fun fromString(mode: String): CompressionMode =
+      entries.firstOrNull { it.name.equals(mode.trim(), ignoreCase = true) }
+        ?: throw IllegalArgumentException("Invalid compressionMode: $mode (use application, transport or none)")
+  }
+}
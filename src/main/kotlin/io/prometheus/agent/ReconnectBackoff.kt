@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import kotlin.random.Random
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+
+// Decorrelated jitter backoff: each pause is drawn between minPause and three times the previous pause,
+// capped at maxPause. Agents that lose the same proxy spread their reconnects out instead of retrying in lockstep.
+internal class ReconnectBackoff(
+  private val minPause: Duration,
+  maxPause: Duration,
+  private val random: Random = Random.Default,
+) {
+  private val maxPause = maxPause.coerceAtLeast(minPause)
+  private var lastPause = minPause
+  private var retryHint: Duration? = null
+
+  @Synchronized
+  fun nextPause(): Duration {
+    val upper = (lastPause * 3).coerceAtMost(maxPause)
+    lastPause =
+      if (upper <= minPause)
+        minPause
+      else
+        random.nextLong(minPause.inWholeMilliseconds, upper.inWholeMilliseconds + 1).milliseconds
+    // A hint from the proxy is a floor, and the jitter on top keeps hinted agents from retrying together
+    return (retryHint?.let { it + lastPause } ?: lastPause).also { retryHint = null }
+  }
+
+  @Synchronized
+  fun retryAfter(hint: Duration) {
+    retryHint = hint
+  }
+
+  // Called once a connection is established
+  @Synchronized
+  fun reset() {
+    lastPause = minPause
+    retryHint = null
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.agent
+
+import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
+import com.google.common.collect.Maps.newConcurrentMap
+import io.ktor.http.Url
+import io.prometheus.Agent
+import kotlin.time.Duration.Companion.minutes
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource.Monotonic
+
+// Token buckets capping scrape retries at percent of recent successful scrapes, for each target and across
+// the agent. Each success deposits a fraction of a token and each retry withdraws a whole one. The buckets
+// are capped, so a target that keeps failing soon runs out of retries.
+internal class ScrapeRetryBudget(
+  private val enabled: Boolean,
+  percent: Int,
+  targetMaxTokens: Int,
+  agentMaxTokens: Int,
+  private val exhausted: (String) -> Unit = {},
+) {
+  constructor(agent: Agent) : this(
+    enabled = agent.agentConfigVals.scrapeRetryBudgetEnabled,
+    percent = agent.agentConfigVals.scrapeRetryBudgetPercent,
+    targetMaxTokens = agent.agentConfigVals.scrapeRetryBudgetMaxTokens,
+    agentMaxTokens = agent.agentConfigVals.scrapeRetryBudgetAgentMaxTokens,
+    exhausted = { type -> agent.metrics { scrapeRetryBudgetExhaustedCount.labels(agent.launchId, type).inc() } },
+  )
+
+  private val deposit = percent / 100.0
+  private val targetMaxTokens = targetMaxTokens.toDouble()
+  private val agentBucket = TokenBucket(agentMaxTokens.toDouble())
+
+  // Map scheme, host, port and path of a target to its bucket
+  private val targetBuckets = newConcurrentMap<String, TokenBucket>()
+  private var lastSweepMark: TimeMark by nonNullableReference(Monotonic.markNow())
+
+  fun recordSuccess(url: Url) {
+    if (enabled) {
+      agentBucket.deposit(deposit)
+      targetBucket(url)?.deposit(deposit)
+    }
+  }
+
+  // Returns false if either the target or the agent budget is exhausted
+  fun tryRetry(url: Url): Boolean {
+    if (!enabled)
+      return true
+
+    val targetBucket = targetBucket(url)
+    if (targetBucket?.tryWithdraw() == false) {
+      exhausted(TARGET)
+      return false
+    }
+    if (!agentBucket.tryWithdraw()) {
+      targetBucket?.deposit(1.0)
+      exhausted(AGENT)
+      return false
+    }
+    return true
+  }
+
+  // Templated paths can reach any number of targets, so buckets of idle targets are dropped, and targets
+  // beyond MAX_TARGETS are held to the agent budget alone
+  private fun targetBucket(url: Url): TokenBucket? {
+    evictIdleBuckets()
+    val key = "${url.protocol.name}://${url.host}:${url.port}${url.encodedPath}"
+    val bucket =
+      targetBuckets[key]
+        ?: targetBuckets.takeIf { it.size < MAX_TARGETS }?.computeIfAbsent(key) { TokenBucket(targetMaxTokens) }
+    return bucket?.also { it.lastUseMark = Monotonic.markNow() }
+  }
+
+  private fun evictIdleBuckets() {
+    if (lastSweepMark.elapsedNow() > TARGET_IDLE_TIME) {
+      lastSweepMark = Monotonic.markNow()
+      targetBuckets.values.removeIf { it.lastUseMark.elapsedNow() > TARGET_IDLE_TIME }
+    }
+  }
+
+  // Buckets start full, so the first failures of a new target can still be retried
+  private class TokenBucket(
+    private val maxTokens: Double,
+  ) {
+    private var tokens = maxTokens
+
+    @Volatile
+    var lastUseMark: TimeMark = Monotonic.markNow()
+
+    @Synchronized
+    fun deposit(amount: Double) {
+      tokens = (tokens + amount).coerceAtMost(maxTokens)
+    }
+
+    @Synchronized
+    fun tryWithdraw(): Boolean = (tokens >= 1.0).also { if (it) tokens -= 1.0 }
+  }
+
+  companion object {
+    private const val TARGET = "target"
+    private const val AGENT = "agent"
+    internal const val MAX_TARGETS = 1_000
+    private val TARGET_IDLE_TIME = 10.minutes
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import java.util.concurrent.locks.StampedLock
+
+// A concurrent map keyed by primitive longs, so scrape_id lookups do not box.
+// Keys are spread across independently locked segments, each an open-addressing table
+// with linear probing and backward-shift deletion (no tombstones). Writers take a segment's
+// write lock, while get() reads optimistically and only locks if a write overlapped it.
+internal class ConcurrentLongMap<V : Any>(
+  concurrencyLevel: Int = DEFAULT_CONCURRENCY_LEVEL,
+  initialCapacity: Int = DEFAULT_INITIAL_CAPACITY,
+) {
+  private val segmentShift: Int
+  private val segments: Array<Segment<V>>
+
+  init {
+    require(concurrencyLevel > 0) { "Invalid concurrencyLevel: $concurrencyLevel" }
+    require(initialCapacity >= 0) { "Invalid initialCapacity: $initialCapacity" }
+
+    val segmentCount = Integer.highestOneBit((concurrencyLevel - 1).coerceAtLeast(1)) shl 1
+    val segmentCapacity = (initialCapacity / segmentCount).coerceAtLeast(MIN_SEGMENT_CAPACITY)
+    segmentShift = Long.SIZE_BITS - Integer.numberOfTrailingZeros(segmentCount)
+    segments = Array(segmentCount) { Segment(segmentCapacity) }
+  }
+
+  val size: Int
+    get() = segments.sumOf { it.size }
+
+  fun isEmpty() = segments.all { it.size == 0 }
+
+  operator fun get(key: Long): V? = hash(key).let { segmentFor(it).get(key, it) }
+
+  fun containsKey(key: Long) = get(key) != null
+
+  fun put(
+    key: Long,
+    value: V,
+  ): V? = hash(key).let { segmentFor(it).put(key, value, it) }
+
+  operator fun set(
+    key: Long,
+    value: V,
+  ) {
+    put(key, value)
+  }
+
+  fun remove(key: Long): V? = hash(key).let { segmentFor(it).remove(key, it) }
+
+  // Removes the entry only if it is currently mapped to value
+  fun remove(
+    key: Long,
+    value: V,
+  ): Boolean = hash(key).let { segmentFor(it).remove(key, value, it) }
+
+  fun clear() = segments.forEach { it.clear() }
+
+  // Iterates over a per-segment snapshot, so action may safely modify the map
+  fun forEach(action: (Long, V) -> Unit) =
+    segments.forEach { segment ->
+      segment.snapshot().forEach { (k, v) -> action(k, v) }
+    }
+
+  val values: List<V>
+    get() = buildList { segments.forEach { segment -> segment.snapshot().forEach { add(it.second) } } }
+
+  private fun segmentFor(hash: Long) = segments[(hash ushr segmentShift).toInt()]
+
+  private class Segment<V : Any>(
+    initialCapacity: Int,
+  ) {
+    private val lock = StampedLock()
+    private var keys = LongArray(tableSizeFor(initialCapacity))
+
+    // A null value marks an empty slot, so every long (including 0) is a valid key
+    private var vals = arrayOfNulls<Any>(keys.size)
+    private var mask = keys.size - 1
+
+    @Volatile
+    var size = 0
+      private set
+
+    fun get(
+      key: Long,
+      hash: Long,
+    ): V? {
+      val stamp = lock.tryOptimisticRead()
+      if (stamp != 0L) {
+        val value = probe(key, hash)
+        if (lock.validate(stamp))
+          return value
+      }
+      val readStamp = lock.readLock()
+      try {
+        return probe(key, hash)
+      } finally {
+        lock.unlockRead(readStamp)
+      }
+    }
+
+    // May run concurrently with a writer, so it reads the arrays once, derives the mask from them,
+    // and probes at most one full table. A torn result is discarded when the stamp fails to validate.
+    private fun probe(
+      key: Long,
+      hash: Long,
+    ): V? {
+      val keys = keys
+      val vals = vals
+      if (keys.size != vals.size)
+        return null
+      val mask = keys.size - 1
+      var index = hash.toInt() and mask
+      repeat(keys.size) {
+        val value = vals[index] ?: return null
+        if (keys[index] == key) {
+          @Suppress("UNCHECKED_CAST")
+          return value as V
+        }
+        index = (index + 1) and mask
+      }
+      return null
+    }
+
+    private inline fun <T> write(block: () -> T): T {
+      val stamp = lock.writeLock()
+      try {
+        return block()
+      } finally {
+        lock.unlockWrite(stamp)
+      }
+    }
+
+    fun put(
+      key: Long,
+      value: V,
+      hash: Long,
+    ): V? = write { insert(key, value, hash) }
+
+    private fun insert(
+      key: Long,
+      value: V,
+      hash: Long,
+    ): V? {
+      var index = hash.toInt() and mask
+      while (true) {
+        val current = vals[index]
+        when {
+          current == null -> {
+            keys[index] = key
+            vals[index] = value
+            size += 1
+            if (size > keys.size * MAX_LOAD_FACTOR)
+              resize()
+            return null
+          }
+
+          keys[index] == key -> {
+            vals[index] = value
+            @Suppress("UNCHECKED_CAST")
+            return current as V
+          }
+
+          else -> index = (index + 1) and mask
+        }
+      }
+    }
+
+    fun remove(
+      key: Long,
+      hash: Long,
+    ): V? =
+      write {
+        val index = indexOf(key, hash)
+        if (index < 0) {
+          null
+        } else {
+          @Suppress("UNCHECKED_CAST")
+          val removed = vals[index] as V
+          deleteAt(index)
+          removed
+        }
+      }
+
+    fun remove(
+      key: Long,
+      value: V,
+      hash: Long,
+    ): Boolean =
+      write {
+        val index = indexOf(key, hash)
+        if (index >= 0 && vals[index] == value) {
+          deleteAt(index)
+          true
+        } else {
+          false
+        }
+      }
+
+    fun clear() =
+      write {
+        vals.fill(null)
+        size = 0
+      }
+
+    fun snapshot(): List<Pair<Long, V>> {
+      val stamp = lock.readLock()
+      try {
+        return buildList(size) {
+          for (i in vals.indices) {
+            @Suppress("UNCHECKED_CAST")
+            vals[i]?.also { add(keys[i] to it as V) }
+          }
+        }
+      } finally {
+        lock.unlockRead(stamp)
+      }
+    }
+
+    private fun indexOf(
+      key: Long,
+      hash: Long,
+    ): Int {
+      var index = hash.toInt() and mask
+      while (vals[index] != null) {
+        if (keys[index] == key)
+          return index
+        index = (index + 1) and mask
+      }
+      return -1
+    }
+
+    // Shift later members of the probe chain back into the hole, so lookups never need tombstones
+    private fun deleteAt(slot: Int) {
+      var hole = slot
+      var index = slot
+      while (true) {
+        index = (index + 1) and mask
+        if (vals[index] == null)
+          break
+        val ideal = hash(keys[index]).toInt() and mask
+        val stays = if (hole <= index) ideal in (hole + 1)..index else ideal > hole || ideal <= index
+        if (!stays) {
+          keys[hole] = keys[index]
+          vals[hole] = vals[index]
+          hole = index
+        }
+      }
+      vals[hole] = null
+      size -= 1
+    }
+
+    private fun resize() {
+      val oldKeys = keys
+      val oldVals = vals
+      keys = LongArray(oldKeys.size * 2)
+      vals = arrayOfNulls(keys.size)
+      mask = keys.size - 1
+      for (i in oldVals.indices) {
+        val value = oldVals[i] ?: continue
+        var index = hash(oldKeys[i]).toInt() and mask
+        while (vals[index] != null)
+          index = (index + 1) and mask
+        keys[index] = oldKeys[i]
+        vals[index] = value
+      }
+    }
+  }
+
+  companion object {
+    private const val DEFAULT_CONCURRENCY_LEVEL = 16
+    private const val DEFAULT_INITIAL_CAPACITY = 256
+    private const val MIN_SEGMENT_CAPACITY = 8
+    private const val MAX_LOAD_FACTOR = 0.5
+
+    private fun tableSizeFor(capacity: Int) = Integer.highestOneBit((capacity * 2 - 1).coerceAtLeast(2)) shl 1
+
+    // Stafford variant 13 of the murmur3 finalizer. scrape_ids are sequential, so they need good mixing.
+    private fun hash(key: Long): Long {
+      var h = key
+      h = (h xor (h ushr 30)) * -0x40a7b892e31b1a47L
+      h = (h xor (h ushr 27)) * -0x6b2fb644ecceee15L
+      return h xor (h ushr 31)
+    }
+  }
+}
@@ -20,6 +20,10 @@ import com.google.protobuf.Empty
 
 internal object Constants {
   const val UNKNOWN = "Unknown"
+
+  // Protocol v2 adds the scrapeStream RPC
+  const val PROTOCOL_V1 = 1
+  const val PROTOCOL_V2 = 2
 }
 
 internal object Messages {
@@ -0,0 +1,275 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import com.github.luben.zstd.Zstd
+import com.github.luben.zstd.ZstdCompressCtx
+import com.github.luben.zstd.ZstdDecompressCtx
+import com.github.luben.zstd.ZstdDictCompress
+import com.github.luben.zstd.ZstdDictDecompress
+import com.github.luben.zstd.ZstdDictTrainer
+import io.github.oshai.kotlinlogging.KotlinLogging
+import net.jpountz.lz4.LZ4Factory
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.CRC32
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+import java.util.zip.ZipException
+
+// Compresses scrape content sent from agents to the proxy. The codec is negotiated at registerAgent.
+internal interface ContentCodec {
+  val name: String
+
+  fun compress(data: ByteArray): ByteArray
+
+  fun decompress(data: ByteArray): ByteArray
+}
+
+internal object ContentCodecs {
+  private val logger = KotlinLogging.logger {}
+
+  const val GZIP = "gzip"
+  const val DEFLATE = "deflate"
+  const val ZSTD = "zstd"
+  const val LZ4 = "lz4"
+
+  // Codecs backed by native libraries are only offered if they load on this platform
+  val available: Map<String, ContentCodec> by lazy {
+    listOf<() -> ContentCodec>({ GzipCodec }, { DeflateCodec }, { ZstdCodec }, { Lz4Codec })
+      .mapNotNull { factory ->
+        runCatching { factory().also { it.decompress(it.compress(PROBE)) } }
+          .onFailure { logger.warn { "Compression codec unavailable: ${it.message}" } }
+          .getOrNull()
+      }
+      .associateBy { it.name }
+  }
+
+  // An empty name is sent by agents and proxies that predate codec negotiation
+  fun forName(name: String): ContentCodec =
+    if (name.isEmpty())
+      GzipCodec
+    else
+      available[name] ?: throw IllegalArgumentException("Unsupported compression codec: $name")
+
+  private val PROBE = "probe".toByteArray()
+}
+
+private abstract class PooledZlibCodec(
+  private val nowrap: Boolean,
+) : ContentCodec {
+  // Deflater and Inflater hold native memory, so they are reused per thread instead of per call
+  private val deflaters = ThreadLocal.withInitial { Deflater(Deflater.DEFAULT_COMPRESSION, nowrap) }
+  private val inflaters = ThreadLocal.withInitial { Inflater(nowrap) }
+
+  protected fun deflate(
+    data: ByteArray,
+    out: ByteArrayOutputStream,
+  ) {
+    val deflater = deflaters.get().apply { reset() }
+    val buffer = ByteArray(BUFFER_SIZE)
+    deflater.setInput(data)
+    deflater.finish()
+    while (!deflater.finished()) {
+      val count = deflater.deflate(buffer)
+      out.write(buffer, 0, count)
+    }
+  }
+
+  protected fun inflate(
+    data: ByteArray,
+    offset: Int,
+    length: Int,
+  ): ByteArray {
+    val inflater = inflaters.get().apply { reset() }
+    val out = ByteArrayOutputStream(length * 4)
+    val buffer = ByteArray(BUFFER_SIZE)
+    inflater.setInput(data, offset, length)
+    while (!inflater.finished()) {
+      val count = inflater.inflate(buffer)
+      if (count == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+        throw DataFormatException("Truncated $name content")
+      out.write(buffer, 0, count)
+    }
+    return out.toByteArray()
+  }
+
+  companion object {
+    private const val BUFFER_SIZE = 16 * 1024
+  }
+}
+
+// zlib format, as used by HTTP Content-Encoding: deflate
+private object DeflateCodec : PooledZlibCodec(nowrap = false) {
+  override val name = ContentCodecs.DEFLATE
+
+  override fun compress(data: ByteArray): ByteArray =
+    ByteArrayOutputStream(data.size / 4 + 64).also { deflate(data, it) }.toByteArray()
+
+  override fun decompress(data: ByteArray): ByteArray = inflate(data, 0, data.size)
+}
+
+// RFC 1952 framing around raw deflate, compatible with GZIPOutputStream/GZIPInputStream
+private object GzipCodec : PooledZlibCodec(nowrap = true) {
+  override val name = ContentCodecs.GZIP
+
+  private const val MAGIC_1 = 0x1f
+  private const val MAGIC_2 = 0x8b
+  private const val DEFLATED = 8
+  private const val HEADER_SIZE = 10
+  private const val TRAILER_SIZE = 8
+  private const val FHCRC = 2
+  private const val FEXTRA = 4
+  private const val FNAME = 8
+  private const val FCOMMENT = 16
+  private const val OS_UNKNOWN = 0xff
+  private val HEADER =
+    byteArrayOf(MAGIC_1.toByte(), MAGIC_2.toByte(), DEFLATED.toByte(), 0, 0, 0, 0, 0, 0, OS_UNKNOWN.toByte())
+
+  override fun compress(data: ByteArray): ByteArray {
+    val out = ByteArrayOutputStream(data.size / 4 + 64)
+    out.write(HEADER)
+    deflate(data, out)
+    val crc = CRC32().apply { update(data) }.value
+    ByteBuffer.allocate(TRAILER_SIZE)
+      .order(ByteOrder.LITTLE_ENDIAN)
+      .putInt(crc.toInt())
+      .putInt(data.size)
+      .also { out.write(it.array()) }
+    return out.toByteArray()
+  }
+
+  override fun decompress(data: ByteArray): ByteArray {
+    if (data.size < HEADER_SIZE + TRAILER_SIZE ||
+      data[0].toInt() and 0xff != MAGIC_1 ||
+      data[1].toInt() and 0xff != MAGIC_2 ||
+      data[2].toInt() != DEFLATED
+    )
+      throw ZipException("Not in gzip format")
+
+    val flags = data[3].toInt()
+    var pos = HEADER_SIZE
+    if (flags and FEXTRA != 0)
+      pos += 2 + ((data[pos].toInt() and 0xff) or ((data[pos + 1].toInt() and 0xff) shl 8))
+    if (flags and FNAME != 0)
+      pos = data.indexOfZero(pos) + 1
+    if (flags and FCOMMENT != 0)
+      pos = data.indexOfZero(pos) + 1
+    if (flags and FHCRC != 0)
+      pos += 2
+
+    val content = inflate(data, pos, data.size - pos - TRAILER_SIZE)
+    val trailer = ByteBuffer.wrap(data, data.size - TRAILER_SIZE, TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+    if (trailer.getInt() != CRC32().apply { update(content) }.value.toInt())
+      throw ZipException("Corrupt gzip trailer")
+    return content
+  }
+
+  private fun ByteArray.indexOfZero(from: Int): Int {
+    for (i in from until size)
+      if (this[i].toInt() == 0)
+        return i
+    throw ZipException("Corrupt gzip header")
+  }
+}
+
+private const val ZSTD_LEVEL = 3
+
+// Both zstd compression paths write the content size into the frame header
+private fun zstdContentSize(data: ByteArray): Int {
+  val size = Zstd.getFrameContentSize(data)
+  require(size >= 0 && size <= Int.MAX_VALUE) { "Invalid zstd frame content size: $size" }
+  return size.toInt()
+}
+
+private object ZstdCodec : ContentCodec {
+  override val name = ContentCodecs.ZSTD
+
+  // Native contexts keep their workspaces between calls
+  private val compressCtxs = ThreadLocal.withInitial { ZstdCompressCtx().setLevel(ZSTD_LEVEL) }
+  private val decompressCtxs = ThreadLocal.withInitial { ZstdDecompressCtx() }
+
+  override fun compress(data: ByteArray): ByteArray = compressCtxs.get().compress(data)
+
+  override fun decompress(data: ByteArray): ByteArray = decompressCtxs.get().decompress(data, zstdContentSize(data))
+}
+
+// zstd against a dictionary trained on earlier payloads from the same path.
+// dictionaryId is assigned by the agent and is unique per agent.
+internal class ZstdDictionaryCodec(
+  val path: String,
+  val dictionaryId: Long,
+  val dictionary: ByteArray,
+) : ContentCodec {
+  override val name = ContentCodecs.ZSTD
+
+  // Digested dictionaries are thread-safe and costly to build, and each side only needs one of them
+  private val compressDict by lazy { ZstdDictCompress(dictionary, ZSTD_LEVEL) }
+  private val decompressDict by lazy { ZstdDictDecompress(dictionary) }
+
+  override fun compress(data: ByteArray): ByteArray = Zstd.compress(data, compressDict)
+
+  override fun decompress(data: ByteArray): ByteArray = Zstd.decompress(data, decompressDict, zstdContentSize(data))
+
+  companion object {
+    fun train(
+      path: String,
+      dictionaryId: Long,
+      samples: List<ByteArray>,
+      maxSize: Int,
+    ): ZstdDictionaryCodec {
+      val trainer = ZstdDictTrainer(samples.sumOf { it.size }, maxSize)
+      samples.forEach { trainer.addSample(it) }
+      return ZstdDictionaryCodec(path, dictionaryId, trainer.trainSamples())
+    }
+  }
+}
+
+// LZ4 block format prefixed with the 4-byte uncompressed length
+private object Lz4Codec : ContentCodec {
+  override val name = ContentCodecs.LZ4
+
+  private val factory = LZ4Factory.fastestInstance()
+  private val compressor = factory.fastCompressor()
+  // The safe decompressor never reads or writes past the given bounds, whatever the input
+  private val decompressor = factory.safeDecompressor()
+
+  // An LZ4 block cannot expand by more than this, so larger length prefixes are corrupt
+  private const val MAX_EXPANSION = 255L
+
+  override fun compress(data: ByteArray): ByteArray {
+    val out = ByteArray(Int.SIZE_BYTES + compressor.maxCompressedLength(data.size))
+    ByteBuffer.wrap(out).putInt(data.size)
+    val count = compressor.compress(data, 0, data.size, out, Int.SIZE_BYTES, out.size - Int.SIZE_BYTES)
+    return out.copyOf(Int.SIZE_BYTES + count)
+  }
+
+  override fun decompress(data: ByteArray): ByteArray {
+    require(data.size >= Int.SIZE_BYTES) { "Truncated lz4 content" }
+    val size = ByteBuffer.wrap(data).getInt()
+    val srcSize = data.size - Int.SIZE_BYTES
+    require(size >= 0 && size <= srcSize * MAX_EXPANSION) { "Invalid lz4 content size: $size" }
+    val out = ByteArray(size)
+    val count = decompressor.decompress(data, Int.SIZE_BYTES, srcSize, out, 0, size)
+    require(count == size) { "Corrupt lz4 content: $count of $size bytes" }
+    return out
+  }
+}
@@ -46,6 +46,7 @@ enum class EnvVars {
   SCRAPE_MAX_RETRIES,
   CHUNK_CONTENT_SIZE_KBS,
   MIN_GZIP_SIZE_BYTES,
+  COMPRESSION_MODE,
   TRUST_ALL_X509_CERTIFICATES,
 
   KEEPALIVE_WITHOUT_CALLS,
@@ -19,13 +19,43 @@
 package io.prometheus.common
 
 import com.google.protobuf.ByteString
+import com.google.protobuf.UnsafeByteOperations
+import io.grpc.Metadata
+import io.grpc.Status
+import io.grpc.StatusException
 import io.prometheus.grpc.ChunkData
 import io.prometheus.grpc.ChunkedScrapeResponse
+import io.prometheus.grpc.CompressionDictionary
 import io.prometheus.grpc.ScrapeResponse
+import io.prometheus.grpc.ScrapeResponse.ContentOneOfCase.CONTENT_AS_BYTES
+import io.prometheus.grpc.ScrapeResponse.ContentOneOfCase.CONTENT_AS_TEXT
+import io.prometheus.grpc.ScrapeResponse.ContentOneOfCase.CONTENT_AS_ZIPPED
 import io.prometheus.grpc.SummaryData
 import java.util.zip.CRC32
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
 
 internal object GrpcObjects {
+  // The standard gRPC trailer for telling a client how long to wait before retrying
+  private val RETRY_PUSHBACK_KEY: Metadata.Key<String> =
+    Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER)
+
+  fun retryLaterException(
+    description: String,
+    retryAfter: Duration,
+  ) = StatusException(
+    Status.RESOURCE_EXHAUSTED.withDescription(description),
+    Metadata().apply { put(RETRY_PUSHBACK_KEY, retryAfter.inWholeMilliseconds.toString()) },
+  )
+
+  // Returns null if the failure carries no retry hint
+  fun Throwable.retryAfter(): Duration? =
+    Status.trailersFromThrowable(this)
+      ?.get(RETRY_PUSHBACK_KEY)
+      ?.toLongOrNull()
+      ?.takeIf { it >= 0 }
+      ?.milliseconds
+
   fun ScrapeResponse.toScrapeResults() =
     ScrapeResults(
       agentId = agentId,
@@ -34,13 +64,22 @@ internal object GrpcObjects {
       statusCode = statusCode,
       contentType = contentType,
       zipped = zipped,
+      contentEncoding = contentEncoding,
+      dictionaryId = dictionaryId,
+      contentVersion = contentVersion,
+      deltaBaseVersion = deltaBaseVersion,
+      contentHash = contentHash,
+      contentUnchanged = contentUnchanged,
       failureReason = failureReason,
       url = url,
     ).also { results ->
-      if (zipped)
-        results.contentAsZipped = contentAsZipped.toByteArray()
-      else
-        results.contentAsText = contentAsText
+      when (contentOneOfCase) {
+        CONTENT_AS_ZIPPED -> results.contentAsZipped = contentAsZipped.toByteArray()
+        CONTENT_AS_BYTES -> results.contentAsBytes = contentAsBytes.toByteArray()
+        // Sent by agents that predate content_as_bytes
+        CONTENT_AS_TEXT -> results.contentAsBytes = contentAsText.toByteArray(Charsets.UTF_8)
+        else -> {}
+      }
     }
 
   fun newScrapeResponseChunk(
@@ -49,6 +88,7 @@ internal object GrpcObjects {
     readByteCount: Int,
     checksum: CRC32,
     buffer: ByteArray,
+    offset: Int = 0,
   ) = ChunkedScrapeResponse
     .newBuilder()
     .apply {
@@ -59,7 +99,7 @@ internal object GrpcObjects {
           it.chunkCount = totalChunkCount
           it.chunkByteCount = readByteCount
           it.chunkChecksum = checksum.value
-          it.chunkBytes = ByteString.copyFrom(buffer)
+          it.chunkBytes = ByteString.copyFrom(buffer, offset, readByteCount)
         }
         .build()
     }
@@ -85,4 +125,17 @@ internal object GrpcObjects {
           .build()
     }
     .build()!!
+
+  fun ZstdDictionaryCodec.toCompressionDictionary() =
+    CompressionDictionary
+      .newBuilder()
+      .also {
+        it.path = path
+        it.dictionaryId = dictionaryId
+        it.dictionary = UnsafeByteOperations.unsafeWrap(dictionary)
+      }
+      .build()!!
+
+  fun CompressionDictionary.toZstdDictionaryCodec() =
+    ZstdDictionaryCodec(path, dictionaryId, dictionary.toByteArray())
 }
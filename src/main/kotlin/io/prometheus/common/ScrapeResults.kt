@@ -20,7 +20,8 @@ package io.prometheus.common
 
 import com.github.pambrose.common.util.EMPTY_BYTE_ARRAY
 import com.github.pambrose.common.util.simpleClassName
-import com.google.protobuf.ByteString
+import com.google.common.hash.Hashing
+import com.google.protobuf.UnsafeByteOperations
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.ktor.client.plugins.HttpRequestTimeoutException
 import io.ktor.http.HttpStatusCode.Companion.NotFound
@@ -42,13 +43,26 @@ internal class ScrapeResults(
   var statusCode: Int = NotFound.value,
   var contentType: String = "",
   var zipped: Boolean = false,
-  var contentAsText: String = "",
+  var contentAsBytes: ByteArray = EMPTY_BYTE_ARRAY,
   var contentAsZipped: ByteArray = EMPTY_BYTE_ARRAY,
+  // Codec used for contentAsZipped, "" for gzip
+  var contentEncoding: String = "",
+  // Non-zero when contentAsZipped was compressed against a per-path dictionary
+  var dictionaryId: Long = 0L,
+  var contentVersion: Long = 0L,
+  // Non-zero when the content is a SeriesDelta against the proxy's copy of that version
+  var deltaBaseVersion: Long = 0L,
+  var contentHash: Long = 0L,
+  // True when the content is omitted because the proxy already holds it
+  var contentUnchanged: Boolean = false,
   var failureReason: String = "",
   var url: String = "",
 ) {
   val scrapeCounterMsg = AtomicReference("")
 
+  // Set by the agent, so the dictionary can be shipped ahead of the first response using it
+  var dictionaryCodec: ZstdDictionaryCodec? = null
+
   fun setDebugInfo(
     url: String,
     failureReason: String = "",
@@ -57,7 +71,8 @@ internal class ScrapeResults(
     this.failureReason = failureReason
   }
 
-  fun toScrapeResponse() =
+  // v1 proxies only understand content_as_text
+  fun toScrapeResponse(bytesSupported: Boolean) =
     ScrapeResponse
       .newBuilder()
       .also {
@@ -67,10 +82,21 @@ internal class ScrapeResults(
         it.statusCode = statusCode
         it.contentType = contentType
         it.zipped = zipped
-        if (zipped)
-          it.contentAsZipped = ByteString.copyFrom(contentAsZipped)
-        else
-          it.contentAsText = contentAsText
+        // The content arrays are never modified after a fetch, so they are wrapped rather than copied
+        when {
+          zipped -> {
+            it.contentAsZipped = UnsafeByteOperations.unsafeWrap(contentAsZipped)
+            it.contentEncoding = contentEncoding
+            it.dictionaryId = dictionaryId
+          }
+
+          bytesSupported -> it.contentAsBytes = UnsafeByteOperations.unsafeWrap(contentAsBytes)
+          else -> it.contentAsText = String(contentAsBytes, Charsets.UTF_8)
+        }
+        it.contentVersion = contentVersion
+        it.deltaBaseVersion = deltaBaseVersion
+        it.contentHash = contentHash
+        it.contentUnchanged = contentUnchanged
         it.failureReason = failureReason
         it.url = url
       }
@@ -90,12 +116,20 @@ internal class ScrapeResults(
             it.headerFailureReason = failureReason
             it.headerUrl = url
             it.headerContentType = contentType
+            it.headerEncoding = if (zipped) contentEncoding else IDENTITY_ENCODING
+            it.headerDictionaryId = dictionaryId
+            it.headerContentVersion = contentVersion
+            it.headerDeltaBaseVersion = deltaBaseVersion
+            it.headerContentHash = contentHash
           }
           .build()
       }.build()!!
 
   companion object {
     private val logger = KotlinLogging.logger {}
+    internal const val IDENTITY_ENCODING = "identity"
+
+    fun contentHash(content: ByteArray): Long = Hashing.murmur3_128().hashBytes(content).asLong()
 
     fun errorCode(
       e: Throwable,
@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.common
+
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.util.zip.CRC32
+
+// Series-level delta between two text expositions of the same path.
+// Each line is treated as a series key (name and labels, or the whole line for comments) and a value.
+// The delta copies runs of unchanged lines from the base, skips removed ones, sends only the new value
+// for series whose value changed, and sends added lines in full.
+internal object SeriesDelta {
+  private const val FORMAT_VERSION = 1
+  private const val COPY = 0
+  private const val SKIP = 1
+  private const val VALUE = 2
+  private const val INSERT = 3
+
+  // Returns null if either exposition is not valid UTF-8 text
+  fun encode(
+    base: ByteArray,
+    current: ByteArray,
+  ): ByteArray? {
+    val baseLines = base.toLines() ?: return null
+    val lines = current.toLines() ?: return null
+    val baseKeys = Array(baseLines.size) { seriesKey(baseLines[it]) }
+    val baseIndex = HashMap<String, Int>(baseKeys.size * 2)
+    baseKeys.forEachIndexed { i, key -> baseIndex.putIfAbsent(key, i) }
+
+    val baos = ByteArrayOutputStream(current.size / 8)
+    DataOutputStream(baos).use { out ->
+      out.writeByte(FORMAT_VERSION)
+      out.writeInt(CRC32().apply { update(current) }.value.toInt())
+
+      var cursor = 0
+      var copies = 0
+
+      fun flushCopies() {
+        if (copies > 0) {
+          out.writeByte(COPY)
+          out.writeInt(copies)
+          copies = 0
+        }
+      }
+
+      for (line in lines) {
+        val key = seriesKey(line)
+        // Realign with the base when series were removed ahead of this one
+        if (cursor < baseKeys.size && baseKeys[cursor] != key) {
+          val index = baseIndex[key]
+          if (index != null && index > cursor) {
+            flushCopies()
+            out.writeByte(SKIP)
+            out.writeInt(index - cursor)
+            cursor = index
+          }
+        }
+
+        if (cursor < baseKeys.size && baseKeys[cursor] == key) {
+          if (baseLines[cursor] == line) {
+            copies++
+          } else {
+            flushCopies()
+            out.writeByte(VALUE)
+            out.writeString(line.substring(key.length))
+          }
+          cursor++
+        } else {
+          flushCopies()
+          out.writeByte(INSERT)
+          out.writeString(line)
+        }
+      }
+      flushCopies()
+    }
+    return baos.toByteArray()
+  }
+
+  // Throws IllegalStateException if the delta was not produced against this base
+  fun decode(
+    base: ByteArray,
+    delta: ByteArray,
+  ): ByteArray {
+    val baseLines = checkNotNull(base.toLines()) { "Invalid delta base" }
+    val lines = ArrayList<String>(baseLines.size)
+    var cursor = 0
+    val checksum =
+      DataInputStream(delta.inputStream()).use { input ->
+        check(input.readUnsignedByte() == FORMAT_VERSION) { "Unsupported delta format" }
+        val expected = input.readInt()
+        while (input.available() > 0) {
+          when (input.readUnsignedByte()) {
+            COPY -> {
+              val count = input.readInt()
+              check(cursor + count <= baseLines.size) { "Delta copies past the end of the base" }
+              lines.addAll(baseLines.subList(cursor, cursor + count))
+              cursor += count
+            }
+
+            SKIP -> cursor += input.readInt()
+
+            VALUE -> {
+              check(cursor < baseLines.size) { "Delta value past the end of the base" }
+              lines += seriesKey(baseLines[cursor++]) + input.readString()
+            }
+
+            INSERT -> lines += input.readString()
+
+            else -> error("Invalid delta op")
+          }
+        }
+        expected
+      }
+
+    return lines.joinToString("\n").toByteArray(Charsets.UTF_8)
+      .also { check(CRC32().apply { update(it) }.value.toInt() == checksum) { "Delta checksum mismatch" } }
+  }
+
+  // The label set ends at the last '}', since values and timestamps never contain one
+  private fun seriesKey(line: String): String =
+    if (line.isEmpty() || line[0] == '#') {
+      line
+    } else {
+      val brace = line.lastIndexOf('}')
+      val end = if (brace >= 0) brace + 1 else line.indexOf(' ').let { if (it < 0) line.length else it }
+      line.substring(0, end)
+    }
+
+  // A strict decoder, so binary content is rejected rather than mangled
+  private fun ByteArray.toLines(): List<String>? =
+    runCatching { Charsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(this)).toString().split('\n') }.getOrNull()
+
+  private fun DataOutputStream.writeString(s: String) {
+    val bytes = s.toByteArray(Charsets.UTF_8)
+    writeInt(bytes.size)
+    write(bytes)
+  }
+
+  private fun DataInputStream.readString(): String = String(ByteArray(readInt()).also { readFully(it) }, Charsets.UTF_8)
+}
@@ -19,4 +19,5 @@ package io.prometheus.common
 @Suppress("unused")
 object TypeAliases
 
-internal typealias ScrapeRequestAction = suspend () -> ScrapeResults
+// Returns null when the request is dropped without a fetch
+internal typealias ScrapeRequestAction = suspend () -> ScrapeResults?
@@ -21,13 +21,20 @@ package io.prometheus.proxy
 import com.github.pambrose.common.delegate.AtomicDelegates.atomicBoolean
 import com.github.pambrose.common.delegate.AtomicDelegates.nonNullableReference
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
+import com.google.common.collect.Maps.newConcurrentMap
+import io.prometheus.common.ConcurrentLongMap
+import io.prometheus.common.ZstdDictionaryCodec
 import io.prometheus.grpc.RegisterAgentRequest
+import io.prometheus.proxy.ProxyConstants.AGENT_DISCONNECTED_MSG
 import kotlinx.coroutines.channels.Channel
-import kotlin.concurrent.atomics.AtomicInt
+import kotlinx.coroutines.sync.Semaphore
+import java.security.MessageDigest
+import java.util.UUID
+import kotlin.concurrent.atomics.AtomicBoolean
 import kotlin.concurrent.atomics.AtomicLong
+import kotlin.concurrent.atomics.AtomicReference
 import kotlin.concurrent.atomics.incrementAndFetch
-import kotlin.concurrent.atomics.minusAssign
-import kotlin.concurrent.atomics.plusAssign
+import kotlin.time.Duration
 import kotlin.time.TimeMark
 import kotlin.time.TimeSource.Monotonic
 
@@ -36,13 +43,42 @@ internal class AgentContext(
 ) {
   val agentId = AGENT_ID_GENERATOR.incrementAndFetch().toString()
 
-  private val scrapeRequestChannel = Channel<ScrapeRequestWrapper>(Channel.UNLIMITED)
-  private val channelBacklogSize = AtomicInt(0)
+  // Presented by the agent on a later registerAgent to take over this context's paths
+  val sessionToken: String = UUID.randomUUID().toString()
+
+  // Presented by the agent on its extra pool connections to attach them to this context
+  val attachToken: String = UUID.randomUUID().toString()
+
+  fun isAttachToken(token: String) = MessageDigest.isEqual(attachToken.toByteArray(), token.toByteArray())
+
+  private val scrapeRequestQueue = ScrapeRequestQueue()
+
+  // Ids of abandoned scrapes for the agent to cancel. Only protocol v2 scrapeStream connections carry them.
+  private val cancelChannel = Channel<Long>(Channel.UNLIMITED)
+  var cancelSupported by atomicBoolean(false)
+
+  // Map scrape_id to the scrapes waiting on this agent, so they can be failed together on disconnect
+  private val inFlightScrapes = ConcurrentLongMap<ScrapeRequestWrapper>(concurrencyLevel = 4, initialCapacity = 32)
+
+  // Dictionaries shipped on this agent's stream, keyed by dictionary_id. The previous version of each path's
+  // dictionary is kept, because responses compressed with it can still arrive after a retrained one.
+  private val compressionDictionaries = ConcurrentLongMap<ZstdDictionaryCodec>(2, 8)
+  private val dictionaryVersions = mutableMapOf<String, ArrayDeque<Long>>()
+
+  // Recent full expositions of each scrape target, newest first, used as bases for delta transfers
+  private val deltaBases = newConcurrentMap<String, List<DeltaBase>>()
 
   private val clock = Monotonic
   private var lastActivityTimeMark: TimeMark by nonNullableReference(clock.markNow())
   private var lastRequestTimeMark: TimeMark by nonNullableReference(clock.markNow())
   private var valid by atomicBoolean(true)
+  private val parked = AtomicBoolean(false)
+
+  // Cleared once, by registerAgent or by removal, so AgentContextManager can count pending registrations
+  private val awaitingRegistration = AtomicBoolean(true)
+
+  // Admission permit taken at the start of the connection and given back when registration ends
+  private val admissionPermit = AtomicReference<Semaphore?>(null)
 
   private var launchId: String by nonNullableReference("Unassigned")
   var hostName: String by nonNullableReference("Unassigned")
@@ -51,6 +87,8 @@ internal class AgentContext(
     private set
   var consolidated: Boolean by nonNullableReference(false)
     private set
+  var registered by atomicBoolean(false)
+    private set
 
   internal val desc: String
     get() = if (consolidated) "consolidated " else ""
@@ -62,7 +100,13 @@ internal class AgentContext(
     get() = lastActivityTimeMark.elapsedNow()
 
   val scrapeRequestBacklogSize: Int
-    get() = channelBacklogSize.load()
+    get() = scrapeRequestQueue.size
+
+  val inFlightScrapeCount: Int
+    get() = inFlightScrapes.size
+
+  val isParked: Boolean
+    get() = parked.load()
 
   init {
     markActivityTime(true)
@@ -73,28 +117,127 @@ internal class AgentContext(
     agentName = request.agentName
     hostName = request.hostName
     consolidated = request.consolidated
+    registered = true
+  }
+
+  fun writeScrapeRequest(scrapeRequest: ScrapeRequestWrapper) {
+    if (!scrapeRequestQueue.offer(scrapeRequest))
+      scrapeRequest.markFailed(AGENT_DISCONNECTED_MSG)
   }
 
-  suspend fun writeScrapeRequest(scrapeRequest: ScrapeRequestWrapper) {
-    scrapeRequestChannel.send(scrapeRequest)
-    channelBacklogSize += 1
+  private fun addInFlightScrape(scrapeRequest: ScrapeRequestWrapper) {
+    inFlightScrapes[scrapeRequest.scrapeId] = scrapeRequest
+    // Checked after adding, so a concurrent invalidate() or park() cannot miss the request
+    if (!valid || isParked)
+      failInFlightScrapes()
+  }
+
+  fun removeInFlightScrape(scrapeId: Long) = inFlightScrapes.remove(scrapeId)
+
+  fun cancelScrape(scrapeId: Long) {
+    if (cancelSupported)
+      cancelChannel.trySend(scrapeId)
   }
 
-  suspend fun readScrapeRequest(): ScrapeRequestWrapper? =
-    scrapeRequestChannel.receiveCatching().getOrNull()
-      ?.apply {
-        channelBacklogSize -= 1
+  suspend fun readCancelledScrapeId(): Long? = cancelChannel.receiveCatching().getOrNull()
+
+  fun addCompressionDictionary(codec: ZstdDictionaryCodec) {
+    compressionDictionaries[codec.dictionaryId] = codec
+    synchronized(dictionaryVersions) {
+      val versions = dictionaryVersions.getOrPut(codec.path) { ArrayDeque() }
+      versions.addLast(codec.dictionaryId)
+      while (versions.size > MAX_DICTIONARY_VERSIONS)
+        compressionDictionaries.remove(versions.removeFirst())
+    }
+  }
+
+  fun compressionDictionary(dictionaryId: Long): ZstdDictionaryCodec? = compressionDictionaries[dictionaryId]
+
+  fun latestDeltaBaseVersion(deltaKey: String): Long = deltaBases[deltaKey]?.firstOrNull()?.version ?: 0L
+
+  fun deltaBase(
+    deltaKey: String,
+    version: Long,
+  ): ByteArray? = deltaBases[deltaKey]?.firstOrNull { it.version == version }?.content
+
+  // Responses can arrive out of order, so bases are kept sorted by version
+  fun addDeltaBase(
+    deltaKey: String,
+    version: Long,
+    content: ByteArray,
+  ) {
+    deltaBases.compute(deltaKey) { _, recent ->
+      (recent.orEmpty() + DeltaBase(version, content)).sortedByDescending { it.version }.take(MAX_DELTA_BASES)
+    }
+  }
+
+  // Scrapes are in flight once taken for dispatch, since the agent may be working on them from then on
+  suspend fun readScrapeRequest(): ScrapeRequestWrapper? {
+    while (true) {
+      val scrapeRequest = scrapeRequestQueue.take() ?: return null
+      if (scrapeRequest.markDispatched())
+        return scrapeRequest.also { addInFlightScrape(it) }
+    }
+  }
+
+  // Called when the connection is lost but the agent may resume its session. Scrapes already handed to the
+  // connection are failed, while queued and new ones wait until the session is resumed or expires.
+  // Returns false if the context was already parked.
+  fun park(): Boolean =
+    parked.compareAndSet(false, true)
+      .also { if (it) failInFlightScrapes() }
+
+  // Moves the queued scrapes of a resumed session to the context of the agent's new connection
+  fun transferScrapeRequests(agentContext: AgentContext) {
+    scrapeRequestQueue.close()
+    while (true) {
+      val scrapeRequest = scrapeRequestQueue.poll() ?: break
+      if (!scrapeRequest.isFailed) {
+        scrapeRequest.reassign(agentContext)
+        agentContext.writeScrapeRequest(scrapeRequest)
       }
+    }
+  }
 
-  fun isValid() = valid && !scrapeRequestChannel.isClosedForReceive
+  fun isValid() = valid && !scrapeRequestQueue.isClosedForReceive
 
   fun isNotValid() = !isValid()
 
+  // Returns true only for the first call
+  fun endAwaitingRegistration(): Boolean =
+    awaitingRegistration.compareAndSet(true, false).also { releaseAdmission() }
+
+  fun holdAdmission(semaphore: Semaphore) {
+    admissionPermit.store(semaphore)
+    // Registration may have ended, e.g., by removal, while the permit was being taken
+    if (!awaitingRegistration.load())
+      releaseAdmission()
+  }
+
+  private fun releaseAdmission() {
+    admissionPermit.exchange(null)?.release()
+  }
+
+  // A parked context only queues scrapes for a session that may never be resumed
+  fun isRoutable() = isValid() && !isParked
+
+  // Scrapes offered after the queue is closed are failed by writeScrapeRequest(), so none are missed
   fun invalidate() {
     valid = false
-    scrapeRequestChannel.close()
+    scrapeRequestQueue.close()
+    cancelChannel.close()
+    generateSequence { scrapeRequestQueue.poll() }.forEach { it.markFailed(AGENT_DISCONNECTED_MSG) }
+    failInFlightScrapes()
   }
 
+  private fun failInFlightScrapes() =
+    inFlightScrapes.forEach { scrapeId, scrapeRequest ->
+      if (inFlightScrapes.remove(scrapeId, scrapeRequest))
+        scrapeRequest.markFailed(AGENT_DISCONNECTED_MSG)
+    }
+
+  fun evictionDeadline(maxInactivity: Duration): TimeMark = lastActivityTimeMark + maxInactivity
+
   fun markActivityTime(isRequest: Boolean) {
     lastActivityTimeMark = clock.markNow()
 
@@ -108,6 +251,7 @@ internal class AgentContext(
       add("launchId", launchId)
       add("consolidated", consolidated)
       add("valid", valid)
+      add("parked", isParked)
       add("agentName", agentName)
       add("hostName", hostName)
       add("remoteAddr", remoteAddr)
@@ -124,7 +268,14 @@ internal class AgentContext(
 
   override fun hashCode() = agentId.hashCode()
 
+  private class DeltaBase(
+    val version: Long,
+    val content: ByteArray,
+  )
+
   companion object {
     private val AGENT_ID_GENERATOR = AtomicLong(0L)
+    private const val MAX_DICTIONARY_VERSIONS = 2
+    private const val MAX_DELTA_BASES = 2
   }
 }
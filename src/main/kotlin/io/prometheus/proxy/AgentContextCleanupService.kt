@@ -21,51 +21,153 @@ package io.prometheus.proxy
 import com.github.pambrose.common.concurrent.GenericExecutionThreadService
 import com.github.pambrose.common.concurrent.genericServiceListener
 import com.github.pambrose.common.dsl.GuavaDsl.toStringElements
-import com.github.pambrose.common.util.sleep
 import com.google.common.util.concurrent.MoreExecutors
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.prometheus.Proxy
 import io.prometheus.common.ConfigVals
 import io.prometheus.common.Utils.lambda
+import java.util.concurrent.DelayQueue
+import java.util.concurrent.Delayed
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import kotlin.concurrent.atomics.AtomicBoolean
+import kotlin.time.ComparableTimeMark
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource.Monotonic
 
 internal class AgentContextCleanupService(
   private val proxy: Proxy,
   private val configVals: ConfigVals.Proxy2.Internal2,
   initBlock: (AgentContextCleanupService.() -> Unit) = lambda {},
 ) : GenericExecutionThreadService() {
+  private val maxAgentInactivityTime = configVals.maxAgentInactivitySecs.seconds
+  private val chunkedContextTtl = configVals.scrapeRequestTimeoutSecs.seconds
+  private val sessionResumeGrace = configVals.sessionResumeGraceSecs.seconds
+
+  // Ordered by deadline, so take() wakes exactly when the next agent could be stale
+  // or the next chunked context could be orphaned
+  private val deadlineQueue = DelayQueue<CleanupDeadline>()
+
+  // At most one sweep entry is queued for all chunked contexts, so completed contexts leave nothing behind
+  private val chunkedSweepScheduled = AtomicBoolean(false)
+
   init {
     addListener(genericServiceListener(logger), MoreExecutors.directExecutor())
     initBlock(this)
   }
 
+  fun scheduleEviction(agentContext: AgentContext) {
+    deadlineQueue.put(EvictionDeadline(agentContext, agentContext.evictionDeadline(maxAgentInactivityTime)))
+  }
+
+  fun scheduleChunkedContextSweep(chunkedContext: ChunkedContext) {
+    if (chunkedSweepScheduled.compareAndSet(false, true))
+      deadlineQueue.put(SweepDeadline(chunkedContext.expirationDeadline(chunkedContextTtl)))
+  }
+
+  fun scheduleSessionExpiry(agentContext: AgentContext) {
+    deadlineQueue.put(SessionDeadline(agentContext, Monotonic.markNow() + sessionResumeGrace))
+  }
+
   override fun run() {
-    val maxAgentInactivityTime = configVals.maxAgentInactivitySecs.seconds
-    val pauseTime = configVals.staleAgentCheckPauseSecs.seconds
     while (isRunning) {
-      proxy.agentContextManager.agentContextMap
-        .forEach { (agentId, agentContext) ->
-          val inactiveTime = agentContext.inactivityDuration
-          if (inactiveTime > maxAgentInactivityTime) {
-            logger.info {
-              val id = agentContext.agentId
-              "Evicting agentId $id after $inactiveTime (max $maxAgentInactivityTime) of inactivity: $agentContext"
-            }
-            proxy.removeAgentContext(agentId, "Eviction")
-            proxy.metrics { agentEvictionCount.inc() }
-          }
-        }
-      sleep(pauseTime)
+      when (val entry = deadlineQueue.take()) {
+        is EvictionDeadline -> checkEviction(entry.agentContext)
+        is SweepDeadline -> sweepChunkedContexts()
+        is SessionDeadline -> expireSession(entry.agentContext)
+        else -> continue
+      }
     }
   }
 
+  private fun checkEviction(agentContext: AgentContext) {
+    // Skip agents that have already been removed
+    if (agentContext.isNotValid() || proxy.agentContextManager.getAgentContext(agentContext.agentId) == null)
+      return
+
+    // markActivityTime() only moves the deadline forward, so a popped entry is either
+    // truly expired or is re-queued at the agent's current deadline
+    val deadline = agentContext.evictionDeadline(maxAgentInactivityTime)
+    if (deadline.hasPassedNow()) {
+      logger.info {
+        val id = agentContext.agentId
+        val inactiveTime = agentContext.inactivityDuration
+        "Evicting agentId $id after $inactiveTime (max $maxAgentInactivityTime) of inactivity: $agentContext"
+      }
+      proxy.removeAgentContext(agentContext.agentId, "Eviction")
+      proxy.metrics { agentEvictionCount.inc() }
+    } else {
+      deadlineQueue.put(EvictionDeadline(agentContext, deadline))
+    }
+  }
+
+  private fun sweepChunkedContexts() {
+    val chunkedContextMap = proxy.agentContextManager.chunkedContextMap
+    var nextDeadline: ComparableTimeMark? = null
+    chunkedContextMap.forEach { scrapeId, chunkedContext ->
+      val deadline = chunkedContext.expirationDeadline(chunkedContextTtl)
+      // The HTTP request has timed out by now, so a context still in the map will never complete
+      if (deadline.hasPassedNow())
+        proxy.reapChunkedContext(scrapeId, "expired")
+      else if (nextDeadline.let { it == null || deadline < it })
+        nextDeadline = deadline
+    }
+
+    val next = nextDeadline
+    if (next != null) {
+      deadlineQueue.put(SweepDeadline(next))
+    } else {
+      chunkedSweepScheduled.store(false)
+      // A context added during the sweep may have seen the flag still set
+      if (!chunkedContextMap.isEmpty() && chunkedSweepScheduled.compareAndSet(false, true))
+        deadlineQueue.put(SweepDeadline(Monotonic.markNow() + chunkedContextTtl))
+    }
+  }
+
+  private fun expireSession(agentContext: AgentContext) {
+    // Skip sessions that have been resumed or removed
+    if (agentContext.isNotValid() || proxy.agentContextManager.getAgentContext(agentContext.agentId) == null)
+      return
+
+    logger.info { "Session of agentId ${agentContext.agentId} not resumed within $sessionResumeGrace: $agentContext" }
+    proxy.removeAgentContext(agentContext.agentId, "Session expired")
+  }
+
+  override fun triggerShutdown() {
+    deadlineQueue.put(SHUTDOWN_DEADLINE)
+  }
+
   override fun toString() =
     toStringElements {
       add("max inactivity secs", configVals.maxAgentInactivitySecs)
-      add("pause secs", configVals.staleAgentCheckPauseSecs)
+      add("scheduled deadlines", deadlineQueue.size)
     }
 
+  private open class CleanupDeadline(
+    private val deadline: TimeMark,
+  ) : Delayed {
+    override fun getDelay(unit: TimeUnit): Long = unit.convert(-deadline.elapsedNow().inWholeNanoseconds, NANOSECONDS)
+
+    override fun compareTo(other: Delayed): Int = getDelay(NANOSECONDS).compareTo(other.getDelay(NANOSECONDS))
+  }
+
+  private class EvictionDeadline(
+    val agentContext: AgentContext,
+    deadline: TimeMark,
+  ) : CleanupDeadline(deadline)
+
+  private class SessionDeadline(
+    val agentContext: AgentContext,
+    deadline: TimeMark,
+  ) : CleanupDeadline(deadline)
+
+  private class SweepDeadline(
+    deadline: TimeMark,
+  ) : CleanupDeadline(deadline)
+
   companion object {
     private val logger = KotlinLogging.logger {}
+    private val SHUTDOWN_DEADLINE = CleanupDeadline(Monotonic.markNow())
   }
 }
@@ -21,7 +21,11 @@ package io.prometheus.proxy
 import com.github.pambrose.common.util.isNull
 import com.google.common.collect.Maps.newConcurrentMap
 import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.common.ConcurrentLongMap
 import java.util.concurrent.ConcurrentMap
+import kotlin.concurrent.atomics.AtomicInt
+import kotlin.concurrent.atomics.minusAssign
+import kotlin.concurrent.atomics.plusAssign
 
 internal class AgentContextManager(
   private val isTestMode: Boolean,
@@ -31,18 +35,75 @@ internal class AgentContextManager(
   val agentContextSize: Int get() = agentContextMap.size
 
   // Map scrape_id to ChunkedContext
-  val chunkedContextMap: ConcurrentMap<Long, ChunkedContext> = newConcurrentMap()
+  val chunkedContextMap = ConcurrentLongMap<ChunkedContext>()
   val chunkedContextSize: Int get() = chunkedContextMap.size
 
+  // Map the agent_id of an agent's extra pool connection to the agent_id of the agent
+  private val attachedConnections: ConcurrentMap<String, String> = newConcurrentMap()
+
+  // Map session_token to the AgentContext that issued it
+  private val sessionMap: ConcurrentMap<String, AgentContext> = newConcurrentMap()
+
+  // Agents that have connected but not yet called registerAgent. Attached pool connections are
+  // removed from the map, and from this count, on their first call.
+  private val pendingRegistrations = AtomicInt(0)
+  val pendingRegistrationCount: Int get() = pendingRegistrations.load()
+
   val totalAgentScrapeRequestBacklogSize: Int get() = agentContextMap.values.sumOf { it.scrapeRequestBacklogSize }
 
   fun addAgentContext(agentContext: AgentContext): AgentContext? {
     logger.info { "Registering agentId: ${agentContext.agentId}" }
+    pendingRegistrations += 1
     return agentContextMap.put(agentContext.agentId, agentContext)
   }
 
+  fun clearPendingRegistration(agentContext: AgentContext) {
+    if (agentContext.endAwaitingRegistration())
+      pendingRegistrations -= 1
+  }
+
   fun getAgentContext(agentId: String) = agentContextMap[agentId]
 
+  // An extra pool connection gets its own AgentContext in transportReady(), which is dropped in favor of the agent's.
+  // Returns false if the connection may not act for agentId.
+  fun attachConnection(
+    connectionAgentId: String,
+    agentId: String,
+    attachToken: String,
+  ): Boolean {
+    if (connectionAgentId == agentId)
+      return true
+    val agentContext = agentContextMap[agentId]
+    if (agentContext == null || !agentContext.isAttachToken(attachToken)) {
+      logger.warn { "Rejected attach of connection agentId: $connectionAgentId to agentId: $agentId" }
+      return false
+    }
+
+    var attached = false
+    val attachedAgentId =
+      attachedConnections.compute(connectionAgentId) { _, current ->
+        current ?: agentId.takeIf { agentContextMap[connectionAgentId]?.registered == false }?.also { attached = true }
+      }
+    if (attached)
+      removeFromContextManager(connectionAgentId, "Attached to agentId: $agentId")
+    // A connection stays with the agent it was first attached to
+    return attachedAgentId == null || attachedAgentId == agentId
+  }
+
+  fun addSession(agentContext: AgentContext) {
+    sessionMap[agentContext.sessionToken] = agentContext
+  }
+
+  // A session is taken at most once, and never by the context that issued it
+  fun takeSession(
+    sessionToken: String,
+    agentContext: AgentContext,
+  ): AgentContext? =
+    sessionMap[sessionToken]?.takeIf { it != agentContext && sessionMap.remove(sessionToken, it) }
+
+  // Returns true if the connection was an attached pool connection
+  fun detachConnection(connectionAgentId: String) = attachedConnections.remove(connectionAgentId) != null
+
   fun removeFromContextManager(
     agentId: String,
     reason: String,
@@ -54,6 +115,8 @@ internal class AgentContextManager(
         } else {
           if (!isTestMode)
             logger.info { "Removed $agentContext for agentId: $agentId ($reason)" }
+          sessionMap.remove(agentContext.sessionToken, agentContext)
+          clearPendingRegistration(agentContext)
           agentContext.invalidate()
         }
         agentContext
@@ -19,21 +19,28 @@
 package io.prometheus.proxy
 
 import io.prometheus.common.ScrapeResults
+import io.prometheus.common.ScrapeResults.Companion.IDENTITY_ENCODING
 import io.prometheus.grpc.ChunkedScrapeResponse
 import java.io.ByteArrayOutputStream
 import java.util.zip.CRC32
+import kotlin.time.Duration
+import kotlin.time.TimeSource.Monotonic
 
 internal class ChunkedContext(
   response: ChunkedScrapeResponse,
 ) {
   private val checksum = CRC32()
   private val baos = ByteArrayOutputStream()
+  private val createTimeMark = Monotonic.markNow()
 
   var totalChunkCount = 0
     private set
   var totalByteCount = 0
     private set
 
+  val bufferedByteCount: Int
+    get() = baos.size()
+
   val scrapeResults =
     response.header.run {
       ScrapeResults(
@@ -41,13 +48,25 @@ internal class ChunkedContext(
         scrapeId = headerScrapeId,
         agentId = headerAgentId,
         statusCode = headerStatusCode,
-        zipped = true,
+        // Agents that predate header_encoding only chunk gzipped content
+        zipped = headerEncoding != IDENTITY_ENCODING,
+        contentEncoding = if (headerEncoding != IDENTITY_ENCODING) headerEncoding else "",
+        dictionaryId = headerDictionaryId,
+        contentVersion = headerContentVersion,
+        deltaBaseVersion = headerDeltaBaseVersion,
+        contentHash = headerContentHash,
         failureReason = headerFailureReason,
         url = headerUrl,
         contentType = headerContentType,
       )
     }
 
+  // The agent that owns the stream delivering the chunks
+  val ownerAgentId: String
+    get() = scrapeResults.agentId
+
+  fun expirationDeadline(ttl: Duration) = createTimeMark + ttl
+
   fun applyChunk(
     data: ByteArray,
     chunkByteCount: Int,
@@ -73,6 +92,9 @@ internal class ChunkedContext(
     check(checksum.value == summaryChecksum)
 
     baos.flush()
-    scrapeResults.contentAsZipped = baos.toByteArray()
+    if (scrapeResults.zipped)
+      scrapeResults.contentAsZipped = baos.toByteArray()
+    else
+      scrapeResults.contentAsBytes = baos.toByteArray()
   }
 }
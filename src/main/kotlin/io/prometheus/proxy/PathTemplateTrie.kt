@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+// Routes request paths to templated registrations such as node/{host}, so one registration covers many targets.
+// A template segment is either a literal or a {name} parameter that captures exactly one request path segment.
+// Literal segments take precedence over parameters.
+internal class PathTemplateTrie {
+  private class Node {
+    val literals = HashMap<String, Node>()
+    var param: Node? = null
+    var template: String? = null
+
+    val isEmpty: Boolean
+      get() = template == null && param == null && literals.isEmpty()
+  }
+
+  class Match(
+    val template: String,
+    val params: Map<String, String>,
+  )
+
+  private val root = Node()
+
+  @Synchronized
+  fun add(template: String) {
+    var node = root
+    for (segment in template.split('/'))
+      node =
+        if (isParam(segment))
+          node.param ?: Node().also { node.param = it }
+        else
+          node.literals.getOrPut(segment) { Node() }
+    node.template = template
+  }
+
+  @Synchronized
+  fun remove(template: String) {
+    remove(root, template.split('/'), 0)
+  }
+
+  @Synchronized
+  fun match(path: String): Match? {
+    val segments = path.split('/')
+    val template = match(root, segments, 0) ?: return null
+    val params =
+      template.split('/')
+        .zip(segments)
+        .filter { (segment, _) -> isParam(segment) }
+        .associate { (segment, value) -> segment.substring(1, segment.length - 1) to value }
+    return Match(template, params)
+  }
+
+  // Returns true if the node is left empty, so its parent can drop it
+  private fun remove(
+    node: Node,
+    segments: List<String>,
+    index: Int,
+  ): Boolean {
+    if (index == segments.size) {
+      node.template = null
+    } else {
+      val segment = segments[index]
+      val child = (if (isParam(segment)) node.param else node.literals[segment]) ?: return false
+      if (remove(child, segments, index + 1)) {
+        if (isParam(segment))
+          node.param = null
+        else
+          node.literals.remove(segment)
+      }
+    }
+    return node.isEmpty
+  }
+
+  private fun match(
+    node: Node,
+    segments: List<String>,
+    index: Int,
+  ): String? =
+    if (index == segments.size)
+      node.template
+    else
+      node.literals[segments[index]]?.let { match(it, segments, index + 1) }
+        ?: node.param
+          ?.takeIf { PARAM_VALUE.matches(segments[index]) }
+          ?.let { match(it, segments, index + 1) }
+
+  companion object {
+    // Captured values are filled into agent URLs, so they cannot contain characters that change a URL's structure
+    private val PARAM_VALUE = Regex("[A-Za-z0-9._~-]+")
+
+    private fun isParam(segment: String) = segment.length > 2 && segment.startsWith('{') && segment.endsWith('}')
+
+    fun isTemplate(path: String) = path.split('/').any { isParam(it) }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.prometheus.Proxy
+import io.prometheus.common.GrpcObjects.retryLaterException
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Semaphore
+import kotlin.concurrent.atomics.AtomicInt
+import kotlin.concurrent.atomics.decrementAndFetch
+import kotlin.concurrent.atomics.incrementAndFetch
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.DurationUnit.SECONDS
+import kotlin.time.TimeSource.Monotonic
+
+// Throttles agent admissions and path registrations, so thousands of agents joining at once, e.g., after a
+// failover, do not slow the scrapes of agents that are already connected. Callers over a limit wait in a
+// bounded queue, and once it is full they are told to retry later.
+internal class ProxyAdmissionController(
+  private val proxy: Proxy,
+) {
+  private val configVals = proxy.proxyConfigVals.internal
+  private val agentAdmissions =
+    configVals.maxConcurrentAgentAdmissions.takeIf { it > 0 }?.let { Semaphore(it) }
+  private val pathRegistrations =
+    configVals.maxPathRegistrationsPerSec.takeIf { it > 0 }?.let { TokenBucket(it) }
+  private val queuedAgentAdmissions = AtomicInt(0)
+  private val queuedPathRegistrations = AtomicInt(0)
+
+  val agentAdmissionQueueSize: Int
+    get() = queuedAgentAdmissions.load()
+
+  val pathRegistrationQueueSize: Int
+    get() = queuedPathRegistrations.load()
+
+  // Called at the start of an agent's connection. The permit is held until the agent registers or is removed.
+  suspend fun admitAgent(agentContext: AgentContext) {
+    val semaphore = agentAdmissions ?: return
+    if (!semaphore.tryAcquire())
+      awaitAdmission(queuedAgentAdmissions, AGENT) { semaphore.acquire() }
+    agentContext.holdAdmission(semaphore)
+  }
+
+  suspend fun admitPaths(pathCount: Int) {
+    val limiter = pathRegistrations ?: return
+    if (pathCount > 0 && !limiter.tryAcquire(pathCount))
+      awaitAdmission(queuedPathRegistrations, PATH) { limiter.acquire(pathCount) }
+  }
+
+  private suspend fun awaitAdmission(
+    queueSize: AtomicInt,
+    type: String,
+    wait: suspend () -> Unit,
+  ) {
+    if (queueSize.incrementAndFetch() > configVals.maxAdmissionQueueSize) {
+      queueSize.decrementAndFetch()
+      proxy.metrics { admissionRejectedCount.labels(type).inc() }
+      throw retryLaterException("Proxy $type admission queue is full", configVals.agentRetryHintMillis.milliseconds)
+    }
+
+    val start = Monotonic.markNow()
+    try {
+      wait()
+    } finally {
+      queueSize.decrementAndFetch()
+      proxy.metrics { admissionWaitSeconds.labels(type).observe(start.elapsedNow().toDouble(SECONDS)) }
+    }
+  }
+
+  // Hands out permits at a steady rate. As with Guava's RateLimiter, a caller may take a burst of permits
+  // at once and the callers after it pay for them. Waiters suspend rather than block a thread.
+  private class TokenBucket(
+    permitsPerSec: Int,
+  ) {
+    private val permitInterval = 1.seconds / permitsPerSec
+    private var nextFreeMark = Monotonic.markNow()
+
+    fun tryAcquire(permits: Int) = reserve(permits, immediateOnly = true) != null
+
+    suspend fun acquire(permits: Int) {
+      reserve(permits, immediateOnly = false)?.also { delay(it) }
+    }
+
+    // Returns the wait before the permits may be used, or null if immediateOnly and they are not free now
+    @Synchronized
+    private fun reserve(
+      permits: Int,
+      immediateOnly: Boolean,
+    ): Duration? {
+      val now = Monotonic.markNow()
+      if (nextFreeMark < now)
+        nextFreeMark = now
+      val wait = nextFreeMark - now
+      if (immediateOnly && wait.isPositive())
+        return null
+      nextFreeMark += permitInterval * permits
+      return wait
+    }
+  }
+
+  companion object {
+    private const val AGENT = "agent"
+    private const val PATH = "path"
+  }
+}
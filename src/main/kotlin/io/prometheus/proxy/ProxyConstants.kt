@@ -20,4 +20,9 @@ object ProxyConstants {
   const val MISSING_PATH_MSG = "Request missing path"
   const val CACHE_CONTROL_VALUE = "must-revalidate,no-store"
   const val FAVICON_FILENAME = "favicon.ico"
+  const val AGENT_DISCONNECTED_MSG = "agent_disconnected"
+  const val DELTA_BASE_MISMATCH_MSG = "delta_base_mismatch"
+  const val UNCHANGED_CONTENT_MISMATCH_MSG = "unchanged_content_mismatch"
+  const val UNKNOWN_DICTIONARY_MSG = "unknown_dictionary"
+  const val ABANDONED_MSG = "abandoned"
 }
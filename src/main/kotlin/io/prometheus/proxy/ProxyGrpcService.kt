@@ -87,9 +87,14 @@ internal class ProxyGrpcService(
       val interceptors: List<ServerInterceptor> =
         buildList {
           if (!options.transportFilterDisabled)
-            add(ProxyServerInterceptor())
+            add(ProxyServerInterceptor(proxy))
           if (proxy.isZipkinEnabled)
             add(grpcTracing.newServerInterceptor())
+          proxy.proxyConfigVals.grpc
+            .also { grpcConfigVals ->
+              if (grpcConfigVals.compressionEnabled)
+                add(ProxyServerCompressionInterceptor(grpcConfigVals.compressionMinSizeBytes))
+            }
         }
 
       addService(ServerInterceptors.intercept(proxyService.bindService(), interceptors))
@@ -16,9 +16,9 @@
 
 package io.prometheus.proxy
 
+import com.github.pambrose.common.util.EMPTY_BYTE_ARRAY
 import com.github.pambrose.common.util.isNull
 import com.github.pambrose.common.util.simpleClassName
-import com.github.pambrose.common.util.unzip
 import io.github.oshai.kotlinlogging.KotlinLogging
 import io.ktor.http.ContentType
 import io.ktor.http.ContentType.Text
@@ -38,8 +38,14 @@ import io.ktor.server.routing.RoutingContext
 import io.ktor.server.routing.get
 import io.ktor.server.routing.routing
 import io.prometheus.Proxy
+import io.prometheus.common.ContentCodecs
+import io.prometheus.common.SeriesDelta
 import io.prometheus.proxy.ProxyConstants.CACHE_CONTROL_VALUE
+import io.prometheus.proxy.ProxyConstants.DELTA_BASE_MISMATCH_MSG
 import io.prometheus.proxy.ProxyConstants.FAVICON_FILENAME
+import io.prometheus.proxy.ProxyConstants.UNCHANGED_CONTENT_MISMATCH_MSG
+import io.prometheus.proxy.ProxyConstants.UNKNOWN_DICTIONARY_MSG
+import io.prometheus.proxy.ProxyUtils.agentUnavailableResponse
 import io.prometheus.proxy.ProxyUtils.emptyPathResponse
 import io.prometheus.proxy.ProxyUtils.incrementScrapeRequestCount
 import io.prometheus.proxy.ProxyUtils.invalidAgentContextResponse
@@ -50,13 +56,19 @@ import kotlinx.coroutines.async
 import kotlinx.coroutines.coroutineScope
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
+import java.io.ByteArrayOutputStream
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
 
 object ProxyHttpRoutes {
   private val logger = KotlinLogging.logger {}
   private val format = Json { prettyPrint = true }
+  private val PROTOBUF_CONTENT_TYPE = ContentType("application", "vnd.google.protobuf")
+  private val NEWLINE = "\n".toByteArray()
+  private val RETRY_MSGS = setOf(DELTA_BASE_MISMATCH_MSG, UNCHANGED_CONTENT_MISMATCH_MSG)
+  private const val SCRAPE_TIMEOUT_HEADER = "X-Prometheus-Scrape-Timeout-Seconds"
 
   fun Application.configureHttpRoutes(proxy: Proxy) {
     routing {
@@ -87,7 +99,8 @@ object ProxyHttpRoutes {
   }
 
   private fun Routing.handleClientRequests(proxy: Proxy) {
-    get("/*") {
+    // A tailcard, since paths and path templates can span several segments
+    get("/{path...}") {
       call.response.header(HttpHeaders.CacheControl, CACHE_CONTROL_VALUE)
 
       val path = call.request.path().drop(1)
@@ -102,7 +115,7 @@ object ProxyHttpRoutes {
         !proxy.isRunning -> proxyNotRunningResponse(logger, responseResults)
         path.isBlank() -> emptyPathResponse(proxy, logger, responseResults)
         path == FAVICON_FILENAME -> invalidPathResponse(path, proxy, logger, responseResults)
-        proxy.isBlitzRequest(path) -> responseResults.contentText = "42"
+        proxy.isBlitzRequest(path) -> responseResults.contentBytes = "42".toByteArray()
         else -> processRequestsBasedOnPath(proxy, path, queryParams, responseResults)
       }
 
@@ -110,7 +123,7 @@ object ProxyHttpRoutes {
         incrementScrapeRequestCount(proxy, updateMsg)
         if (proxy.options.debugEnabled)
           logger.info { "CT check - handleClientRequests() contentType: $contentType" }
-        call.respondWith(contentText, contentType, statusCode)
+        call.respondWith(contentBytes, contentType, statusCode)
       }
     }
   }
@@ -121,22 +134,26 @@ object ProxyHttpRoutes {
     queryParams: String,
     responseResults: ResponseResults,
   ) {
-    val agentContextInfo = proxy.pathManager.getAgentContextInfo(path)
+    val pathMatch = proxy.pathManager.matchPath(path)
+    val agentContexts = pathMatch?.agentContextInfo?.routableContexts().orEmpty()
     when {
-      agentContextInfo.isNull() -> invalidPathResponse(path, proxy, logger, responseResults)
-      agentContextInfo.isNotValid() -> invalidAgentContextResponse(path, proxy, logger, responseResults)
-      else -> processRequests(agentContextInfo, proxy, path, queryParams, responseResults)
+      pathMatch.isNull() -> invalidPathResponse(path, proxy, logger, responseResults)
+      pathMatch.agentContextInfo.isNotValid() -> invalidAgentContextResponse(path, proxy, logger, responseResults)
+      agentContexts.isEmpty() -> agentUnavailableResponse(path, proxy, logger, responseResults)
+      else -> processRequests(pathMatch, agentContexts, proxy, path, queryParams, responseResults)
     }
   }
 
   private suspend fun RoutingContext.processRequests(
-    agentContextInfo: ProxyPathManager.AgentContextInfo,
+    pathMatch: ProxyPathManager.PathMatch,
+    agentContexts: List<AgentContext>,
     proxy: Proxy,
     path: String,
     queryParams: String,
     responseResults: ResponseResults,
   ) {
-    val results: List<ScrapeRequestResponse> = executeScrapeRequests(agentContextInfo, proxy, path, queryParams)
+    val results: List<ScrapeRequestResponse> =
+      executeScrapeRequests(pathMatch, agentContexts, proxy, path, queryParams)
     val statusCodes: List<HttpStatusCode> = results.map { it.statusCode }.toSet().toList()
     val contentTypes: List<ContentType> = results.map { it.contentType }.toSet().toList()
     val updateMsgs: String = results.joinToString("\n") { it.updateMsg }
@@ -150,21 +167,70 @@ object ProxyHttpRoutes {
     responseResults.apply {
       statusCode = if (statusCodes.contains(HttpStatusCode.OK)) HttpStatusCode.OK else statusCodes[0]
       contentType = okContentType ?: contentTypes[0]
-      contentText = results.joinToString("\n") { it.contentText }
+      // Delimited protobuf exposition is a plain concatenation of messages, text formats are newline separated
+      val separator = if (contentType.match(PROTOBUF_CONTENT_TYPE)) EMPTY_BYTE_ARRAY else NEWLINE
+      contentBytes = results.map { it.contentBytes }.join(separator)
       updateMsg = updateMsgs
     }
   }
 
+  private fun List<ByteArray>.join(separator: ByteArray): ByteArray =
+    if (size == 1)
+      first()
+    else
+      ByteArrayOutputStream(sumOf { it.size } + separator.size * size)
+        .also { baos ->
+          forEachIndexed { i, bytes ->
+            if (i > 0)
+              baos.write(separator)
+            baos.write(bytes)
+          }
+        }
+        .toByteArray()
+
   private suspend fun RoutingContext.executeScrapeRequests(
-    agentContextInfo: ProxyPathManager.AgentContextInfo,
+    pathMatch: ProxyPathManager.PathMatch,
+    agentContexts: List<AgentContext>,
     proxy: Proxy,
     path: String,
     queryParams: String,
   ): List<ScrapeRequestResponse> =
     coroutineScope {
-      agentContextInfo.agentContexts
+      // The retry below keeps the original deadline, since Prometheus stops waiting at the same time
+      val deadline = scrapeDeadline(proxy, call.request)
+      agentContexts
         .map { agentContext ->
-          async { submitScrapeRequest(agentContext, proxy, path, queryParams, call.request, call.response) }
+          async {
+            submitScrapeRequest(
+              agentContext,
+              proxy,
+              path,
+              pathMatch,
+              deadline,
+              queryParams,
+              call.request,
+              call.response,
+            ).let { response ->
+                // The payload the response refers to is gone, so ask again for the full content
+                if (response.updateMsg in RETRY_MSGS) {
+                  if (response.updateMsg == DELTA_BASE_MISMATCH_MSG)
+                    proxy.metrics { deltaBaseMismatchCount.inc() }
+                  submitScrapeRequest(
+                    agentContext,
+                    proxy,
+                    path,
+                    pathMatch,
+                    deadline,
+                    queryParams,
+                    call.request,
+                    call.response,
+                    true,
+                  )
+                } else {
+                  response
+                }
+              }
+          }
         }
         .map { deferred -> deferred.await() }
         .onEach { response -> logActivityForResponse(path, response, proxy) }
@@ -186,32 +252,50 @@ object ProxyHttpRoutes {
     agentContext: AgentContext,
     proxy: Proxy,
     path: String,
+    pathMatch: ProxyPathManager.PathMatch,
+    deadline: Monotonic.ValueTimeMark,
     encodedQueryParams: String,
     request: ApplicationRequest,
     response: ApplicationResponse,
+    fullTransfer: Boolean = false,
   ): ScrapeRequestResponse {
-    val scrapeRequest = createScrapeRequest(agentContext, proxy, path, encodedQueryParams, request)
+    val scrapeRequest =
+      createScrapeRequest(agentContext, proxy, path, pathMatch, deadline, encodedQueryParams, request, fullTransfer)
 
     try {
-      val proxyConfigVals = proxy.proxyConfigVals
-      val timeoutTime = proxyConfigVals.internal.scrapeRequestTimeoutSecs.seconds
-      val checkTime = proxyConfigVals.internal.scrapeRequestCheckMillis.milliseconds
+      val checkTime = proxy.proxyConfigVals.internal.scrapeRequestCheckMillis.milliseconds
 
       proxy.scrapeRequestManager.addToScrapeRequestMap(scrapeRequest)
       agentContext.writeScrapeRequest(scrapeRequest)
 
       // Returns false if timed out
-      while (!scrapeRequest.suspendUntilComplete(checkTime)) {
-        // Check if agent is disconnected or agent is hung
-        if (scrapeRequest.ageDuration() >= timeoutTime || !scrapeRequest.agentContext.isValid() || !proxy.isRunning)
+      while (!scrapeRequest.suspendUntilComplete(minOf(checkTime, -deadline.elapsedNow()))) {
+        // Check if the deadline passed, or if agent is disconnected or agent is hung
+        if (deadline.hasPassedNow() || !scrapeRequest.agentContext.isValid() || !proxy.isRunning)
           return ScrapeRequestResponse(
             statusCode = HttpStatusCode.ServiceUnavailable,
             updateMsg = "timed_out",
             fetchDuration = scrapeRequest.ageDuration(),
           )
       }
+
+      // The agent disconnected while the scrape was in flight
+      if (scrapeRequest.isFailed)
+        return ScrapeRequestResponse(
+          statusCode = HttpStatusCode.ServiceUnavailable,
+          updateMsg = scrapeRequest.failureMsg,
+          failureReason = "Agent ${agentContext.agentId} disconnected",
+          fetchDuration = scrapeRequest.ageDuration(),
+        )
     } finally {
       val scrapeId = scrapeRequest.scrapeId
+      // The scrape timed out or the caller went away, so the agent is told to stop working on it
+      if (scrapeRequest.markAbandoned()) {
+        scrapeRequest.agentContext.cancelScrape(scrapeId)
+        proxy.reapChunkedContext(scrapeId, "abandoned")
+      }
+      // The scrape may have moved to another connection with a resumed session
+      scrapeRequest.agentContext.removeInFlightScrape(scrapeId)
       proxy.scrapeRequestManager.removeFromScrapeRequestMap(scrapeId)
         ?: logger.error { "Scrape request $scrapeId missing in map" }
     }
@@ -246,11 +330,54 @@ object ProxyHttpRoutes {
           }
         else
           scrapeRequest.scrapeResults.run {
-            // Unzip content here
+            // Decompress content here
+            val wireBytes =
+              if (zipped) {
+                // The agent ships a dictionary on its stream before the first response compressed with it
+                val codec =
+                  if (dictionaryId != 0L)
+                    scrapeRequest.agentContext.compressionDictionary(dictionaryId)
+                      ?: return scrapeRequest.unavailableResponse(
+                        UNKNOWN_DICTIONARY_MSG,
+                        "Unknown dictionary_id $dictionaryId from agentId: $agentId",
+                      )
+                  else
+                    ContentCodecs.forName(contentEncoding)
+                codec.decompress(contentAsZipped)
+              } else {
+                contentAsBytes
+              }
+            val agentContext = scrapeRequest.agentContext
+            val targetKey = scrapeRequest.targetKey
+            val contentBytes =
+              when {
+                contentUnchanged ->
+                  proxy.scrapeRequestManager.cachedContent(agentContext.agentId, targetKey, contentHash)
+                    ?.also { proxy.metrics { unchangedContentCount.inc() } }
+                    ?: return scrapeRequest.unavailableResponse(
+                      UNCHANGED_CONTENT_MISMATCH_MSG,
+                      "Cached content $contentHash unavailable",
+                    )
+
+                deltaBaseVersion == 0L -> wireBytes
+
+                else ->
+                  agentContext.deltaBase(targetKey, deltaBaseVersion)
+                    ?.let { base -> runCatching { SeriesDelta.decode(base, wireBytes) }.getOrNull() }
+                    ?: return scrapeRequest.unavailableResponse(
+                      DELTA_BASE_MISMATCH_MSG,
+                      "Delta base version $deltaBaseVersion unavailable",
+                    )
+              }
+            if (contentVersion != 0L)
+              agentContext.addDeltaBase(targetKey, contentVersion, contentBytes)
+            if (contentHash != 0L && !contentUnchanged && proxy.proxyConfigVals.internal.unchangedContentCacheEnabled)
+              proxy.scrapeRequestManager.cacheContent(agentContext.agentId, targetKey, contentHash, contentBytes)
+            scrapeRequest.observeContentSize(if (zipped) contentAsZipped.size else wireBytes.size, contentBytes.size)
             ScrapeRequestResponse(
               statusCode = statusCode,
               contentType = contentType,
-              contentText = if (zipped) contentAsZipped.unzip() else contentAsText,
+              contentBytes = contentBytes,
               failureReason = failureReason,
               url = url,
               updateMsg = "success",
@@ -261,21 +388,70 @@ object ProxyHttpRoutes {
     }
   }
 
+  // Responses with an updateMsg in RETRY_MSGS are retried by the caller as a full transfer
+  private fun ScrapeRequestWrapper.unavailableResponse(
+    updateMsg: String,
+    failureReason: String,
+  ) = ScrapeRequestResponse(
+    statusCode = HttpStatusCode.ServiceUnavailable,
+    updateMsg = updateMsg,
+    failureReason = failureReason,
+    url = scrapeResults.url,
+    fetchDuration = ageDuration(),
+  )
+
+  private fun scrapeDeadline(
+    proxy: Proxy,
+    request: ApplicationRequest,
+  ): Monotonic.ValueTimeMark {
+    val internal = proxy.proxyConfigVals.internal
+    val timeout =
+      scrapeTimeout(
+        request.header(SCRAPE_TIMEOUT_HEADER),
+        internal.scrapeDeadlineMarginMillis.milliseconds,
+        internal.scrapeRequestTimeoutSecs.seconds,
+      )
+    return Monotonic.markNow() + timeout
+  }
+
+  // Prometheus sends its scrape_timeout with each request. Without the header, or beyond it, the proxy's
+  // scrapeRequestTimeoutSecs applies. The margin takes at most half of a short timeout, so the scrape
+  // still has time to run.
+  internal fun scrapeTimeout(
+    headerValue: String?,
+    margin: Duration,
+    maxTimeout: Duration,
+  ): Duration =
+    headerValue
+      ?.toDoubleOrNull()
+      ?.takeIf { it > 0 }
+      ?.seconds
+      ?.let { it - minOf(margin, it / 2) }
+      ?.coerceAtMost(maxTimeout)
+      ?: maxTimeout
+
   private fun createScrapeRequest(
     agentContext: AgentContext,
     proxy: Proxy,
     path: String,
+    pathMatch: ProxyPathManager.PathMatch,
+    deadline: Monotonic.ValueTimeMark,
     encodedQueryParams: String,
     request: ApplicationRequest,
+    fullTransfer: Boolean,
   ): ScrapeRequestWrapper =
     ScrapeRequestWrapper(
       agentContext = agentContext,
       proxy = proxy,
       path = path,
+      template = pathMatch.template,
+      priority = pathMatch.agentContextInfo.priority,
+      deadline = deadline,
       encodedQueryParams = encodedQueryParams,
       authHeader = request.header(HttpHeaders.Authorization).orEmpty(),
       accept = request.header(HttpHeaders.Accept),
       debugEnabled = proxy.options.debugEnabled,
+      fullTransfer = fullTransfer,
     )
 }
 
@@ -283,7 +459,7 @@ class ScrapeRequestResponse(
   val statusCode: HttpStatusCode,
   val updateMsg: String,
   var contentType: ContentType = Text.Plain.withCharset(Charsets.UTF_8),
-  var contentText: String = "",
+  var contentBytes: ByteArray = EMPTY_BYTE_ARRAY,
   val failureReason: String = "",
   val url: String = "",
   val fetchDuration: Duration,
@@ -292,6 +468,6 @@ class ScrapeRequestResponse(
 class ResponseResults(
   var statusCode: HttpStatusCode = HttpStatusCode.OK,
   var contentType: ContentType = Text.Plain.withCharset(Charsets.UTF_8),
-  var contentText: String = "",
+  var contentBytes: ByteArray = EMPTY_BYTE_ARRAY,
   var updateMsg: String = "",
 )
@@ -22,12 +22,24 @@ import com.github.pambrose.common.dsl.PrometheusDsl.counter
 import com.github.pambrose.common.dsl.PrometheusDsl.gauge
 import com.github.pambrose.common.dsl.PrometheusDsl.summary
 import com.github.pambrose.common.metrics.SamplerGaugeCollector
+import com.google.common.collect.Maps.newConcurrentMap
 import io.prometheus.Proxy
+import io.prometheus.client.Counter
+import io.prometheus.client.Histogram
 import io.prometheus.common.Utils.lambda
+import java.util.concurrent.ConcurrentMap
+import kotlin.time.Duration
+import kotlin.time.DurationUnit.SECONDS
 
 internal class ProxyMetrics(
   proxy: Proxy,
 ) {
+  private val metricsConfigVals = proxy.proxyConfigVals.metrics
+  private val latencyBuckets = metricsConfigVals.latencyBuckets.split(",").map { it.trim().toDouble() }.toDoubleArray()
+
+  // Map path to agent_name to pre-resolved label children
+  private val pathMetricsMap: ConcurrentMap<String, ConcurrentMap<String, PathMetrics>> = newConcurrentMap()
+
   val scrapeRequestCount =
     counter {
       name("proxy_scrape_requests")
@@ -53,12 +65,91 @@ internal class ProxyMetrics(
       help("Proxy heartbeat count")
     }
 
+  val chunkContextReapedBytes =
+    counter {
+      name("proxy_chunk_context_reaped_bytes")
+      help("Proxy bytes released from orphaned chunk contexts")
+      labelNames("reason")
+    }
+
+  val deltaBaseMismatchCount =
+    counter {
+      name("proxy_delta_base_mismatch_count")
+      help("Proxy delta transfers retried in full because the base was no longer cached")
+    }
+
+  val unchangedContentCount =
+    counter {
+      name("proxy_unchanged_content_count")
+      help("Proxy scrapes served from cached content the agent reported unchanged")
+    }
+
+  val agentSessionResumeCount =
+    counter {
+      name("proxy_agent_session_resume_count")
+      help("Proxy agent sessions resumed after a reconnect")
+    }
+
+  val admissionRejectedCount =
+    counter {
+      name("proxy_admission_rejected_count")
+      help("Proxy agent admissions and path registrations told to retry later")
+      labelNames("type")
+    }
+
+  val admissionWaitSeconds =
+    summary {
+      name("proxy_admission_wait_seconds")
+      help("Proxy time agent admissions and path registrations waited in the admission queue in seconds")
+      labelNames("type")
+    }
+
   val scrapeRequestLatency =
     summary {
       name("proxy_scrape_request_latency_seconds")
       help("Proxy scrape request latency in seconds")
     }
 
+  private val scrapeLatency =
+    histogram(
+      "proxy_scrape_latency_seconds",
+      "Proxy end-to-end scrape latency in seconds",
+    )
+
+  private val agentQueueWait =
+    histogram(
+      "proxy_agent_queue_wait_seconds",
+      "Proxy time scrape requests wait for an agent to read them in seconds",
+      PRIORITY,
+    )
+
+  private val dispatchExpired =
+    counter {
+      name("proxy_dispatch_expired_count")
+      help("Proxy scrape requests dropped from an agent's dispatch queue after their deadline")
+      labelNames(PRIORITY)
+    }
+
+  private val agentTransfer =
+    histogram(
+      "proxy_agent_transfer_seconds",
+      "Proxy time from agent dispatch to scrape results arrival in seconds",
+    )
+
+  private val compressedBytes =
+    counter {
+      name("proxy_scrape_compressed_bytes")
+      help("Proxy scrape content bytes received from agents")
+      labelNames(PATH)
+    }
+
+  private val uncompressedBytes =
+    counter {
+      name("proxy_scrape_uncompressed_bytes")
+      help("Proxy scrape content bytes returned to clients")
+      labelNames(PATH)
+    }
+
   init {
     gauge {
       name("proxy_start_time_seconds")
@@ -89,10 +180,123 @@ internal class ProxyMetrics(
       data = lambda { proxy.scrapeRequestManager.scrapeMapSize.toDouble() },
     )
 
+    SamplerGaugeCollector(
+      name = "proxy_agent_admission_queue_size",
+      help = "Proxy agents waiting for admission",
+      data = lambda { proxy.admissionController.agentAdmissionQueueSize.toDouble() },
+    )
+
+    SamplerGaugeCollector(
+      name = "proxy_path_registration_queue_size",
+      help = "Proxy path registrations waiting for admission",
+      data = lambda { proxy.admissionController.pathRegistrationQueueSize.toDouble() },
+    )
+
     SamplerGaugeCollector(
       name = "proxy_cumulative_agent_backlog_size",
       help = "Proxy cumulative agent backlog size",
       data = lambda { proxy.agentContextManager.totalAgentScrapeRequestBacklogSize.toDouble() },
     )
   }
+
+  // Label children are resolved once per path/agent pair, so recording a scrape does no label lookups.
+  // Once pathLabelLimit distinct paths have been seen, new paths are reported under the OTHER_PATH label.
+  fun pathMetrics(
+    path: String,
+    agentName: String,
+  ): PathMetrics {
+    val agentMap =
+      pathMetricsMap[path]
+        ?: synchronized(pathMetricsMap) {
+          // The size check and insert are one step, so concurrent first scrapes of new paths cannot pass the limit
+          pathMetricsMap.compute(path) { _, agentMap ->
+            agentMap ?: newConcurrentMap<String, PathMetrics>().takeIf {
+              pathLabelCount < metricsConfigVals.pathLabelLimit
+            }
+          } ?: pathMetricsMap.computeIfAbsent(OTHER_PATH) { newConcurrentMap() }
+        }
+    return agentMap[agentName] ?: agentMap.computeIfAbsent(agentName) { PathMetrics(pathLabel(path), it) }
+  }
+
+  // Drops the label children of a path, or of one agent_name on it, once nothing is registered there
+  fun removePathMetrics(
+    path: String,
+    agentName: String? = null,
+  ) {
+    synchronized(pathMetricsMap) {
+      val agentMap = pathMetricsMap[path] ?: return
+      (agentName?.let { listOf(it) } ?: agentMap.keys.toList())
+        .forEach { name ->
+          agentMap.remove(name)
+          listOf(scrapeLatency, agentTransfer).forEach { it.remove(path, name) }
+          ScrapePriority.entries.forEach { agentQueueWait.remove(path, name, it.label) }
+        }
+      if (agentMap.isEmpty()) {
+        pathMetricsMap.remove(path)
+        compressedBytes.remove(path)
+        uncompressedBytes.remove(path)
+      }
+    }
+  }
+
+  fun dispatchExpiredCount(priority: ScrapePriority): Counter.Child = dispatchExpired.labels(priority.label)
+
+  private fun pathLabel(path: String) = if (pathMetricsMap.containsKey(path)) path else OTHER_PATH
+
+  // The OTHER_PATH bucket does not count against the limit, so a removed path's label can be reused
+  private val pathLabelCount: Int
+    get() = pathMetricsMap.size - (if (pathMetricsMap.containsKey(OTHER_PATH)) 1 else 0)
+
+  private fun histogram(
+    name: String,
+    help: String,
+    vararg labelNames: String,
+  ): Histogram =
+    Histogram.build()
+      .name(name)
+      .help(help)
+      .labelNames(PATH, AGENT_NAME, *labelNames)
+      .buckets(*latencyBuckets)
+      .register()
+
+  inner class PathMetrics(
+    path: String,
+    agentName: String,
+  ) {
+    private val scrapeLatencyChild: Histogram.Child = scrapeLatency.labels(path, agentName)
+    // Created on first use, so a path only reports the priorities its scrapes have
+    private val agentQueueWaitChildren: List<Lazy<Histogram.Child>> =
+      ScrapePriority.entries.map { lazy { agentQueueWait.labels(path, agentName, it.label) } }
+    private val agentTransferChild: Histogram.Child = agentTransfer.labels(path, agentName)
+    private val compressedBytesChild: Counter.Child = compressedBytes.labels(path)
+    private val uncompressedBytesChild: Counter.Child = uncompressedBytes.labels(path)
+
+    fun observeQueueWait(
+      duration: Duration,
+      priority: ScrapePriority,
+    ) = agentQueueWaitChildren[priority.ordinal].value.observe(duration.toDouble(SECONDS))
+
+    fun observeCompletion(
+      latency: Duration,
+      transfer: Duration,
+    ) {
+      scrapeLatencyChild.observe(latency.toDouble(SECONDS))
+      agentTransferChild.observe(transfer.toDouble(SECONDS))
+    }
+
+    fun observeContentSize(
+      compressedSize: Int,
+      uncompressedSize: Int,
+    ) {
+      compressedBytesChild.inc(compressedSize.toDouble())
+      uncompressedBytesChild.inc(uncompressedSize.toDouble())
+    }
+  }
+
+  companion object {
+    private const val PATH = "path"
+    private const val AGENT_NAME = "agent_name"
+    private const val OTHER_PATH = "other"
+    private const val PRIORITY = "priority"
+  }
 }
@@ -172,7 +172,6 @@ class ProxyOptions(
           assignTrustCertCollectionFilePath(tls.trustCertCollectionFilePath)
 
           logger.info { "internal.scrapeRequestTimeoutSecs: ${internal.scrapeRequestTimeoutSecs}" }
-          logger.info { "internal.staleAgentCheckPauseSecs: ${internal.staleAgentCheckPauseSecs}" }
           logger.info { "internal.maxAgentInactivitySecs: ${internal.maxAgentInactivitySecs}" }
         }
       }
@@ -26,6 +26,7 @@ import io.prometheus.Proxy
 import io.prometheus.common.Messages.EMPTY_AGENT_ID_MSG
 import io.prometheus.common.Messages.EMPTY_PATH_MSG
 import io.prometheus.grpc.UnregisterPathResponse
+import io.prometheus.proxy.PathTemplateTrie.Companion.isTemplate
 
 internal class ProxyPathManager(
   private val proxy: Proxy,
@@ -35,17 +36,36 @@ internal class ProxyPathManager(
     val isConsolidated: Boolean,
     val labels: String,
     val agentContexts: MutableList<AgentContext>,
+    val priority: ScrapePriority,
   ) {
     fun isNotValid() = !isConsolidated && agentContexts[0].isNotValid()
 
+    // Parked contexts are skipped until their agent resumes the session
+    fun routableContexts() = agentContexts.filter { it.isRoutable() }
+
     override fun toString(): String =
       "AgentContextInfo(consolidated=$isConsolidated, labels=$labels,agentContexts=$agentContexts)"
   }
 
+  class PathMatch(
+    val agentContextInfo: AgentContextInfo,
+    val template: PathTemplateTrie.Match?,
+  )
+
+  // Templates are kept in pathMap like other paths, and indexed here for matching request paths
   private val pathMap = newConcurrentMap<String, AgentContextInfo>()
+  private val templateTrie = PathTemplateTrie()
 
   fun getAgentContextInfo(path: String) = pathMap[path]
 
+  // Exact registrations take precedence over templates
+  fun matchPath(path: String): PathMatch? =
+    if (isTemplate(path))
+      null
+    else
+      pathMap[path]?.let { PathMatch(it, null) }
+        ?: templateTrie.match(path)?.let { match -> pathMap[match.template]?.let { PathMatch(it, match) } }
+
   val pathMapSize: Int
     get() = pathMap.size
 
@@ -62,25 +82,68 @@ internal class ProxyPathManager(
     require(path.isNotEmpty()) { EMPTY_PATH_MSG }
 
     synchronized(pathMap) {
-      val agentInfo = pathMap[path]
-      if (agentContext.consolidated) {
-        if (agentInfo.isNull()) {
-          pathMap[path] = AgentContextInfo(true, labels, mutableListOf(agentContext))
-        } else {
-          if (agentContext.consolidated != agentInfo.isConsolidated)
-            logger.warn {
-              "Mismatch of agent context types: ${agentContext.consolidated} and ${agentInfo.isConsolidated}"
-            }
-          else
-            agentInfo.agentContexts += agentContext
-        }
+      putPath(path, labels, agentContext)
+      if (!isTestMode) logger.info { "Added path /$path for $agentContext" }
+    }
+  }
+
+  // The whole batch is applied in a single update of the path map
+  fun addPaths(
+    paths: List<Pair<String, String>>,
+    agentContext: AgentContext,
+  ) {
+    paths.forEach { (path, _) -> require(path.isNotEmpty()) { EMPTY_PATH_MSG } }
+
+    synchronized(pathMap) {
+      paths.forEach { (path, labels) -> putPath(path, labels, agentContext) }
+      if (!isTestMode) logger.info { "Added ${paths.size} paths for $agentContext" }
+    }
+  }
+
+  private fun putPath(
+    path: String,
+    labels: String,
+    agentContext: AgentContext,
+  ) {
+    val agentInfo = pathMap[path]
+    if (agentContext.consolidated) {
+      if (agentInfo.isNull()) {
+        pathMap[path] = AgentContextInfo(true, labels, mutableListOf(agentContext), priorityOf(labels))
       } else {
-        if (agentInfo.isNotNull()) logger.info { "Overwriting path /$path for ${agentInfo.agentContexts[0]}" }
-        pathMap[path] = AgentContextInfo(false, labels, mutableListOf(agentContext))
+        if (agentContext.consolidated != agentInfo.isConsolidated)
+          logger.warn {
+            "Mismatch of agent context types: ${agentContext.consolidated} and ${agentInfo.isConsolidated}"
+          }
+        else
+          agentInfo.agentContexts += agentContext
       }
-
-      if (!isTestMode) logger.info { "Added path /$path for $agentContext" }
+    } else {
+      if (agentInfo.isNotNull()) logger.info { "Overwriting path /$path for ${agentInfo.agentContexts[0]}" }
+      pathMap[path] = AgentContextInfo(false, labels, mutableListOf(agentContext), priorityOf(labels))
     }
+    if (agentInfo.isNull() && isTemplate(path))
+      templateTrie.add(path)
+  }
+
+  private fun priorityOf(labels: String) =
+    ScrapePriority.fromLabels(labels, proxy.proxyConfigVals.internal.priorityLabelName)
+
+  private fun removeFromPathMap(path: String): AgentContextInfo? =
+    pathMap.remove(path)
+      ?.also {
+        if (isTemplate(path))
+          templateTrie.remove(path)
+        proxy.metrics { removePathMetrics(path) }
+      }
+
+  // Consolidated paths keep their metrics for the agent names still registered on them
+  private fun removeAgentPathMetrics(
+    path: String,
+    agentInfo: AgentContextInfo,
+    agentContext: AgentContext,
+  ) {
+    if (agentInfo.agentContexts.none { it.agentName == agentContext.agentName })
+      proxy.metrics { removePathMetrics(path, agentContext.agentName) }
   }
 
   fun removePath(
@@ -107,10 +170,11 @@ internal class ProxyPathManager(
           } else {
             if (agentInfo.isConsolidated && agentInfo.agentContexts.size > 1) {
               agentInfo.agentContexts.remove(agentContext)
+              removeAgentPathMetrics(path, agentInfo, agentContext)
               if (!isTestMode)
                 logger.info { "Removed element of path /$path for $agentInfo" }
             } else {
-              pathMap.remove(path)
+              removeFromPathMap(path)
               if (!isTestMode)
                 logger.info { "Removed path /$path for $agentInfo" }
             }
@@ -144,23 +208,45 @@ internal class ProxyPathManager(
         pathMap.forEach { (k, v) ->
           if (v.agentContexts.size == 1) {
             if (v.agentContexts[0].agentId == agentId)
-              pathMap.remove(k)
+              removeFromPathMap(k)
                 ?.also {
                   if (!isTestMode)
                     logger.info { "Removed path /$k for $it" }
                 } ?: logger.warn { "Missing ${agentContext.desc}path /$k for agentId: $agentId" }
           } else {
             val removed = v.agentContexts.removeIf { it.agentId == agentId }
-            if (removed)
+            if (removed) {
+              removeAgentPathMetrics(k, v, agentContext)
               logger.info { "Removed path /$k for $agentContext" }
-            else
+            } else {
               logger.warn { "Missing path /$k for agentId: $agentId" }
+            }
           }
         }
       }
     }
   }
 
+  // Returns the number of paths moved
+  fun transferPaths(
+    from: AgentContext,
+    to: AgentContext,
+  ): Int =
+    synchronized(pathMap) {
+      var count = 0
+      pathMap.values.forEach { info ->
+        info.agentContexts.replaceAll { agentContext ->
+          if (agentContext == from) {
+            count++
+            to
+          } else {
+            agentContext
+          }
+        }
+      }
+      count
+    }
+
   fun toPlainText() =
     if (pathMap.isEmpty()) {
       "No agents connected."
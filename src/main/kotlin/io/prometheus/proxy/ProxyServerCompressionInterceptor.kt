@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import com.google.protobuf.MessageLite
+import io.grpc.ForwardingServerCall
+import io.grpc.Metadata
+import io.grpc.ServerCall
+import io.grpc.ServerCallHandler
+import io.grpc.ServerInterceptor
+
+// Compresses messages sent to agents with grpc-encoding: gzip, skipping messages too small to benefit.
+// gRPC falls back to identity for agents that do not advertise gzip in grpc-accept-encoding.
+internal class ProxyServerCompressionInterceptor(
+  private val minSizeBytes: Int,
+) : ServerInterceptor {
+  override fun <ReqT, RespT> interceptCall(
+    call: ServerCall<ReqT, RespT>,
+    requestHeaders: Metadata,
+    handler: ServerCallHandler<ReqT, RespT>,
+  ): ServerCall.Listener<ReqT> =
+    handler.startCall(
+      object : ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+        override fun sendHeaders(headers: Metadata) {
+          setCompression(GZIP)
+          super.sendHeaders(headers)
+        }
+
+        override fun sendMessage(message: RespT) {
+          setMessageCompression(((message as? MessageLite)?.serializedSize ?: 0) >= minSizeBytes)
+          super.sendMessage(message)
+        }
+      },
+      requestHeaders,
+    )
+
+  companion object {
+    private const val GZIP = "gzip"
+  }
+}
@@ -18,22 +18,41 @@
 
 package io.prometheus.proxy
 
+import io.grpc.Context
+import io.grpc.Contexts
 import io.grpc.ForwardingServerCall
 import io.grpc.Metadata
 import io.grpc.Metadata.ASCII_STRING_MARSHALLER
 import io.grpc.ServerCall
 import io.grpc.ServerCallHandler
 import io.grpc.ServerInterceptor
+import io.grpc.Status
+import io.prometheus.Proxy
 import io.prometheus.proxy.ProxyServerTransportFilter.Companion.AGENT_ID
 import io.prometheus.proxy.ProxyServerTransportFilter.Companion.AGENT_ID_KEY
 
-internal class ProxyServerInterceptor : ServerInterceptor {
+internal class ProxyServerInterceptor(
+  private val proxy: Proxy,
+) : ServerInterceptor {
   override fun <ReqT, RespT> interceptCall(
     call: ServerCall<ReqT, RespT>,
     requestHeaders: Metadata,
     handler: ServerCallHandler<ReqT, RespT>,
-  ): ServerCall.Listener<ReqT> =
-    handler.startCall(
+  ): ServerCall.Listener<ReqT> {
+    // Calls on an agent's extra pool connections carry its agent_id and attach token
+    requestHeaders.get(META_AGENT_ID_KEY)?.also { agentId ->
+      call.attributes.get(AGENT_ID_KEY)?.also { connectionAgentId ->
+        val attachToken = requestHeaders.get(META_ATTACH_TOKEN_KEY).orEmpty()
+        if (!proxy.agentContextManager.attachConnection(connectionAgentId, agentId, attachToken)) {
+          call.close(Status.PERMISSION_DENIED.withDescription("Invalid attach token for agentId: $agentId"), Metadata())
+          return object : ServerCall.Listener<ReqT>() {}
+        }
+      }
+    }
+
+    // Lets calls such as connectAgent() find the AgentContext of their connection
+    return Contexts.interceptCall(
+      Context.current().withValue(AGENT_ID_CONTEXT_KEY, call.attributes.get(AGENT_ID_KEY)),
       object : ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
         override fun sendHeaders(headers: Metadata) {
           // ATTRIB_AGENT_ID was assigned in ServerTransportFilter
@@ -42,9 +61,13 @@ internal class ProxyServerInterceptor : ServerInterceptor {
         }
       },
       requestHeaders,
+      handler,
     )
+  }
 
   companion object {
     internal val META_AGENT_ID_KEY = Metadata.Key.of(AGENT_ID, ASCII_STRING_MARSHALLER)
+    internal val META_ATTACH_TOKEN_KEY = Metadata.Key.of("attach-token", ASCII_STRING_MARSHALLER)
+    internal val AGENT_ID_CONTEXT_KEY: Context.Key<String> = Context.key(AGENT_ID)
   }
 }
@@ -32,7 +32,7 @@ internal class ProxyServerTransportFilter(
   override fun transportReady(attributes: Attributes): Attributes {
     val remoteAddress = attributes.get(REMOTE_ADDR_KEY)?.toString() ?: UNKNOWN_ADDRESS
     val agentContext = AgentContext(remoteAddress)
-    proxy.agentContextManager.addAgentContext(agentContext)
+    proxy.addAgentContext(agentContext)
 
     return attributes {
       set(AGENT_ID_KEY, agentContext.agentId)
@@ -42,8 +42,12 @@ internal class ProxyServerTransportFilter(
 
   override fun transportTerminated(attributes: Attributes) {
     attributes.get(AGENT_ID_KEY)?.also { agentId ->
-      val context = proxy.removeAgentContext(agentId, "Termination")
-      logger.info { "Disconnected ${if (context.isNotNull()) "from $context" else "with invalid agentId: $agentId"}" }
+      if (proxy.agentContextManager.detachConnection(agentId)) {
+        logger.info { "Disconnected pool connection $agentId" }
+      } else {
+        val context = proxy.disconnectAgentContext(agentId, "Termination")
+        logger.info { "Disconnected ${if (context.isNotNull()) "from $context" else "with invalid agentId: $agentId"}" }
+      }
     } ?: logger.error { "Missing agentId in transportTerminated()" }
     super.transportTerminated(attributes)
   }
@@ -25,30 +25,49 @@ import io.github.oshai.kotlinlogging.KotlinLogging
 import io.grpc.Status
 import io.prometheus.Proxy
 import io.prometheus.agent.RequestFailureException
+import io.prometheus.common.Constants.PROTOCOL_V1
+import io.prometheus.common.Constants.PROTOCOL_V2
+import io.prometheus.common.ContentCodecs
 import io.prometheus.common.DefaultObjects.EMPTY_INSTANCE
+import io.prometheus.common.GrpcObjects.retryLaterException
 import io.prometheus.common.GrpcObjects.toScrapeResults
+import io.prometheus.common.GrpcObjects.toZstdDictionaryCodec
 import io.prometheus.common.Messages.EMPTY_AGENT_ID_MSG
 import io.prometheus.common.Utils.toLowercase
 import io.prometheus.grpc.AgentInfo
+import io.prometheus.grpc.AgentMessage
+import io.prometheus.grpc.AgentMessage.MessageOneOfCase.AGENT_INFO
+import io.prometheus.grpc.AgentMessage.MessageOneOfCase.CHUNKED_RESPONSE
+import io.prometheus.grpc.AgentMessage.MessageOneOfCase.COMPRESSION_DICTIONARY
+import io.prometheus.grpc.AgentMessage.MessageOneOfCase.HEART_BEAT_REQUEST
+import io.prometheus.grpc.AgentMessage.MessageOneOfCase.SCRAPE_RESPONSE
+import io.prometheus.grpc.CancelScrape
 import io.prometheus.grpc.ChunkedScrapeResponse
 import io.prometheus.grpc.HeartBeatRequest
 import io.prometheus.grpc.HeartBeatResponse
 import io.prometheus.grpc.PathMapSizeRequest
 import io.prometheus.grpc.PathMapSizeResponse
+import io.prometheus.grpc.ProxyMessage
 import io.prometheus.grpc.ProxyServiceGrpcKt
 import io.prometheus.grpc.RegisterAgentRequest
 import io.prometheus.grpc.RegisterAgentResponse
 import io.prometheus.grpc.RegisterPathRequest
 import io.prometheus.grpc.RegisterPathResponse
+import io.prometheus.grpc.RegisterPathsRequest
+import io.prometheus.grpc.RegisterPathsResponse
 import io.prometheus.grpc.ScrapeRequest
 import io.prometheus.grpc.ScrapeResponse
 import io.prometheus.grpc.UnregisterPathRequest
 import io.prometheus.grpc.UnregisterPathResponse
+import io.prometheus.proxy.ProxyServerInterceptor.Companion.AGENT_ID_CONTEXT_KEY
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
 import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
 import java.util.concurrent.CancellationException
 import kotlin.concurrent.atomics.AtomicLong
 import kotlin.concurrent.atomics.fetchAndIncrement
+import kotlin.time.Duration.Companion.milliseconds
 
 internal class ProxyServiceImpl(
   private val proxy: Proxy,
@@ -61,6 +80,10 @@ internal class ProxyServiceImpl(
       }
     }
 
+    checkRegistrationBacklog()
+    AGENT_ID_CONTEXT_KEY.get()
+      ?.let { proxy.agentContextManager.getAgentContext(it) }
+      ?.also { proxy.admissionController.admitAgent(it) }
     proxy.metrics { connectCount.inc() }
     return EMPTY_INSTANCE
   }
@@ -74,9 +97,16 @@ internal class ProxyServiceImpl(
         }
     }
 
+    checkRegistrationBacklog()
     proxy.metrics { connectCount.inc() }
     val agentContext = AgentContext(UNKNOWN_ADDRESS)
-    proxy.agentContextManager.addAgentContext(agentContext)
+    proxy.addAgentContext(agentContext)
+    try {
+      proxy.admissionController.admitAgent(agentContext)
+    } catch (e: Exception) {
+      proxy.removeAgentContext(agentContext.agentId, "Not admitted")
+      throw e
+    }
     return AgentInfo
       .newBuilder()
       .also {
@@ -86,14 +116,34 @@ internal class ProxyServiceImpl(
       .build()
   }
 
+  // Asks agents to come back later while too many others are still registering, e.g., after a proxy restart
+  private fun checkRegistrationBacklog() {
+    with(proxy.proxyConfigVals.internal) {
+      val pendingCount = proxy.agentContextManager.pendingRegistrationCount
+      if (maxPendingAgentRegistrations > 0 && pendingCount > maxPendingAgentRegistrations)
+        throw retryLaterException("$pendingCount agents awaiting registration", agentRetryHintMillis.milliseconds)
+    }
+  }
+
   override suspend fun registerAgent(request: RegisterAgentRequest): RegisterAgentResponse {
     var valid = false
+    var issuedSessionToken = ""
+    var issuedAttachToken = ""
+    var sessionResumed = false
 
     proxy.agentContextManager.getAgentContext(request.agentId)
       ?.apply {
         valid = true
         assignProperties(request)
+        proxy.agentContextManager.clearPendingRegistration(this)
         markActivityTime(false)
+        issuedAttachToken = attachToken
+        if (proxy.proxyConfigVals.internal.sessionResumeGraceSecs > 0) {
+          if (request.sessionToken.isNotEmpty())
+            sessionResumed = proxy.resumeAgentSession(request.sessionToken, this)
+          proxy.agentContextManager.addSession(this)
+          issuedSessionToken = sessionToken
+        }
         logger.info { "Connected to $this" }
       } ?: logger.info { "registerAgent() missing AgentContext agentId: ${request.agentId}" }
 
@@ -103,6 +153,15 @@ internal class ProxyServiceImpl(
         it.valid = valid
         it.reason = request.agentId
         it.agentId = "Invalid agentId: ${request.agentId} (registerAgent)"
+        it.protocolVersion = request.protocolVersion.coerceIn(PROTOCOL_V1, PROTOCOL_V2)
+        // The agent lists codecs in order of preference; no match falls back to gzip
+        it.codec = request.supportedCodecsList.firstOrNull { codec -> codec in ContentCodecs.available }.orEmpty()
+        // Dictionaries are shipped on scrapeStream, so they need protocol v2
+        it.dictionaryCompression = it.protocolVersion == PROTOCOL_V2 && it.codec == ContentCodecs.ZSTD
+        it.sessionToken = issuedSessionToken
+        it.sessionResumed = sessionResumed
+        it.deltaEncoding = true
+        it.attachToken = issuedAttachToken
       }
       .build()
   }
@@ -112,6 +171,7 @@ internal class ProxyServiceImpl(
 
     proxy.agentContextManager.getAgentContext(request.agentId)
       ?.apply {
+        proxy.admissionController.admitPaths(1)
         valid = true
         proxy.pathManager.addPath(request.path, request.labels, this)
         markActivityTime(false)
@@ -128,6 +188,29 @@ internal class ProxyServiceImpl(
       .build()
   }
 
+  override suspend fun registerPaths(request: RegisterPathsRequest): RegisterPathsResponse {
+    var valid = false
+
+    proxy.agentContextManager.getAgentContext(request.agentId)
+      ?.apply {
+        proxy.admissionController.admitPaths(request.pathsCount)
+        valid = true
+        proxy.pathManager.addPaths(request.pathsList.map { it.path to it.labels }, this)
+        markActivityTime(false)
+      } ?: logger.error { "Missing AgentContext for agentId: ${request.agentId}" }
+
+    return RegisterPathsResponse
+      .newBuilder()
+      .also {
+        if (valid)
+          it.addAllPathIds(request.pathsList.map { PATH_ID_GENERATOR.fetchAndIncrement() })
+        it.valid = valid
+        it.reason = "Invalid agentId: ${request.agentId} (registerPaths)"
+        it.pathCount = proxy.pathManager.pathMapSize
+      }
+      .build()
+  }
+
   override suspend fun unregisterPath(request: UnregisterPathRequest): UnregisterPathResponse {
     val agentId = request.agentId
     val agentContext = proxy.agentContextManager.getAgentContext(agentId)
@@ -151,7 +234,9 @@ internal class ProxyServiceImpl(
       .also { it.pathCount = proxy.pathManager.pathMapSize }
       .build()!!
 
-  override suspend fun sendHeartBeat(request: HeartBeatRequest) =
+  override suspend fun sendHeartBeat(request: HeartBeatRequest) = processHeartBeat(request)
+
+  private fun processHeartBeat(request: HeartBeatRequest) =
     proxy.agentContextManager.getAgentContext(request.agentId)
       .let { agentContext ->
         proxy.metrics { heartbeatCount.inc() }
@@ -194,54 +279,145 @@ internal class ProxyServiceImpl(
   }
 
   override suspend fun writeChunkedResponsesToProxy(requests: Flow<ChunkedScrapeResponse>): Empty {
+    // scrape_ids with a header but no summary yet on this stream
+    val pendingScrapeIds = mutableSetOf<Long>()
+
     runCatching {
-      requests.collect { response ->
-        val ooc = response.chunkOneOfCase
-        val chunkedContextMap = proxy.agentContextManager.chunkedContextMap
-        when (ooc.name.toLowercase()) {
-          "header" -> {
-            val scrapeId = response.header.headerScrapeId
-            logger.debug { "Reading header for scrapeId: $scrapeId}" }
-            chunkedContextMap[scrapeId] = ChunkedContext(response)
+      requests.collect { response -> processChunkedResponse(response, pendingScrapeIds) }
+    }.onFailure { throwable ->
+      if (proxy.isRunning)
+        Status.fromThrowable(throwable)
+          .also { arg ->
+            if (arg.code != Status.Code.CANCELLED && arg.cause !is CancellationException)
+              logger.error(throwable) { "Error in writeChunkedResponsesToProxy(): $arg" }
           }
+    }
 
-          "chunk" -> {
-            response.chunk
-              .apply {
-                logger.debug { "Reading chunk $chunkCount for scrapeId: $chunkScrapeId" }
-                val context = chunkedContextMap[chunkScrapeId]
-                check(context.isNotNull()) { "Missing chunked context with scrapeId: $chunkScrapeId" }
-                context.applyChunk(chunkBytes.toByteArray(), chunkByteCount, chunkCount, chunkChecksum)
+    // The stream is gone, so these summaries will never arrive
+    pendingScrapeIds.forEach { proxy.reapChunkedContext(it, "stream_closed") }
+    return EMPTY_INSTANCE
+  }
+
+  // Protocol v2: requests, responses, chunks and heartbeats share a single stream per agent
+  override fun scrapeStream(requests: Flow<AgentMessage>): Flow<ProxyMessage> =
+    channelFlow {
+      var agentContext: AgentContext? = null
+      val pendingScrapeIds = mutableSetOf<Long>()
+      var closedByAgent = false
+
+      try {
+        requests.collect { message ->
+          when (message.messageOneOfCase) {
+            AGENT_INFO -> {
+              val agentId = message.agentInfo.agentId
+              check(agentContext.isNull()) { "Duplicate agent_info on scrapeStream for agentId: $agentId" }
+              val context =
+                proxy.agentContextManager.getAgentContext(agentId)
+                  ?: throw Status.NOT_FOUND.withDescription("Invalid agentId: $agentId (scrapeStream)").asException()
+              agentContext = context
+
+              launch {
+                while (proxy.isRunning && context.isValid()) {
+                  context.readScrapeRequest()
+                    ?.apply { send(ProxyMessage.newBuilder().also { it.scrapeRequest = scrapeRequest }.build()) }
+                }
               }
-          }
 
-          "summary" -> {
-            response.summary
-              .apply {
-                val context = chunkedContextMap.remove(summaryScrapeId)
-                check(context.isNotNull()) { "Missing chunked context with scrapeId: $summaryScrapeId" }
-                logger.debug {
-                  val ccnt = context.totalChunkCount
-                  val bcnt = context.totalByteCount
-                  "Reading summary chunkCount: $ccnt byteCount: $bcnt for scrapeId: $summaryScrapeId"
+              context.cancelSupported = true
+              launch {
+                while (proxy.isRunning && context.isValid()) {
+                  context.readCancelledScrapeId()
+                    ?.also { scrapeId ->
+                      val cancelScrape = CancelScrape.newBuilder().also { it.cancelScrapeId = scrapeId }.build()
+                      send(ProxyMessage.newBuilder().also { it.cancelScrape = cancelScrape }.build())
+                    }
                 }
-                context.applySummary(summaryChunkCount, summaryByteCount, summaryChecksum)
-                proxy.scrapeRequestManager.assignScrapeResults(context.scrapeResults)
               }
-          }
+            }
 
-          else -> error("Invalid field name in writeChunkedResponsesToProxy()")
+            SCRAPE_RESPONSE -> proxy.scrapeRequestManager.assignScrapeResults(message.scrapeResponse.toScrapeResults())
+
+            CHUNKED_RESPONSE -> processChunkedResponse(message.chunkedResponse, pendingScrapeIds)
+
+            COMPRESSION_DICTIONARY -> {
+              val context = checkNotNull(agentContext) { "compression_dictionary sent before agent_info" }
+              message.compressionDictionary
+                .also { logger.info { "Received dictionary ${it.dictionaryId} for /${it.path} from $context" } }
+                .toZstdDictionaryCodec()
+                .also { context.addCompressionDictionary(it) }
+            }
+
+            HEART_BEAT_REQUEST -> {
+              val response = processHeartBeat(message.heartBeatRequest)
+              send(ProxyMessage.newBuilder().also { it.heartBeatResponse = response }.build())
+            }
+
+            else -> error("Invalid message type in scrapeStream(): ${message.messageOneOfCase}")
+          }
         }
+        // The agent half-closed the stream, so it is shutting down rather than reconnecting
+        closedByAgent = true
+      } catch (e: Throwable) {
+        if (proxy.isRunning && e !is CancellationException)
+          logger.error(e) { "Error in scrapeStream(): ${Status.fromThrowable(e)}" }
+        throw e
+      } finally {
+        pendingScrapeIds.forEach { proxy.reapChunkedContext(it, "stream_closed") }
+
+        // The stream is the agent's connection, so the agent is gone when it ends
+        agentContext
+          ?.takeIf { it.isValid() }
+          ?.also { proxy.disconnectAgentContext(it.agentId, "Stream closed", resumable = !closedByAgent) }
       }
-    }.onFailure { throwable ->
-      if (proxy.isRunning)
-        Status.fromThrowable(throwable)
-          .also { arg ->
-            if (arg.code != Status.Code.CANCELLED && arg.cause !is CancellationException)
-              logger.error(throwable) { "Error in writeChunkedResponsesToProxy(): $arg" }
+    }
+
+  private fun processChunkedResponse(
+    response: ChunkedScrapeResponse,
+    pendingScrapeIds: MutableSet<Long>,
+  ) {
+    val ooc = response.chunkOneOfCase
+    val chunkedContextMap = proxy.agentContextManager.chunkedContextMap
+    when (ooc.name.toLowercase()) {
+      "header" -> {
+        val scrapeId = response.header.headerScrapeId
+        logger.debug { "Reading header for scrapeId: $scrapeId}" }
+        proxy.addChunkedContext(scrapeId, ChunkedContext(response))
+        pendingScrapeIds += scrapeId
+      }
+
+      "chunk" -> {
+        response.chunk
+          .apply {
+            logger.debug { "Reading chunk $chunkCount for scrapeId: $chunkScrapeId" }
+            // A missing context has already been reaped, so the remaining chunks are dropped. The summary
+            // logs the drop once for the whole transfer.
+            chunkedContextMap[chunkScrapeId]
+              ?.applyChunk(chunkBytes.toByteArray(), chunkByteCount, chunkCount, chunkChecksum)
+              ?: logger.debug { "Missing chunked context with scrapeId: $chunkScrapeId" }
           }
+      }
+
+      "summary" -> {
+        response.summary
+          .apply {
+            pendingScrapeIds -= summaryScrapeId
+            val context = chunkedContextMap.remove(summaryScrapeId)
+            if (context.isNull()) {
+              logger.info { "Dropped chunked response with reaped context for scrapeId: $summaryScrapeId" }
+            } else {
+              logger.debug {
+                val ccnt = context.totalChunkCount
+                val bcnt = context.totalByteCount
+                "Reading summary chunkCount: $ccnt byteCount: $bcnt for scrapeId: $summaryScrapeId"
+              }
+              context.applySummary(summaryChunkCount, summaryByteCount, summaryChecksum)
+              proxy.scrapeRequestManager.assignScrapeResults(context.scrapeResults)
+            }
+          }
+      }
+
+      else -> error("Invalid field name in writeChunkedResponsesToProxy()")
     }
-    return EMPTY_INSTANCE
   }
 
   companion object {
@@ -24,6 +24,7 @@ import io.ktor.http.HttpStatusCode
 import io.ktor.http.withCharset
 import io.ktor.server.application.ApplicationCall
 import io.ktor.server.response.header
+import io.ktor.server.response.respondBytes
 import io.ktor.server.response.respondText
 import io.prometheus.Proxy
 import io.prometheus.proxy.ProxyConstants.CACHE_CONTROL_VALUE
@@ -64,6 +65,23 @@ object ProxyUtils {
     )
   }
 
+  fun agentUnavailableResponse(
+    path: String,
+    proxy: Proxy,
+    logger: KLogger,
+    responseResults: ResponseResults,
+  ) {
+    updateResponse(
+      message = "Agent for /$path disconnected, awaiting session resumption",
+      proxy = proxy,
+      logger = logger,
+      logLevel = KLogger::info,
+      responseResults = responseResults,
+      updateMsg = "agent_unavailable",
+      statusCode = HttpStatusCode.ServiceUnavailable,
+    )
+  }
+
   fun emptyPathResponse(
     proxy: Proxy,
     logger: KLogger,
@@ -128,4 +146,14 @@ object ProxyUtils {
     response.status(status)
     respondText(text, contentType, status)
   }
+
+  suspend fun ApplicationCall.respondWith(
+    bytes: ByteArray,
+    contentType: ContentType = Text.Plain.withCharset(Charsets.UTF_8),
+    status: HttpStatusCode = HttpStatusCode.OK,
+  ) {
+    response.header(HttpHeaders.CacheControl, CACHE_CONTROL_VALUE)
+    response.status(status)
+    respondBytes(bytes, contentType, status)
+  }
 }
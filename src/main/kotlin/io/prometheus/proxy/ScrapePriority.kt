@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import io.prometheus.common.Utils.toJsonElement
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+
+// Dispatch class of a path's scrapes, taken from a registration label. Paths without one are NORMAL.
+internal enum class ScrapePriority {
+  HIGH,
+  NORMAL,
+  LOW,
+  ;
+
+  val label = name.lowercase()
+
+  companion object {
+    fun fromLabels(
+      labels: String,
+      labelName: String,
+    ): ScrapePriority =
+      labelName.takeIf { it.isNotEmpty() && labels.isNotBlank() }
+        ?.let { runCatching { labels.toJsonElement().jsonObject[it]?.jsonPrimitive?.content }.getOrNull() }
+        ?.let { value -> entries.firstOrNull { it.label == value.lowercase() } }
+        ?: NORMAL
+  }
+}
@@ -20,16 +20,29 @@ package io.prometheus.proxy
 
 import com.google.common.collect.Maps.newConcurrentMap
 import io.github.oshai.kotlinlogging.KotlinLogging
+import io.prometheus.common.ConcurrentLongMap
 import io.prometheus.common.ScrapeResults
 import java.util.concurrent.ConcurrentMap
+import kotlin.concurrent.atomics.AtomicLong
+import kotlin.concurrent.atomics.minusAssign
+import kotlin.concurrent.atomics.plusAssign
 
-internal class ScrapeRequestManager {
+internal class ScrapeRequestManager(
+  private val maxCachedBytes: Long,
+) {
   // Map scrape_id to agent_id
-  val scrapeRequestMap: ConcurrentMap<Long, ScrapeRequestWrapper> = newConcurrentMap()
+  val scrapeRequestMap = ConcurrentLongMap<ScrapeRequestWrapper>()
+
+  // Map agent_id, then scrape target, to the last payload returned for it
+  private val contentCache = newConcurrentMap<String, ConcurrentMap<String, CachedContent>>()
+  private val cachedBytes = AtomicLong(0L)
 
   val scrapeMapSize: Int
     get() = scrapeRequestMap.size
 
+  val cachedByteCount: Long
+    get() = cachedBytes.load()
+
   fun addToScrapeRequestMap(scrapeRequest: ScrapeRequestWrapper): ScrapeRequestWrapper? {
     val scrapeId = scrapeRequest.scrapeId
     logger.debug { "Adding scrapeId: $scrapeId to scrapeRequestMap" }
@@ -51,6 +64,61 @@ internal class ScrapeRequestManager {
     return scrapeRequestMap.remove(scrapeId)
   }
 
+  fun cachedContentHash(
+    agentId: String,
+    targetKey: String,
+  ): Long = contentCache[agentId]?.get(targetKey)?.hash ?: 0L
+
+  // Returns null if the cached payload was replaced or evicted since the request was sent
+  fun cachedContent(
+    agentId: String,
+    targetKey: String,
+    hash: Long,
+  ): ByteArray? = contentCache[agentId]?.get(targetKey)?.takeIf { it.hash == hash }?.content
+
+  // Entries are added and removed under the outer map's lock for agentId, so content cached while
+  // removeCachedContent() runs cannot land in a discarded map and leave its bytes counted
+  fun cacheContent(
+    agentId: String,
+    targetKey: String,
+    hash: Long,
+    content: ByteArray,
+  ) {
+    contentCache.compute(agentId) { _, current ->
+      (current ?: newConcurrentMap()).also { agentCache ->
+        agentCache.remove(targetKey)?.also { cachedBytes -= it.size }
+        // Once the cache is full, payloads are sent in full until space is freed
+        if (reserveBytes(content.size.toLong()))
+          agentCache[targetKey] = CachedContent(hash, content)
+      }
+    }
+  }
+
+  fun removeCachedContent(agentId: String) {
+    contentCache.compute(agentId) { _, agentCache ->
+      agentCache?.values?.forEach { cachedBytes -= it.size }
+      null
+    }
+  }
+
+  // Agents are cached under different locks, so the limit is checked and reserved in one step
+  private fun reserveBytes(size: Long): Boolean {
+    while (true) {
+      val current = cachedBytes.load()
+      if (current + size > maxCachedBytes)
+        return false
+      if (cachedBytes.compareAndSet(current, current + size))
+        return true
+    }
+  }
+
+  private class CachedContent(
+    val hash: Long,
+    val content: ByteArray,
+  ) {
+    val size: Long get() = content.size.toLong()
+  }
+
   companion object {
     private val logger = KotlinLogging.logger {}
   }
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2024 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus.proxy
+
+import kotlinx.coroutines.channels.Channel
+import java.util.PriorityQueue
+
+// Scrapes waiting to be dispatched to one agent, highest priority class first and earliest deadline first
+// within a class. Every MIN_SHARE_INTERVAL-th dispatch instead goes to the class whose next scrape has waited
+// longest, so a steady stream of higher priority scrapes cannot starve the others. Once closed, no scrapes
+// are added, but those already queued can still be taken.
+internal class ScrapeRequestQueue {
+  private val queues = ScrapePriority.entries.map { PriorityQueue(DEADLINE_ORDER) }
+  private val available = Channel<Unit>(Channel.CONFLATED)
+  private var dispatchCount = 0
+  private var closed = false
+
+  val size: Int
+    get() = synchronized(queues) { queues.sumOf { it.size } }
+
+  val isClosedForReceive: Boolean
+    get() = synchronized(queues) { closed && queues.all { it.isEmpty() } }
+
+  // Returns false if the queue is closed
+  fun offer(scrapeRequest: ScrapeRequestWrapper): Boolean {
+    synchronized(queues) {
+      if (closed)
+        return false
+      queues[scrapeRequest.priority.ordinal] += scrapeRequest
+    }
+    available.trySend(Unit)
+    return true
+  }
+
+  // Returns null once the queue is closed and empty
+  suspend fun take(): ScrapeRequestWrapper? {
+    while (true) {
+      poll()?.also { return it }
+      if (isClosedForReceive)
+        return null
+      available.receiveCatching()
+    }
+  }
+
+  // Scrapes past their deadline are dropped, since nobody is waiting for them any longer
+  fun poll(): ScrapeRequestWrapper? {
+    while (true) {
+      val scrapeRequest = synchronized(queues) { nextQueue()?.poll() } ?: return null
+      if (!scrapeRequest.isExpired)
+        return scrapeRequest
+      scrapeRequest.markExpiredInQueue()
+    }
+  }
+
+  fun close() {
+    synchronized(queues) { closed = true }
+    available.close()
+  }
+
+  private fun nextQueue(): PriorityQueue<ScrapeRequestWrapper>? {
+    val waiting = queues.filter { it.isNotEmpty() }
+    if (waiting.isEmpty())
+      return null
+    dispatchCount += 1
+    return if (dispatchCount % MIN_SHARE_INTERVAL == 0)
+      waiting.maxBy { it.peek().ageDuration() }
+    else
+      waiting.first()
+  }
+
+  companion object {
+    internal const val MIN_SHARE_INTERVAL = 4
+
+    private val DEADLINE_ORDER =
+      compareBy<ScrapeRequestWrapper> { it.deadline }
+        .thenBy { it.scrapeId }
+  }
+}
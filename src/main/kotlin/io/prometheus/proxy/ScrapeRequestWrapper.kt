@@ -25,28 +25,50 @@ import io.prometheus.Proxy
 import io.prometheus.common.Messages.EMPTY_AGENT_ID_MSG
 import io.prometheus.common.ScrapeResults
 import io.prometheus.grpc.ScrapeRequest
+import io.prometheus.proxy.ProxyConstants.ABANDONED_MSG
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.withTimeoutOrNull
+import kotlin.concurrent.atomics.AtomicBoolean
 import kotlin.concurrent.atomics.AtomicLong
 import kotlin.concurrent.atomics.fetchAndIncrement
 import kotlin.time.Duration
+import kotlin.time.TimeMark
 import kotlin.time.TimeSource.Monotonic
 
 internal class ScrapeRequestWrapper(
-  val agentContext: AgentContext,
+  agentContext: AgentContext,
   proxy: Proxy,
   path: String,
+  template: PathTemplateTrie.Match?,
+  val priority: ScrapePriority,
+  val deadline: Monotonic.ValueTimeMark,
   encodedQueryParams: String,
   authHeader: String,
   accept: String?,
   debugEnabled: Boolean,
+  fullTransfer: Boolean = false,
 ) {
   private val clock = Monotonic
   private val createTimeMark = clock.markNow()
+  private var dispatchTimeMark: TimeMark by nonNullableReference(createTimeMark)
   private val completeChannel = Channel<Boolean>()
+  private val finished = AtomicBoolean(false)
+  private val dispatched = AtomicBoolean(false)
   private val requestTimer = if (proxy.isMetricsEnabled) proxy.metrics.scrapeRequestLatency.startTimer() else null
+  private val pathMetrics =
+    // Templated paths are reported under the template, so each target does not add label values
+    if (proxy.isMetricsEnabled) proxy.metrics.pathMetrics(template?.template ?: path, agentContext.agentName) else null
+  private val dispatchExpiredCount = if (proxy.isMetricsEnabled) proxy.metrics.dispatchExpiredCount(priority) else null
 
-  val scrapeRequest =
+  // Content varies with the query params, so each combination is cached separately
+  val targetKey = "$path?$encodedQueryParams"
+
+  @Volatile
+  var agentContext: AgentContext = agentContext
+    private set
+
+  @Volatile
+  var scrapeRequest: ScrapeRequest =
     ScrapeRequest
       .newBuilder()
       .also {
@@ -54,23 +76,107 @@ internal class ScrapeRequestWrapper(
         it.agentId = agentContext.agentId
         it.scrapeId = SCRAPE_ID_GENERATOR.fetchAndIncrement()
         it.path = path
+        template?.also { match ->
+          it.pathTemplate = match.template
+          it.putAllPathParams(match.params)
+        }
         it.accept = accept.orEmpty()
         it.debugEnabled = debugEnabled
         it.encodedQueryParams = encodedQueryParams
         it.authHeader = authHeader
+        if (!fullTransfer) {
+          it.deltaBaseVersion = agentContext.latestDeltaBaseVersion(targetKey)
+          if (proxy.proxyConfigVals.internal.unchangedContentCacheEnabled)
+            it.unchangedContentHash = proxy.scrapeRequestManager.cachedContentHash(agentContext.agentId, targetKey)
+        }
       }
       .build()!!
+    private set
 
   var scrapeResults: ScrapeResults by nonNullableReference()
 
+  // Set when the scrape ends without results, e.g., agent_disconnected
+  var failureMsg: String by nonNullableReference("")
+    private set
+
+  val isFailed: Boolean
+    get() = failureMsg.isNotEmpty()
+
   val scrapeId: Long
     get() = scrapeRequest.scrapeId
 
   fun ageDuration() = createTimeMark.elapsedNow()
 
+  val isExpired: Boolean
+    get() = deadline.hasPassedNow()
+
+  // Moves a queued scrape to the agent's new connection after a session resume. The delta base and cached
+  // content the request refers to belong to the previous connection, so the full content is requested.
+  fun reassign(agentContext: AgentContext) {
+    this.agentContext = agentContext
+    scrapeRequest =
+      scrapeRequest
+        .toBuilder()
+        .also {
+          it.agentId = agentContext.agentId
+          it.clearDeltaBaseVersion()
+          it.clearUnchangedContentHash()
+        }
+        .build()
+  }
+
+  // Returns false if the scrape ended while queued, so it is not sent to the agent
+  fun markDispatched(): Boolean {
+    dispatched.store(true)
+    if (finished.load())
+      return false
+    dispatchTimeMark = clock.markNow()
+    // Sent as the time remaining, since neither monotonic time marks nor wall clocks carry over to the agent
+    scrapeRequest =
+      scrapeRequest
+        .toBuilder()
+        .also { it.timeoutMillis = (-deadline.elapsedNow()).inWholeMilliseconds.coerceAtLeast(1) }
+        .build()
+    pathMetrics?.observeQueueWait(createTimeMark.elapsedNow(), priority)
+    return true
+  }
+
+  // The caller returns timed_out once it sees the deadline has passed
+  fun markExpiredInQueue() {
+    dispatchExpiredCount?.inc()
+  }
+
   fun markComplete() {
-    requestTimer?.observeDuration()
-    completeChannel.close()
+    if (finished.compareAndSet(false, true)) {
+      requestTimer?.observeDuration()
+      pathMetrics?.observeCompletion(createTimeMark.elapsedNow(), dispatchTimeMark.elapsedNow())
+      completeChannel.close()
+    }
+  }
+
+  fun markFailed(updateMsg: String) {
+    if (finished.compareAndSet(false, true)) {
+      failureMsg = updateMsg
+      completeChannel.close()
+    }
+  }
+
+  // Called when the caller stops waiting. Returns true if the scrape had already been sent to the agent,
+  // which is then still working on it.
+  fun markAbandoned(): Boolean =
+    finished.compareAndSet(false, true)
+      .also {
+        if (it) {
+          failureMsg = ABANDONED_MSG
+          completeChannel.close()
+        }
+      } && dispatched.load()
+
+  fun observeContentSize(
+    compressedSize: Int,
+    uncompressedSize: Int,
+  ) {
+    pathMetrics?.observeContentSize(compressedSize, uncompressedSize)
   }
 
   suspend fun suspendUntilComplete(waitMillis: Duration) =
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import io.grpc.Status
+import io.grpc.StatusException
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import io.prometheus.common.GrpcObjects.retryAfter
+import io.prometheus.proxy.AgentContext
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.properties.Delegates.notNull
+import kotlin.time.Duration.Companion.seconds
+
+class AdmissionControllerTest {
+  private suspend fun awaitQueueSize(
+    size: Int,
+    queueSize: () -> Int,
+  ) = withTimeout(5.seconds) {
+    while (queueSize() != size)
+      delay(10)
+  }
+
+  private suspend fun rejection(block: suspend () -> Unit): StatusException =
+    runCatching { block() }.exceptionOrNull().shouldNotBeNull() as StatusException
+
+  @Test
+  fun pathQueueFullTest() =
+    runBlocking<Unit> {
+      val controller = proxy.admissionController
+      // The first registration takes the free permit, and the next one waits for a new permit
+      controller.admitPaths(1)
+      val queued = launch { controller.admitPaths(1) }
+      awaitQueueSize(1) { controller.pathRegistrationQueueSize }
+
+      val e = rejection { controller.admitPaths(1) }
+      e.status.code shouldBeEqualTo Status.Code.RESOURCE_EXHAUSTED
+      e.retryAfter().shouldNotBeNull()
+
+      queued.join()
+      controller.pathRegistrationQueueSize shouldBeEqualTo 0
+    }
+
+  @Test
+  fun agentQueueFullTest() =
+    runBlocking<Unit> {
+      val controller = proxy.admissionController
+      val first = AgentContext("first")
+      val second = AgentContext("second")
+      controller.admitAgent(first)
+      val queued = async { controller.admitAgent(second) }
+      awaitQueueSize(1) { controller.agentAdmissionQueueSize }
+
+      val e = rejection { controller.admitAgent(AgentContext("third")) }
+      e.status.code shouldBeEqualTo Status.Code.RESOURCE_EXHAUSTED
+
+      // The permit is held until registration ends, either by registerAgent or by removal
+      first.endAwaitingRegistration()
+      queued.await()
+      controller.agentAdmissionQueueSize shouldBeEqualTo 0
+      second.endAwaitingRegistration()
+      withTimeout(1.seconds) { controller.admitAgent(AgentContext("fourth").also { it.endAwaitingRegistration() }) }
+    }
+
+  companion object {
+    private var proxy: Proxy by notNull()
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      CollectorRegistry.defaultRegistry.clear()
+      proxy =
+        startProxy(
+          "admission",
+          argv =
+            listOf(
+              "-Dproxy.internal.maxConcurrentAgentAdmissions=1",
+              "-Dproxy.internal.maxPathRegistrationsPerSec=1",
+              "-Dproxy.internal.maxAdmissionQueueSize=1",
+            ),
+        )
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      proxy.stopSync()
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.common.Utils.lambda
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeGreaterThan
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.TimeSource.Monotonic
+
+// The proxy admits 5 paths a second and queues none, so back-to-back registrations are turned away
+class AdmissionRetryTest {
+  @Test
+  fun throttledRegistrationTest() =
+    runBlocking<Unit> {
+      val agentId = agent.agentId
+      val start = Monotonic.markNow()
+      val paths = List(3) { "throttled_$it" }
+      paths.forEach { agent.pathManager.registerPath(it, "http://localhost:8081/metrics") }
+
+      // Each rejected registration was retried after the hint, without reconnecting the agent
+      start.elapsedNow() shouldBeGreaterThan 300.milliseconds
+      agent.agentId shouldBeEqualTo agentId
+      paths.forEach { proxy.pathManager.getAgentContextInfo(it).shouldNotBeNull() }
+      paths.forEach { agent.pathManager.unregisterPath(it) }
+    }
+
+  companion object : CommonCompanion() {
+    @JvmStatic
+    @BeforeAll
+    fun setUp() =
+      setItUp(
+        proxySetup = lambda {
+          startProxy(
+            serverName = "admissionretry",
+            argv =
+              listOf(
+                "-Dproxy.internal.maxPathRegistrationsPerSec=5",
+                "-Dproxy.internal.maxAdmissionQueueSize=0",
+                "-Dproxy.internal.agentRetryHintMillis=50",
+              ),
+          )
+        },
+        agentSetup = lambda { startAgent(serverName = "admissionretry") },
+      )
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() = takeItDown()
+  }
+}
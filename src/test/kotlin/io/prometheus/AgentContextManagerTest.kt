@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.AgentContextManager
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
+class AgentContextManagerTest {
+  private fun registeredAgent(manager: AgentContextManager) =
+    AgentContext("agent").also {
+      it.registered = true
+      manager.addAgentContext(it)
+    }
+
+  private fun poolConnection(manager: AgentContextManager) =
+    AgentContext("connection").also { manager.addAgentContext(it) }
+
+  @Test
+  fun attachTokenTest() {
+    val manager = AgentContextManager(true)
+    val agent = registeredAgent(manager)
+    val connection = poolConnection(manager)
+
+    manager.attachConnection(connection.agentId, agent.agentId, "").shouldBeFalse()
+    manager.attachConnection(connection.agentId, agent.agentId, connection.attachToken).shouldBeFalse()
+    manager.attachConnection(connection.agentId, "missing", agent.attachToken).shouldBeFalse()
+    manager.getAgentContext(connection.agentId) shouldBeEqualTo connection
+
+    manager.attachConnection(connection.agentId, agent.agentId, agent.attachToken).shouldBeTrue()
+    manager.getAgentContext(connection.agentId).shouldBeNull()
+    // Later calls on the same connection
+    manager.attachConnection(connection.agentId, agent.agentId, agent.attachToken).shouldBeTrue()
+
+    // A connection cannot be moved to another agent
+    val other = registeredAgent(manager)
+    manager.attachConnection(connection.agentId, other.agentId, other.attachToken).shouldBeFalse()
+
+    manager.detachConnection(connection.agentId).shouldBeTrue()
+    manager.detachConnection(connection.agentId).shouldBeFalse()
+  }
+
+  @Test
+  fun pendingRegistrationCountTest() {
+    val manager = AgentContextManager(true)
+    val registering = AgentContext("registering").also { manager.addAgentContext(it) }
+    val removed = AgentContext("removed").also { manager.addAgentContext(it) }
+    val agent = registeredAgent(manager)
+    val connection = poolConnection(manager)
+    manager.pendingRegistrationCount shouldBeEqualTo 4
+
+    registering.registered = true
+    manager.clearPendingRegistration(registering)
+    manager.clearPendingRegistration(agent)
+    manager.pendingRegistrationCount shouldBeEqualTo 2
+
+    // Removal after registration, or a second removal, is not counted again
+    manager.removeFromContextManager(removed.agentId, "Test")
+    manager.removeFromContextManager(registering.agentId, "Test")
+    manager.clearPendingRegistration(removed)
+    manager.pendingRegistrationCount shouldBeEqualTo 1
+
+    manager.attachConnection(connection.agentId, agent.agentId, agent.attachToken).shouldBeTrue()
+    manager.pendingRegistrationCount shouldBeEqualTo 0
+  }
+
+  @Test
+  fun concurrentAttachTest() {
+    val manager = AgentContextManager(true)
+    val agent = registeredAgent(manager)
+    val connection = poolConnection(manager)
+    val threadCount = 8
+    val start = CountDownLatch(1)
+    val accepted = AtomicInteger(0)
+    val executor = Executors.newFixedThreadPool(threadCount)
+
+    repeat(threadCount) {
+      executor.submit {
+        start.await()
+        if (manager.attachConnection(connection.agentId, agent.agentId, agent.attachToken))
+          accepted.incrementAndGet()
+      }
+    }
+    start.countDown()
+    executor.shutdown()
+    executor.awaitTermination(5, SECONDS).shouldBeTrue()
+
+    // The connection's own context is removed once, and every call is accepted
+    accepted.get() shouldBeEqualTo threadCount
+    connection.isValid().shouldBeFalse()
+    manager.agentContextSize shouldBeEqualTo 1
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import io.prometheus.proxy.AgentContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeGreaterOrEqualTo
+import org.amshove.kluent.shouldBeLessThan
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.properties.Delegates.notNull
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+class AgentEvictionTest {
+  private fun isPresent(agentContext: AgentContext) =
+    proxy.agentContextManager.getAgentContext(agentContext.agentId) != null
+
+  // Returns how long after the call the agent was evicted
+  private suspend fun awaitEviction(agentContext: AgentContext): Duration {
+    val start = Monotonic.markNow()
+    withTimeout(10.seconds) {
+      while (isPresent(agentContext))
+        delay(20)
+    }
+    return start.elapsedNow()
+  }
+
+  @Test
+  fun inactiveAgentEvictedTest() =
+    runBlocking<Unit> {
+      val agentContext = AgentContext("inactive")
+      proxy.addAgentContext(agentContext)
+      proxy.agentContextManager.getAgentContext(agentContext.agentId).shouldNotBeNull()
+
+      // Evicted when its deadline pops, not on a later periodic check
+      val elapsed = awaitEviction(agentContext)
+      elapsed shouldBeGreaterOrEqualTo MAX_INACTIVITY - 100.milliseconds
+      elapsed shouldBeLessThan MAX_INACTIVITY + 1.seconds
+      agentContext.isNotValid() shouldBeEqualTo true
+    }
+
+  @Test
+  fun activeAgentRequeuedTest() =
+    runBlocking<Unit> {
+      val agentContext = AgentContext("active")
+      proxy.addAgentContext(agentContext)
+
+      // Keep the agent active past its original deadline, so that deadline is re-queued instead
+      val start = Monotonic.markNow()
+      while (start.elapsedNow() < MAX_INACTIVITY * 2) {
+        agentContext.markActivityTime(false)
+        isPresent(agentContext) shouldBeEqualTo true
+        delay(200)
+      }
+      agentContext.markActivityTime(false)
+
+      // Once activity stops, it is evicted at the re-queued deadline
+      val elapsed = awaitEviction(agentContext)
+      elapsed shouldBeGreaterOrEqualTo MAX_INACTIVITY - 100.milliseconds
+      elapsed shouldBeLessThan MAX_INACTIVITY + 1.seconds
+      proxy.agentContextManager.getAgentContext(agentContext.agentId).shouldBeNull()
+    }
+
+  companion object {
+    private val MAX_INACTIVITY = 2.seconds
+    private var proxy: Proxy by notNull()
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      CollectorRegistry.defaultRegistry.clear()
+      proxy =
+        startProxy(
+          "eviction",
+          argv =
+            listOf(
+              "-Dproxy.internal.staleAgentCheckEnabled=true",
+              "-Dproxy.internal.maxAgentInactivitySecs=${MAX_INACTIVITY.inWholeSeconds}",
+            ),
+        )
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      proxy.stopSync()
+    }
+  }
+}
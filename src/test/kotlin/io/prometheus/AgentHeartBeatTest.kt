@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import io.prometheus.agent.AgentConnectionContext
+import io.prometheus.agent.AgentConnectionContext.Companion.OUTBOUND_BUFFER_SIZE
+import io.prometheus.agent.AgentOptions
+import io.prometheus.grpc.AgentMessage
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+
+class AgentHeartBeatTest {
+  @Test
+  fun backpressureTest() {
+    val options = AgentOptions(TestConstants.CONFIG_ARG, false)
+    val agent = Agent(options = options, inProcessServerName = "heartbeat-test", testMode = true)
+    agent.agentId = "heartbeat-test"
+    AgentConnectionContext(agent).use { connectionContext ->
+      val channel = connectionContext.agentMessagesChannel
+      repeat(OUTBOUND_BUFFER_SIZE) { channel.trySend(AgentMessage.getDefaultInstance()).isSuccess.shouldBeTrue() }
+
+      runBlocking {
+        // A full stream holds the heartbeat back instead of dropping it
+        val sender = launch { agent.grpcService.sendStreamHeartBeat(connectionContext) }
+        delay(200)
+        sender.isCompleted.shouldBeFalse()
+
+        repeat(OUTBOUND_BUFFER_SIZE) { channel.receive().hasHeartBeatRequest().shouldBeFalse() }
+        sender.join()
+        channel.receive().hasHeartBeatRequest().shouldBeTrue()
+      }
+    }
+  }
+}
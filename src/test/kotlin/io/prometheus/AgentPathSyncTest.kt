@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import com.typesafe.config.Config
+import com.typesafe.config.ConfigFactory
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.common.Utils.lambda
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeSameInstanceAs
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+
+class AgentPathSyncTest {
+  private fun pathConfig(
+    path: String,
+    url: String,
+  ): Config = ConfigFactory.parseString("""{ name: "$path", path: "$path", url: "$url" }""")
+
+  private fun assertRegistered(
+    path: String,
+    url: String,
+  ) {
+    agent.pathManager[path].shouldNotBeNull().url shouldBeEqualTo url
+    proxy.pathManager.getAgentContextInfo(path).shouldNotBeNull()
+  }
+
+  private fun assertUnregistered(path: String) {
+    agent.pathManager[path].shouldBeNull()
+    proxy.pathManager.getAgentContextInfo(path).shouldBeNull()
+  }
+
+  @Test
+  fun filePathConfigsTest() =
+    runBlocking<Unit> {
+      val pathManager = agent.pathManager
+      val url1 = "http://localhost:8081/metrics"
+      val url2 = "http://localhost:8082/metrics"
+
+      pathManager.updateFilePathConfigs(listOf(pathConfig("sync_a", url1), pathConfig("sync_b", url1)))
+      assertRegistered("sync_a", url1)
+      assertRegistered("sync_b", url1)
+
+      // sync_a changes its url, sync_b is removed and sync_c is added
+      pathManager.updateFilePathConfigs(listOf(pathConfig("sync_a", url2), pathConfig("sync_c", url1)))
+      assertRegistered("sync_a", url2)
+      assertUnregistered("sync_b")
+      assertRegistered("sync_c", url1)
+
+      // Unchanged paths are not registered again
+      val pathContext = pathManager["sync_c"]
+      pathManager.updateFilePathConfigs(listOf(pathConfig("sync_a", url2), pathConfig("sync_c", url1)))
+      pathManager["sync_c"] shouldBeSameInstanceAs pathContext
+
+      pathManager.updateFilePathConfigs(emptyList())
+      assertUnregistered("sync_a")
+      assertUnregistered("sync_c")
+    }
+
+  @Test
+  fun registeredPathKeptTest() =
+    runBlocking<Unit> {
+      val pathManager = agent.pathManager
+      val url = "http://localhost:8083/metrics"
+
+      pathManager.registerPath("sync_api", url)
+      pathManager.updateFilePathConfigs(listOf(pathConfig("sync_d", url)))
+      assertRegistered("sync_api", url)
+      assertRegistered("sync_d", url)
+
+      // Paths from registerPath() are left alone when the file changes or the session resumes
+      pathManager.updateFilePathConfigs(emptyList())
+      pathManager.syncPaths()
+      assertRegistered("sync_api", url)
+      assertUnregistered("sync_d")
+
+      pathManager.unregisterPath("sync_api")
+      pathManager.syncPaths()
+      assertUnregistered("sync_api")
+    }
+
+  companion object : CommonCompanion() {
+    @JvmStatic
+    @BeforeAll
+    fun setUp() =
+      setItUp(
+        proxySetup = lambda { startProxy("pathsync") },
+        agentSetup = lambda { startAgent(serverName = "pathsync") },
+      )
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() = takeItDown()
+  }
+}
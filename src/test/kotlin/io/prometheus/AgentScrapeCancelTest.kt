@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.ktor.server.response.respondText
+import io.ktor.server.routing.get
+import io.ktor.server.routing.routing
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.agent.AgentConnectionContext
+import io.prometheus.agent.AgentHttpService
+import io.prometheus.common.ScrapeResults
+import io.prometheus.common.Utils.lambda
+import io.prometheus.grpc.ScrapeRequest
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.yield
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.seconds
+
+class AgentScrapeCancelTest {
+  private fun scrapeResults(scrapeId: Long) = ScrapeResults(agentId = agent.agentId, scrapeId = scrapeId)
+
+  @Test
+  fun queuedCancelTest() =
+    runBlocking<Unit> {
+      val context = AgentConnectionContext(agent)
+      context.addQueuedScrape(1)
+      context.cancelScrape(1).shouldBeTrue()
+
+      var fetched = false
+      context.runScrape(1) { scrapeResults(1).also { fetched = true } }.shouldBeNull()
+      fetched.shouldBeFalse()
+      context.cancelScrape(1).shouldBeFalse()
+      context.close()
+    }
+
+  @Test
+  fun resultCancelTest() =
+    runBlocking<Unit> {
+      val context = AgentConnectionContext(agent)
+      context.addQueuedScrape(2)
+      context.runScrape(2) { scrapeResults(2) }.shouldNotBeNull()
+
+      // A result waiting to be sent is marked, so the sender drops it
+      context.cancelScrape(2).shouldBeTrue()
+      context.isResultCancelled(2).shouldBeTrue()
+      context.removePendingResult(2)
+      context.cancelScrape(2).shouldBeFalse()
+      context.close()
+    }
+
+  @Test
+  fun cancelRaceTest() =
+    runBlocking<Unit> {
+      val context = AgentConnectionContext(agent)
+      repeat(1_000) { i ->
+        val scrapeId = 1_000L + i
+        context.addQueuedScrape(scrapeId)
+        val results =
+          async(Dispatchers.Default) {
+            context.runScrape(scrapeId) {
+              yield()
+              scrapeResults(scrapeId)
+            }
+          }
+        val cancelled = async(Dispatchers.Default) { context.cancelScrape(scrapeId) }
+
+        // However the two interleave, the cancel finds the scrape and its result is never sent
+        cancelled.await().shouldBeTrue()
+        (results.await() == null || context.isResultCancelled(scrapeId)).shouldBeTrue()
+        context.removePendingResult(scrapeId)
+      }
+      context.close()
+    }
+
+  @Test
+  fun fetchCancelTest() =
+    runBlocking<Unit> {
+      val httpServer =
+        embeddedServer(CIO, port = TARGET_PORT) {
+          routing {
+            get("/$TARGET_PATH") {
+              delay(60.seconds)
+              call.respondText("This is never reached")
+            }
+          }
+        }.start()
+
+      try {
+        agent.pathManager.registerPath(PROXY_PATH, "$TARGET_PORT/$TARGET_PATH".withPrefix())
+        val context = AgentConnectionContext(agent)
+        val httpService = AgentHttpService(agent)
+        val scrapeId = 5_000L
+        val request =
+          ScrapeRequest
+            .newBuilder()
+            .also {
+              it.agentId = agent.agentId
+              it.scrapeId = scrapeId
+              it.path = PROXY_PATH
+            }
+            .build()
+
+        context.addQueuedScrape(scrapeId)
+        val results = async(Dispatchers.Default) { context.runScrape(scrapeId) { httpService.fetchScrapeUrl(request) } }
+        delay(1.seconds)
+        context.cancelScrape(scrapeId).shouldBeTrue()
+
+        // The request to the target is dropped, long before the target answers or the scrape times out
+        withTimeout(5.seconds) { results.await() }.shouldBeNull()
+        context.isResultCancelled(scrapeId).shouldBeFalse()
+
+        httpService.close()
+        context.close()
+        agent.pathManager.unregisterPath(PROXY_PATH)
+      } finally {
+        httpServer.stop(0, 0)
+      }
+    }
+
+  companion object : CommonCompanion() {
+    private const val TARGET_PORT = 9960
+    private const val TARGET_PATH = "cancel-target"
+    private const val PROXY_PATH = "cancel_path"
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() =
+      setItUp(
+        proxySetup = lambda { startProxy("scrapecancel") },
+        agentSetup = lambda { startAgent(serverName = "scrapecancel", scrapeTimeoutSecs = 30) },
+      )
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() = takeItDown()
+  }
+}
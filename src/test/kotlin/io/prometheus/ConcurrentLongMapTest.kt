@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.common.ConcurrentLongMap
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+class ConcurrentLongMapTest {
+  @Test
+  fun basicOpsTest() {
+    val map = ConcurrentLongMap<String>(concurrencyLevel = 1, initialCapacity = 4)
+    map.isEmpty().shouldBeTrue()
+    map.put(0L, "zero").shouldBeNull()
+    map.put(-1L, "minus one").shouldBeNull()
+    map.put(0L, "ZERO") shouldBeEqualTo "zero"
+    map.size shouldBeEqualTo 2
+    map[0L] shouldBeEqualTo "ZERO"
+    map.remove(-1L, "other").shouldBeFalse()
+    map.remove(-1L, "minus one").shouldBeTrue()
+    map.remove(-1L).shouldBeNull()
+    map.size shouldBeEqualTo 1
+    map.clear()
+    map.isEmpty().shouldBeTrue()
+    map[0L].shouldBeNull()
+  }
+
+  @Test
+  fun matchesHashMapTest() {
+    val map = ConcurrentLongMap<Long>(concurrencyLevel = 4, initialCapacity = 8)
+    val reference = mutableMapOf<Long, Long>()
+    val random = Random(42)
+
+    // A narrow key range forces resizes, collisions and backward-shift deletes
+    repeat(200_000) { i ->
+      val key = random.nextLong(0, 2_000)
+      if (random.nextInt(3) == 0)
+        map.remove(key) shouldBeEqualTo reference.remove(key)
+      else
+        map.put(key, i.toLong()) shouldBeEqualTo reference.put(key, i.toLong())
+    }
+
+    map.size shouldBeEqualTo reference.size
+    reference.forEach { (k, v) -> map[k] shouldBeEqualTo v }
+    val entries = mutableMapOf<Long, Long>()
+    map.forEach { k, v -> entries[k] = v }
+    entries shouldBeEqualTo reference
+  }
+
+  @Test
+  fun concurrentReadsTest() {
+    // A single segment, so every write can invalidate the readers' optimistic reads
+    val map = ConcurrentLongMap<Long>(concurrencyLevel = 1, initialCapacity = 8)
+    val stable = 0L until 1_000L
+    stable.forEach { map[it] = it }
+
+    val writer =
+      thread {
+        // Churn through other keys, forcing resizes and backward-shift deletes under the readers
+        repeat(50) { round ->
+          val keys = (1_000L + round * 10_000L) until (1_000L + (round + 1) * 10_000L)
+          keys.forEach { map[it] = it }
+          keys.forEach { map.remove(it) }
+        }
+      }
+
+    val misses = AtomicInteger(0)
+    val readers =
+      List(4) {
+        thread {
+          while (writer.isAlive)
+            stable.forEach { if (map[it] != it) misses.incrementAndGet() }
+        }
+      }
+
+    writer.join()
+    readers.forEach { it.join() }
+    misses.get() shouldBeEqualTo 0
+  }
+}
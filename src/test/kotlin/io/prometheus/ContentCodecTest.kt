@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.common.ContentCodecs
+import io.prometheus.common.ZstdDictionaryCodec
+import org.amshove.kluent.invoking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldContainAll
+import org.amshove.kluent.shouldThrow
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.random.Random
+
+class ContentCodecTest {
+  private val payloads =
+    listOf(
+      ByteArray(0),
+      "metric_name 1.0\n".toByteArray(),
+      ByteArray(200_000) { "abcdef"[Random(it).nextInt(6)].code.toByte() },
+      Random(42).nextBytes(100_000),
+    )
+
+  @Test
+  fun roundTripTest() {
+    ContentCodecs.available.keys shouldContainAll
+      listOf(ContentCodecs.GZIP, ContentCodecs.DEFLATE, ContentCodecs.ZSTD, ContentCodecs.LZ4)
+
+    ContentCodecs.available.values.forEach { codec ->
+      payloads.forEach { payload ->
+        codec.decompress(codec.compress(payload)).toList() shouldBeEqualTo payload.toList()
+      }
+    }
+  }
+
+  @Test
+  fun gzipCompatibilityTest() {
+    // Agents and proxies that predate negotiation use the JDK gzip streams
+    val gzip = ContentCodecs.forName("")
+    gzip.name shouldBeEqualTo ContentCodecs.GZIP
+    payloads.forEach { payload ->
+      val jdkZipped =
+        ByteArrayOutputStream()
+          .also { baos -> GZIPOutputStream(baos).use { it.write(payload) } }
+          .toByteArray()
+      gzip.decompress(jdkZipped).toList() shouldBeEqualTo payload.toList()
+
+      val jdkUnzipped = GZIPInputStream(gzip.compress(payload).inputStream()).use { it.readBytes() }
+      jdkUnzipped.toList() shouldBeEqualTo payload.toList()
+    }
+  }
+
+  @Test
+  fun dictionaryTest() {
+    // Successive scrapes of the same path differ only in their sample values
+    fun scrape(random: Random) =
+      buildString {
+        repeat(40) { i ->
+          append("# HELP http_requests_total_$i Total HTTP requests.\n")
+          append("# TYPE http_requests_total_$i counter\n")
+          append("http_requests_total_$i{method=\"get\",code=\"200\"} ${random.nextInt(1_000_000)}\n")
+        }
+      }.toByteArray()
+
+    val random = Random(7)
+    val codec = ZstdDictionaryCodec.train("metrics", 1L, List(32) { scrape(random) }, 16 * 1024)
+    val payload = scrape(random)
+    val compressed = codec.compress(payload)
+    codec.decompress(compressed).toList() shouldBeEqualTo payload.toList()
+    (compressed.size < ContentCodecs.forName(ContentCodecs.ZSTD).compress(payload).size).shouldBeTrue()
+
+    // The proxy decompresses with a codec rebuilt from the shipped dictionary bytes
+    val proxyCodec = ZstdDictionaryCodec("metrics", 1L, codec.dictionary)
+    proxyCodec.decompress(compressed).toList() shouldBeEqualTo payload.toList()
+  }
+
+  @Test
+  fun lz4CorruptContentTest() {
+    val lz4 = ContentCodecs.forName(ContentCodecs.LZ4)
+    val compressed = lz4.compress(payloads[2])
+
+    fun withLength(length: Int) = compressed.copyOf().also { ByteBuffer.wrap(it).putInt(length) }
+
+    invoking { lz4.decompress(withLength(-1)) } shouldThrow IllegalArgumentException::class
+    invoking { lz4.decompress(withLength(Int.MAX_VALUE)) } shouldThrow IllegalArgumentException::class
+    invoking { lz4.decompress(ByteArray(2)) } shouldThrow IllegalArgumentException::class
+    invoking { lz4.decompress(compressed.copyOf(compressed.size / 2)) } shouldThrow RuntimeException::class
+  }
+
+  @Test
+  fun unknownCodecTest() {
+    invoking { ContentCodecs.forName("brotli") } shouldThrow IllegalArgumentException::class
+  }
+}
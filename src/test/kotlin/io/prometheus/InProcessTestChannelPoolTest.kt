@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import com.github.pambrose.common.util.simpleClassName
+import io.prometheus.TestConstants.DEFAULT_CHUNK_SIZE
+import io.prometheus.TestConstants.DEFAULT_TIMEOUT
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.common.Utils.lambda
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+
+// Chunked responses travel on extra pool connections, which the proxy attaches to the agent
+class InProcessTestChannelPoolTest :
+  CommonTests(ProxyCallTestArgs(agent = agent, startPort = 10400, caller = simpleClassName)) {
+  companion object : CommonCompanion() {
+    @JvmStatic
+    @BeforeAll
+    fun setUp() =
+      setItUp(
+        proxySetup = lambda { startProxy("channelpool") },
+        agentSetup = lambda {
+          startAgent(
+            serverName = "channelpool",
+            scrapeTimeoutSecs = DEFAULT_TIMEOUT,
+            chunkContentSizeKbs = DEFAULT_CHUNK_SIZE,
+            argv = listOf("-Dagent.grpc.channelPoolSize=3"),
+          )
+        },
+      )
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() = takeItDown()
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.dsl.GrpcDsl.server
+import com.github.pambrose.common.utils.TlsContext.Companion.PLAINTEXT_CONTEXT
+import com.typesafe.config.Config
+import com.typesafe.config.ConfigFactory
+import io.grpc.Metadata
+import io.grpc.Server
+import io.grpc.ServerCall
+import io.grpc.ServerCallHandler
+import io.grpc.ServerInterceptor
+import io.grpc.ServerInterceptors
+import io.grpc.Status
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import io.prometheus.proxy.ProxyServerInterceptor
+import io.prometheus.proxy.ProxyServerTransportFilter
+import io.prometheus.proxy.ProxyServiceImpl
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.atomics.AtomicBoolean
+import kotlin.concurrent.atomics.AtomicInt
+import kotlin.concurrent.atomics.incrementAndFetch
+import kotlin.properties.Delegates.notNull
+import kotlin.time.Duration.Companion.seconds
+
+class PathBatchRegistrationTest {
+  private fun pathConfigs(
+    prefix: String,
+    count: Int,
+  ): List<Config> =
+    List(count) { i ->
+      ConfigFactory.parseString("""{ name: "$prefix$i", path: "$prefix$i", url: "http://localhost:8081/$i" }""")
+    }
+
+  private fun assertRegistered(configs: List<Config>) {
+    val pathIds =
+      configs.map { config ->
+        val path = config.getString("path")
+        proxy.pathManager.getAgentContextInfo(path).shouldNotBeNull()
+        agent.pathManager[path].shouldNotBeNull().pathId
+      }
+    pathIds.toSet().size shouldBeEqualTo configs.size
+  }
+
+  private fun assertUnregistered(configs: List<Config>) =
+    configs.forEach { config ->
+      val path = config.getString("path")
+      proxy.pathManager.getAgentContextInfo(path).shouldBeNull()
+      agent.pathManager[path].shouldBeNull()
+    }
+
+  @Test
+  fun batchRegistrationTest() =
+    runBlocking<Unit> {
+      val configs = pathConfigs("batch_", 2_500)
+      val batchCalls = registerPathsCalls.load()
+      val singleCalls = registerPathCalls.load()
+
+      // 2500 paths go to the proxy in batches of 1000
+      agent.pathManager.updateFilePathConfigs(configs)
+      assertRegistered(configs)
+      registerPathsCalls.load() shouldBeEqualTo batchCalls + 3
+      registerPathCalls.load() shouldBeEqualTo singleCalls
+
+      agent.pathManager.updateFilePathConfigs(emptyList())
+      assertUnregistered(configs)
+    }
+
+  @Test
+  fun unimplementedFallbackTest() =
+    runBlocking<Unit> {
+      val configs = pathConfigs("single_", 5)
+      val batchCalls = registerPathsCalls.load()
+      val singleCalls = registerPathCalls.load()
+
+      // A proxy without registerPaths() gets the paths one call at a time
+      legacyProxy.store(true)
+      try {
+        agent.pathManager.updateFilePathConfigs(configs)
+        assertRegistered(configs)
+        registerPathsCalls.load() shouldBeEqualTo batchCalls + 1
+        registerPathCalls.load() shouldBeEqualTo singleCalls + configs.size
+
+        agent.pathManager.updateFilePathConfigs(emptyList())
+        assertUnregistered(configs)
+      } finally {
+        legacyProxy.store(false)
+      }
+    }
+
+  // Counts path registration calls, and rejects registerPaths() the way a proxy that predates it does
+  private class RegistrationInterceptor : ServerInterceptor {
+    override fun <ReqT, RespT> interceptCall(
+      call: ServerCall<ReqT, RespT>,
+      headers: Metadata,
+      next: ServerCallHandler<ReqT, RespT>,
+    ): ServerCall.Listener<ReqT> {
+      when (call.methodDescriptor.bareMethodName) {
+        "registerPath" -> registerPathCalls.incrementAndFetch()
+        "registerPaths" -> {
+          registerPathsCalls.incrementAndFetch()
+          if (legacyProxy.load()) {
+            call.close(Status.UNIMPLEMENTED.withDescription("Method not found: registerPaths"), Metadata())
+            return object : ServerCall.Listener<ReqT>() {}
+          }
+        }
+      }
+      return next.startCall(call, headers)
+    }
+  }
+
+  companion object {
+    private const val SERVER_NAME = "pathbatch"
+    private const val AGENT_SERVER_NAME = "pathbatch-counted"
+    private val registerPathCalls = AtomicInt(0)
+    private val registerPathsCalls = AtomicInt(0)
+    private val legacyProxy = AtomicBoolean(false)
+    private var proxy: Proxy by notNull()
+    private var agent: Agent by notNull()
+    private var grpcServer: Server by notNull()
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      CollectorRegistry.defaultRegistry.clear()
+      proxy = startProxy(SERVER_NAME)
+
+      // The agent reaches the proxy's service through a second server, which adds the interceptor
+      grpcServer =
+        server(port = -1, tlsContext = PLAINTEXT_CONTEXT, inProcessServerName = AGENT_SERVER_NAME) {
+          val interceptors = listOf(ProxyServerInterceptor(proxy), RegistrationInterceptor())
+          addService(ServerInterceptors.intercept(ProxyServiceImpl(proxy).bindService(), interceptors))
+          addTransportFilter(ProxyServerTransportFilter(proxy))
+        }.start()
+
+      agent = startAgent(serverName = AGENT_SERVER_NAME).apply { awaitInitialConnection(10.seconds) }
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      agent.stopSync()
+      grpcServer.shutdownNow()
+      proxy.stopSync()
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.proxy.PathTemplateTrie
+import io.prometheus.proxy.PathTemplateTrie.Companion.isTemplate
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+
+class PathTemplateTrieTest {
+  @Test
+  fun matchTest() {
+    val trie =
+      PathTemplateTrie().apply {
+        add("node/{host}/metrics")
+        add("node/local/metrics")
+        add("app/{app}/{instance}")
+      }
+
+    trie.match("node/local/metrics")!!.template shouldBeEqualTo "node/local/metrics"
+
+    trie.match("node/host-1.example/metrics")!!.apply {
+      template shouldBeEqualTo "node/{host}/metrics"
+      params shouldBeEqualTo mapOf("host" to "host-1.example")
+    }
+
+    trie.match("app/web/3")!!.params shouldBeEqualTo mapOf("app" to "web", "instance" to "3")
+
+    trie.match("node/host-1/other").shouldBeNull()
+    trie.match("node/host%2F1/metrics").shouldBeNull()
+  }
+
+  @Test
+  fun removeTest() {
+    val trie =
+      PathTemplateTrie().apply {
+        add("node/{host}/metrics")
+        add("node/{host}")
+      }
+
+    trie.remove("node/{host}/metrics")
+    trie.match("node/a/metrics").shouldBeNull()
+    trie.match("node/a")!!.template shouldBeEqualTo "node/{host}"
+
+    isTemplate("node/{host}").shouldBeTrue()
+    isTemplate("node/host").shouldBeFalse()
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.dsl.KtorDsl.blockingGet
+import io.ktor.client.statement.readRawBytes
+import io.ktor.http.ContentType
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.contentType
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.ktor.server.response.respondBytes
+import io.ktor.server.routing.get
+import io.ktor.server.routing.routing
+import io.prometheus.TestConstants.PROXY_PORT
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.common.Utils.lambda
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class ProtobufPassthroughTest {
+  private fun assertPassthrough(
+    path: String,
+    body: ByteArray,
+  ) =
+    // Repeated scrapes also cover any per-path state the agent and proxy keep between scrapes
+    repeat(3) {
+      blockingGet("$PROXY_PORT/$path".withPrefix()) { response ->
+        response.status shouldBeEqualTo HttpStatusCode.OK
+        response.contentType() shouldBeEqualTo PROTOBUF_CONTENT_TYPE
+        val bytes = response.readRawBytes()
+        bytes.size shouldBeEqualTo body.size
+        bytes.contentEquals(body).shouldBeTrue()
+      }
+    }
+
+  @Test
+  fun smallBodyTest() = assertPassthrough(SMALL_PATH, SMALL_BODY)
+
+  @Test
+  fun compressedBodyTest() = assertPassthrough(COMPRESSED_PATH, COMPRESSED_BODY)
+
+  @Test
+  fun chunkedBodyTest() = assertPassthrough(CHUNKED_PATH, CHUNKED_BODY)
+
+  companion object : CommonCompanion() {
+    private const val TARGET_PORT = 9963
+    private const val SMALL_PATH = "protobuf_small"
+    private const val COMPRESSED_PATH = "protobuf_compressed"
+    private const val CHUNKED_PATH = "protobuf_chunked"
+    private val PROTOBUF_CONTENT_TYPE =
+      ContentType.parse("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited")
+
+    // Every byte value appears, so the bodies are not valid UTF-8. The compressed body is above
+    // minGzipSizeBytes, and the random one stays above the 1KB chunk size once compressed.
+    private val SMALL_BODY = ByteArray(256) { it.toByte() }
+    private val COMPRESSED_BODY = ByteArray(8 * 1024) { it.toByte() }
+    private val CHUNKED_BODY = Random(42).nextBytes(64 * 1024)
+
+    private val httpServer =
+      embeddedServer(CIO, port = TARGET_PORT) {
+        routing {
+          mapOf(SMALL_PATH to SMALL_BODY, COMPRESSED_PATH to COMPRESSED_BODY, CHUNKED_PATH to CHUNKED_BODY)
+            .forEach { (path, body) ->
+              get("/$path") { call.respondBytes(body, PROTOBUF_CONTENT_TYPE) }
+            }
+        }
+      }
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      httpServer.start()
+      setItUp(
+        proxySetup = lambda { startProxy("protobuf") },
+        agentSetup = lambda { startAgent(serverName = "protobuf", chunkContentSizeKbs = 1) },
+      )
+      runBlocking {
+        listOf(SMALL_PATH, COMPRESSED_PATH, CHUNKED_PATH)
+          .forEach { agent.pathManager.registerPath(it, "$TARGET_PORT/$it".withPrefix()) }
+      }
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      takeItDown()
+      httpServer.stop(0, 0)
+    }
+  }
+}
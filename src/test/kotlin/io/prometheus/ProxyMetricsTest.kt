@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import io.prometheus.common.Utils.lambda
+import io.prometheus.proxy.ScrapePriority
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeLessOrEqualTo
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.milliseconds
+
+class ProxyMetricsTest {
+  private fun latencyCount(
+    path: String,
+    agentName: String = AGENT_NAME,
+  ): Double? =
+    CollectorRegistry.defaultRegistry.getSampleValue(
+      "proxy_scrape_latency_seconds_count",
+      arrayOf("path", "agent_name"),
+      arrayOf(path, agentName),
+    )
+
+  private fun queueWaitCount(
+    path: String,
+    agentName: String,
+    priority: ScrapePriority,
+  ): Double? =
+    CollectorRegistry.defaultRegistry.getSampleValue(
+      "proxy_agent_queue_wait_seconds_count",
+      arrayOf("path", "agent_name", "priority"),
+      arrayOf(path, agentName, priority.label),
+    )
+
+  private fun observeScrape(
+    path: String,
+    agentName: String = AGENT_NAME,
+  ) = proxy.metrics.pathMetrics(path, agentName).observeCompletion(10.milliseconds, 5.milliseconds)
+
+  @Test
+  fun pathLabelLimitTest() {
+    val paths = List(PATH_LABEL_LIMIT + 2) { "limit_$it" }
+    try {
+      paths.forEach { observeScrape(it) }
+
+      // Paths past the limit are reported together under "other"
+      paths.take(PATH_LABEL_LIMIT).forEach { latencyCount(it) shouldBeEqualTo 1.0 }
+      paths.drop(PATH_LABEL_LIMIT).forEach { latencyCount(it).shouldBeNull() }
+      latencyCount(OTHER) shouldBeEqualTo 2.0
+
+      // Removing a path frees its label for a new one
+      proxy.metrics.removePathMetrics(paths[0])
+      latencyCount(paths[0]).shouldBeNull()
+      observeScrape("limit_new")
+      latencyCount("limit_new") shouldBeEqualTo 1.0
+    } finally {
+      (paths + "limit_new" + OTHER).forEach { proxy.metrics.removePathMetrics(it) }
+    }
+    latencyCount(OTHER).shouldBeNull()
+  }
+
+  @Test
+  fun concurrentPathLabelLimitTest() =
+    runBlocking<Unit> {
+      val paths = List(100) { "concurrent_$it" }
+      try {
+        withContext(Dispatchers.Default) {
+          paths.forEach { launch { observeScrape(it) } }
+        }
+
+        // Concurrent first scrapes of new paths cannot push the label count past the limit
+        paths.count { latencyCount(it) != null } shouldBeLessOrEqualTo PATH_LABEL_LIMIT
+        (paths.sumOf { latencyCount(it) ?: 0.0 } + (latencyCount(OTHER) ?: 0.0)) shouldBeEqualTo 100.0
+      } finally {
+        (paths + OTHER).forEach { proxy.metrics.removePathMetrics(it) }
+      }
+    }
+
+  @Test
+  fun agentRemovalTest() {
+    try {
+      observeScrape("agents", "agent_a")
+      observeScrape("agents", "agent_b")
+
+      // Removing one agent_name keeps the path's other series
+      proxy.metrics.removePathMetrics("agents", "agent_a")
+      latencyCount("agents", "agent_a").shouldBeNull()
+      latencyCount("agents", "agent_b") shouldBeEqualTo 1.0
+    } finally {
+      proxy.metrics.removePathMetrics("agents")
+    }
+    latencyCount("agents", "agent_b").shouldBeNull()
+  }
+
+  @Test
+  fun unregisterPathTest() =
+    runBlocking<Unit> {
+      val path = "unregister_metrics"
+      agent.pathManager.registerPath(path, "http://localhost:8081/metrics")
+      val agentName = proxy.agentContextManager.getAgentContext(agent.agentId).shouldNotBeNull().agentName
+      proxy.metrics.pathMetrics(path, agentName).also {
+        it.observeQueueWait(1.milliseconds, ScrapePriority.HIGH)
+        it.observeCompletion(10.milliseconds, 5.milliseconds)
+      }
+      latencyCount(path, agentName) shouldBeEqualTo 1.0
+      queueWaitCount(path, agentName, ScrapePriority.HIGH) shouldBeEqualTo 1.0
+      queueWaitCount(path, agentName, ScrapePriority.LOW).shouldBeNull()
+
+      // The path's series go away with its registration
+      agent.pathManager.unregisterPath(path)
+      latencyCount(path, agentName).shouldBeNull()
+      queueWaitCount(path, agentName, ScrapePriority.HIGH).shouldBeNull()
+    }
+
+  companion object : CommonCompanion() {
+    private const val PATH_LABEL_LIMIT = 3
+    private const val AGENT_NAME = "metrics_agent"
+    private const val OTHER = "other"
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() =
+      setItUp(
+        proxySetup = lambda {
+          startProxy(
+            "proxymetrics",
+            metricsEnabled = true,
+            argv = listOf("-Dproxy.metrics.pathLabelLimit=$PATH_LABEL_LIMIT"),
+          )
+        },
+        agentSetup = lambda { startAgent(serverName = "proxymetrics") },
+      )
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() = takeItDown()
+  }
+}
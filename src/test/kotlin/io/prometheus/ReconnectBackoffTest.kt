@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.agent.ReconnectBackoff
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeInRange
+import org.amshove.kluent.shouldBeLessThan
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+class ReconnectBackoffTest {
+  @Test
+  fun boundsTest() {
+    val backoff = ReconnectBackoff(3.seconds, 60.seconds, Random(42))
+    var previous = 3.seconds
+    repeat(100) {
+      val pause = backoff.nextPause()
+      pause.inWholeMilliseconds shouldBeInRange 3_000L..minOf(previous.inWholeMilliseconds * 3, 60_000L)
+      previous = pause
+    }
+
+    backoff.reset()
+    backoff.nextPause().inWholeMilliseconds shouldBeInRange 3_000L..9_000L
+  }
+
+  @Test
+  fun retryHintTest() {
+    val backoff = ReconnectBackoff(3.seconds, 3.seconds, Random(42))
+    backoff.retryAfter(10.seconds)
+    backoff.nextPause() shouldBeEqualTo 13.seconds
+    // A hint applies to a single pause
+    backoff.nextPause() shouldBeEqualTo 3.seconds
+  }
+
+  @Test
+  fun stopDuringPauseTest() {
+    // No proxy listens on this server name, so the agent goes straight into a long reconnect pause
+    val agent =
+      startAgent(
+        serverName = "nobackoffproxy",
+        argv = listOf("-Dagent.internal.reconnectPauseSecs=30", "-Dagent.internal.reconnectMaxPauseSecs=30"),
+      )
+    Thread.sleep(1_000)
+
+    val start = Monotonic.markNow()
+    agent.stopSync()
+    start.elapsedNow() shouldBeLessThan 10.seconds
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ProxyConstants.AGENT_DISCONNECTED_MSG
+import io.prometheus.proxy.ProxyOptions
+import io.prometheus.proxy.ScrapePriority
+import io.prometheus.proxy.ScrapeRequestWrapper
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeLessThan
+import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+class ScrapeDisconnectTest {
+  private fun scrapeRequest(agentContext: AgentContext) =
+    ScrapeRequestWrapper(
+      agentContext = agentContext,
+      proxy = proxy,
+      path = "path",
+      template = null,
+      priority = ScrapePriority.NORMAL,
+      deadline = Monotonic.markNow() + 30.seconds,
+      encodedQueryParams = "",
+      authHeader = "",
+      accept = null,
+      debugEnabled = false,
+    )
+
+  private fun ScrapeRequestWrapper.shouldBeDisconnected() {
+    isFailed.shouldBeTrue()
+    failureMsg shouldBeEqualTo AGENT_DISCONNECTED_MSG
+  }
+
+  @Test
+  fun inFlightScrapeFailedTest() =
+    runBlocking<Unit> {
+      val agentContext = AgentContext("inflight")
+      val scrapeRequest = scrapeRequest(agentContext)
+      agentContext.writeScrapeRequest(scrapeRequest)
+      agentContext.readScrapeRequest().shouldNotBeNull()
+      agentContext.inFlightScrapeCount shouldBeEqualTo 1
+
+      // The waiting caller is woken by the disconnect, not by its deadline or the next check interval
+      val start = Monotonic.markNow()
+      val waiting = async { scrapeRequest.suspendUntilComplete(30.seconds) }
+      agentContext.invalidate()
+      waiting.await().shouldBeTrue()
+      start.elapsedNow() shouldBeLessThan 1.seconds
+      scrapeRequest.shouldBeDisconnected()
+      agentContext.inFlightScrapeCount shouldBeEqualTo 0
+    }
+
+  @Test
+  fun queuedScrapeFailedTest() =
+    runBlocking<Unit> {
+      val agentContext = AgentContext("queued")
+      val scrapeRequest = scrapeRequest(agentContext)
+      agentContext.writeScrapeRequest(scrapeRequest)
+      agentContext.invalidate()
+      scrapeRequest.shouldBeDisconnected()
+
+      // Scrapes written after the disconnect fail right away
+      val late = scrapeRequest(agentContext)
+      agentContext.writeScrapeRequest(late)
+      late.shouldBeDisconnected()
+    }
+
+  @Test
+  fun dispatchDisconnectRaceTest() =
+    runBlocking<Unit> {
+      // A scrape being dispatched while the agent drops is either drained from the queue or added to the
+      // in-flight map. The in-flight check runs after the add, so it is failed in either case.
+      repeat(1000) { i ->
+        val agentContext = AgentContext("race-$i")
+        val scrapeRequest = scrapeRequest(agentContext)
+        agentContext.writeScrapeRequest(scrapeRequest)
+        withContext(Dispatchers.Default) {
+          launch { agentContext.readScrapeRequest() }
+          launch { agentContext.invalidate() }
+        }
+        scrapeRequest.shouldBeDisconnected()
+        agentContext.inFlightScrapeCount shouldBeEqualTo 0
+      }
+    }
+
+  @Test
+  fun dispatchParkRaceTest() =
+    runBlocking<Unit> {
+      repeat(1000) { i ->
+        val agentContext = AgentContext("park-$i")
+        val scrapeRequest = scrapeRequest(agentContext)
+        agentContext.writeScrapeRequest(scrapeRequest)
+        withContext(Dispatchers.Default) {
+          launch { agentContext.readScrapeRequest().shouldNotBeNull() }
+          launch { agentContext.park() }
+        }
+        // A scrape dispatched to the parked connection is lost with it, whichever side ran first
+        scrapeRequest.shouldBeDisconnected()
+        agentContext.inFlightScrapeCount shouldBeEqualTo 0
+      }
+    }
+
+  companion object {
+    private val proxy = Proxy(options = ProxyOptions(TestConstants.CONFIG_ARG), testMode = true)
+  }
+}
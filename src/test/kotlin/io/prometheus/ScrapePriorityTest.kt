@@ -0,0 +1,40 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.proxy.ScrapePriority
+import io.prometheus.proxy.ScrapePriority.HIGH
+import io.prometheus.proxy.ScrapePriority.LOW
+import io.prometheus.proxy.ScrapePriority.NORMAL
+import org.amshove.kluent.shouldBeEqualTo
+import org.junit.jupiter.api.Test
+
+class ScrapePriorityTest {
+  @Test
+  fun fromLabelsTest() {
+    ScrapePriority.fromLabels("""{"__priority__": "High"}""", "__priority__") shouldBeEqualTo HIGH
+    ScrapePriority.fromLabels("""{"__priority__": "low", "env": "prod"}""", "__priority__") shouldBeEqualTo LOW
+
+    // Unknown values, missing labels, invalid JSON and a disabled label name all fall back to NORMAL
+    ScrapePriority.fromLabels("""{"__priority__": "urgent"}""", "__priority__") shouldBeEqualTo NORMAL
+    ScrapePriority.fromLabels("""{"env": "prod"}""", "__priority__") shouldBeEqualTo NORMAL
+    ScrapePriority.fromLabels("{", "__priority__") shouldBeEqualTo NORMAL
+    ScrapePriority.fromLabels("""{"__priority__": "high"}""", "") shouldBeEqualTo NORMAL
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ProxyOptions
+import io.prometheus.proxy.ScrapePriority
+import io.prometheus.proxy.ScrapePriority.HIGH
+import io.prometheus.proxy.ScrapePriority.LOW
+import io.prometheus.proxy.ScrapePriority.NORMAL
+import io.prometheus.proxy.ScrapeRequestQueue
+import io.prometheus.proxy.ScrapeRequestQueue.Companion.MIN_SHARE_INTERVAL
+import io.prometheus.proxy.ScrapeRequestWrapper
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+class ScrapeRequestQueueTest {
+  private fun scrapeRequest(
+    priority: ScrapePriority,
+    timeout: Duration = 10.seconds,
+  ) = ScrapeRequestWrapper(
+    agentContext = agentContext,
+    proxy = proxy,
+    path = "path",
+    template = null,
+    priority = priority,
+    deadline = Monotonic.markNow() + timeout,
+    encodedQueryParams = "",
+    authHeader = "",
+    accept = null,
+    debugEnabled = false,
+  )
+
+  @Test
+  fun dispatchOrderTest() {
+    val queue = ScrapeRequestQueue()
+    val normal = scrapeRequest(NORMAL, 5.seconds)
+    val lateHigh = scrapeRequest(HIGH, 20.seconds)
+    val earlyHigh = scrapeRequest(HIGH, 10.seconds)
+    listOf(normal, lateHigh, earlyHigh).forEach { queue.offer(it).shouldBeTrue() }
+
+    queue.size shouldBeEqualTo 3
+    queue.poll() shouldBeEqualTo earlyHigh
+    queue.poll() shouldBeEqualTo lateHigh
+    queue.poll() shouldBeEqualTo normal
+    queue.poll().shouldBeNull()
+  }
+
+  @Test
+  fun minimumShareTest() {
+    val queue = ScrapeRequestQueue()
+    val low = scrapeRequest(LOW).also { queue.offer(it) }
+    Thread.sleep(10)
+    repeat(MIN_SHARE_INTERVAL * 2) { queue.offer(scrapeRequest(HIGH)) }
+
+    // The low priority scrape has waited longest, so it gets the first share turn
+    repeat(MIN_SHARE_INTERVAL - 1) { queue.poll()?.priority shouldBeEqualTo HIGH }
+    queue.poll() shouldBeEqualTo low
+    queue.size shouldBeEqualTo MIN_SHARE_INTERVAL + 1
+  }
+
+  @Test
+  fun expiredRequestTest() {
+    val queue = ScrapeRequestQueue()
+    val expired = scrapeRequest(HIGH, -1.seconds)
+    val live = scrapeRequest(LOW)
+    queue.offer(expired)
+    queue.offer(live)
+
+    queue.poll() shouldBeEqualTo live
+    queue.size shouldBeEqualTo 0
+    queue.poll().shouldBeNull()
+  }
+
+  @Test
+  fun closeTest() =
+    runBlocking<Unit> {
+      val queue = ScrapeRequestQueue()
+
+      // A waiting take() is woken by an offer
+      val waiting = async { queue.take() }
+      yield()
+      val first = scrapeRequest(NORMAL)
+      queue.offer(first)
+      waiting.await() shouldBeEqualTo first
+
+      // Scrapes queued before close() can still be taken
+      val second = scrapeRequest(NORMAL)
+      queue.offer(second)
+      queue.close()
+      queue.offer(scrapeRequest(NORMAL)).shouldBeFalse()
+      queue.isClosedForReceive.shouldBeFalse()
+      queue.take() shouldBeEqualTo second
+      queue.isClosedForReceive.shouldBeTrue()
+      queue.take().shouldBeNull()
+
+      // A take() waiting on an empty queue returns once it is closed
+      val emptyQueue = ScrapeRequestQueue()
+      val pending = async { emptyQueue.take() }
+      delay(10)
+      emptyQueue.close()
+      pending.await().shouldBeNull()
+    }
+
+  companion object {
+    private val proxy = Proxy(options = ProxyOptions(TestConstants.CONFIG_ARG), testMode = true)
+    private val agentContext = AgentContext("queue")
+  }
+}
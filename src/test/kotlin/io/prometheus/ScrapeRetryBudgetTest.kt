@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import io.ktor.http.Url
+import io.prometheus.agent.ScrapeRetryBudget
+import io.prometheus.agent.ScrapeRetryBudget.Companion.MAX_TARGETS
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeTrue
+import org.junit.jupiter.api.Test
+
+class ScrapeRetryBudgetTest {
+  private val target1 = Url("http://localhost:8081/metrics")
+  private val target2 = Url("http://localhost:8082/metrics")
+
+  @Test
+  fun targetExhaustionTest() {
+    val exhausted = mutableListOf<String>()
+    val budget = ScrapeRetryBudget(true, 50, 2, 100) { exhausted += it }
+
+    repeat(2) { budget.tryRetry(target1).shouldBeTrue() }
+    budget.tryRetry(target1).shouldBeFalse()
+    exhausted shouldBeEqualTo listOf("target")
+    // Other targets keep their own budget
+    budget.tryRetry(target2).shouldBeTrue()
+
+    // Two successes at 50 percent earn one retry
+    budget.recordSuccess(target1)
+    budget.tryRetry(target1).shouldBeFalse()
+    budget.recordSuccess(target1)
+    budget.tryRetry(target1).shouldBeTrue()
+    budget.tryRetry(target1).shouldBeFalse()
+  }
+
+  @Test
+  fun accrualCapTest() {
+    val budget = ScrapeRetryBudget(true, 50, 2, 100)
+    repeat(2) { budget.tryRetry(target1).shouldBeTrue() }
+
+    // Savings are capped at the bucket size
+    repeat(100) { budget.recordSuccess(target1) }
+    repeat(2) { budget.tryRetry(target1).shouldBeTrue() }
+    budget.tryRetry(target1).shouldBeFalse()
+  }
+
+  @Test
+  fun agentExhaustionTest() {
+    val exhausted = mutableListOf<String>()
+    val budget = ScrapeRetryBudget(true, 50, 10, 3) { exhausted += it }
+
+    repeat(2) { budget.tryRetry(target1).shouldBeTrue() }
+    budget.tryRetry(target2).shouldBeTrue()
+    budget.tryRetry(target2).shouldBeFalse()
+    exhausted shouldBeEqualTo listOf("agent")
+
+    // Successes on any target refill the agent budget
+    repeat(2) { budget.recordSuccess(target1) }
+    budget.tryRetry(target2).shouldBeTrue()
+    budget.tryRetry(target2).shouldBeFalse()
+  }
+
+  @Test
+  fun maxTargetsTest() {
+    val budget = ScrapeRetryBudget(true, 50, 1, MAX_TARGETS + 10)
+    repeat(MAX_TARGETS) { budget.tryRetry(Url("http://localhost:8080/metrics$it")).shouldBeTrue() }
+
+    // Targets past the cap are held to the agent budget alone
+    repeat(2) { budget.tryRetry(target1).shouldBeTrue() }
+    budget.tryRetry(Url("http://localhost:8080/metrics0")).shouldBeFalse()
+  }
+
+  @Test
+  fun disabledTest() {
+    val budget = ScrapeRetryBudget(false, 50, 1, 1)
+    repeat(10) { budget.tryRetry(target1).shouldBeTrue() }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.ktor.server.response.respondText
+import io.ktor.server.routing.get
+import io.ktor.server.routing.routing
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.agent.AgentHttpService
+import io.prometheus.common.Utils.lambda
+import io.prometheus.grpc.ScrapeRequest
+import io.prometheus.proxy.ProxyHttpRoutes.scrapeTimeout
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.atomics.AtomicInt
+import kotlin.concurrent.atomics.incrementAndFetch
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+class ScrapeTimeoutTest {
+  private fun timeout(headerValue: String?) = scrapeTimeout(headerValue, MARGIN, MAX_TIMEOUT)
+
+  @Test
+  fun headerParsingTest() {
+    timeout("10") shouldBeEqualTo 10.seconds - MARGIN
+    timeout("2.5") shouldBeEqualTo 2.5.seconds - MARGIN
+
+    // Missing, malformed and non-positive values fall back to the proxy's timeout
+    timeout(null) shouldBeEqualTo MAX_TIMEOUT
+    timeout("") shouldBeEqualTo MAX_TIMEOUT
+    timeout("10s") shouldBeEqualTo MAX_TIMEOUT
+    timeout("0") shouldBeEqualTo MAX_TIMEOUT
+    timeout("-5") shouldBeEqualTo MAX_TIMEOUT
+  }
+
+  @Test
+  fun timeoutClampingTest() {
+    // Longer timeouts are capped by the proxy's timeout
+    timeout("60") shouldBeEqualTo MAX_TIMEOUT
+
+    // The margin never takes more than half of a short timeout
+    timeout("0.5") shouldBeEqualTo 250.milliseconds
+    timeout("0.25") shouldBeEqualTo 125.milliseconds
+    timeout("0.1") shouldBeEqualTo 50.milliseconds
+    timeout("0.6") shouldBeEqualTo 350.milliseconds
+  }
+
+  @Test
+  fun expiredRequestDroppedTest() =
+    runBlocking<Unit> {
+      val httpService = AgentHttpService(agent)
+      val request =
+        ScrapeRequest
+          .newBuilder()
+          .also {
+            it.agentId = agent.agentId
+            it.scrapeId = 1
+            it.path = PROXY_PATH
+          }
+          .build()
+
+      // A request whose deadline passed while queued is dropped without scraping the target
+      val hits = targetHits.load()
+      httpService.fetchScrapeUrl(request, Monotonic.markNow() - 1.seconds).shouldBeNull()
+      targetHits.load() shouldBeEqualTo hits
+
+      val results = httpService.fetchScrapeUrl(request, Monotonic.markNow() + 5.seconds).shouldNotBeNull()
+      results.statusCode shouldBeEqualTo 200
+      targetHits.load() shouldBeEqualTo hits + 1
+      httpService.close()
+    }
+
+  companion object : CommonCompanion() {
+    private const val TARGET_PORT = 9962
+    private const val TARGET_PATH = "timeout-target"
+    private const val PROXY_PATH = "timeout_path"
+    private val MARGIN = 250.milliseconds
+    private val MAX_TIMEOUT = 30.seconds
+    private val targetHits = AtomicInt(0)
+
+    private val httpServer =
+      embeddedServer(CIO, port = TARGET_PORT) {
+        routing {
+          get("/$TARGET_PATH") {
+            targetHits.incrementAndFetch()
+            call.respondText("timeout_metric 1\n")
+          }
+        }
+      }
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      httpServer.start()
+      setItUp(
+        proxySetup = lambda { startProxy("scrapetimeout") },
+        agentSetup = lambda { startAgent(serverName = "scrapetimeout") },
+      )
+      runBlocking { agent.pathManager.registerPath(PROXY_PATH, "$TARGET_PORT/$TARGET_PATH".withPrefix()) }
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      takeItDown()
+      httpServer.stop(0, 0)
+    }
+  }
+}
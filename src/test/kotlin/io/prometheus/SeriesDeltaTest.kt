@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import io.prometheus.common.SeriesDelta
+import org.amshove.kluent.invoking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeLessThan
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldThrow
+import org.junit.jupiter.api.Test
+
+class SeriesDeltaTest {
+  private val base =
+    """
+    # HELP requests_total Total requests.
+    # TYPE requests_total counter
+    requests_total{method="get",code="200"} 1027
+    requests_total{method="post",code="200"} 3
+    requests_total{method="post",code="500"} 1
+    # HELP up Target health.
+    # TYPE up gauge
+    up 1
+    """.trimIndent().toByteArray()
+
+  @Test
+  fun roundTripTest() {
+    val currents =
+      listOf(
+        base,
+        // Changed values
+        String(base).replace("1027", "1031").replace("up 1", "up 0").toByteArray(),
+        // Removed and added series
+        String(base)
+          .replace("requests_total{method=\"post\",code=\"200\"} 3\n", "")
+          .replace("# HELP up", "requests_total{method=\"put\",code=\"201\"} 9\n# HELP up")
+          .toByteArray(),
+        ByteArray(0),
+      )
+
+    currents.forEach { current ->
+      val delta = SeriesDelta.encode(base, current)!!
+      SeriesDelta.decode(base, delta).toList() shouldBeEqualTo current.toList()
+    }
+
+    SeriesDelta.encode(base, base)!!.size shouldBeLessThan base.size
+  }
+
+  @Test
+  fun invalidInputTest() {
+    SeriesDelta.encode(base, byteArrayOf(0xC3.toByte(), 0x28)).shouldBeNull()
+
+    // A delta applied to a base other than the one it was built from is rejected
+    val delta = SeriesDelta.encode(base, String(base).replace("1027", "1031").toByteArray())!!
+    val otherBase = String(base).replace("up 1", "up 0").toByteArray()
+    invoking { SeriesDelta.decode(otherBase, delta) } shouldThrow IllegalStateException::class
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+
+package io.prometheus
+
+import com.github.pambrose.common.dsl.KtorDsl.blockingGet
+import io.ktor.http.HttpStatusCode
+import io.prometheus.TestConstants.PROXY_PORT
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.client.CollectorRegistry
+import io.prometheus.proxy.AgentContext
+import io.prometheus.proxy.ProxyConstants.AGENT_DISCONNECTED_MSG
+import io.prometheus.proxy.ScrapePriority
+import io.prometheus.proxy.ScrapeRequestWrapper
+import kotlinx.coroutines.runBlocking
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeFalse
+import org.amshove.kluent.shouldBeNull
+import org.amshove.kluent.shouldBeTrue
+import org.amshove.kluent.shouldNotBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.properties.Delegates.notNull
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource.Monotonic
+
+class SessionResumeTest {
+  private fun registeredContext(path: String) =
+    AgentContext("session-test").also {
+      it.registered = true
+      proxy.addAgentContext(it)
+      proxy.agentContextManager.addSession(it)
+      proxy.pathManager.addPath(path, "{}", it)
+    }
+
+  private fun scrapeRequest(agentContext: AgentContext) =
+    ScrapeRequestWrapper(
+      agentContext = agentContext,
+      proxy = proxy,
+      path = "queued_path",
+      template = null,
+      priority = ScrapePriority.NORMAL,
+      deadline = Monotonic.markNow() + 10.seconds,
+      encodedQueryParams = "",
+      authHeader = "",
+      accept = null,
+      debugEnabled = false,
+    )
+
+  @Test
+  fun parkTest() {
+    val context = registeredContext("park_path")
+    proxy.disconnectAgentContext(context.agentId, "Test") shouldBeEqualTo context
+    context.isParked.shouldBeTrue()
+    context.isValid().shouldBeTrue()
+
+    // The path is kept for the session, but its parked context is not sent scrapes
+    proxy.pathManager.getAgentContextInfo("park_path").shouldNotBeNull().routableContexts().isEmpty().shouldBeTrue()
+    blockingGet("$PROXY_PORT/park_path".withPrefix()) { response ->
+      response.status shouldBeEqualTo HttpStatusCode.ServiceUnavailable
+    }
+  }
+
+  @Test
+  fun resumeTest() {
+    val previous = registeredContext("resume_path")
+    proxy.disconnectAgentContext(previous.agentId, "Test")
+
+    val next = AgentContext("session-test").also { proxy.addAgentContext(it) }
+    runBlocking { proxy.resumeAgentSession(previous.sessionToken, next) }.shouldBeTrue()
+    proxy.pathManager.getAgentContextInfo("resume_path").shouldNotBeNull().routableContexts() shouldBeEqualTo
+      listOf(next)
+    previous.isValid().shouldBeFalse()
+
+    // A session is resumed at most once
+    val other = AgentContext("session-test").also { proxy.addAgentContext(it) }
+    runBlocking { proxy.resumeAgentSession(previous.sessionToken, other) }.shouldBeFalse()
+  }
+
+  @Test
+  fun queuedScrapeResumeTest() =
+    runBlocking<Unit> {
+      val previous = registeredContext("queued_path")
+      val dispatched = scrapeRequest(previous).also { previous.writeScrapeRequest(it) }
+      previous.readScrapeRequest() shouldBeEqualTo dispatched
+      val queued = scrapeRequest(previous).also { previous.writeScrapeRequest(it) }
+
+      // Only the scrape the agent had received is failed
+      proxy.disconnectAgentContext(previous.agentId, "Test")
+      dispatched.failureMsg shouldBeEqualTo AGENT_DISCONNECTED_MSG
+      queued.isFailed.shouldBeFalse()
+
+      val next = AgentContext("session-test").also { proxy.addAgentContext(it) }
+      proxy.resumeAgentSession(previous.sessionToken, next).shouldBeTrue()
+      next.readScrapeRequest() shouldBeEqualTo queued
+      queued.agentContext shouldBeEqualTo next
+      queued.isFailed.shouldBeFalse()
+    }
+
+  @Test
+  fun graceExpiryTest() {
+    val context = registeredContext("expiry_path")
+    proxy.disconnectAgentContext(context.agentId, "Test")
+
+    val start = Monotonic.markNow()
+    while (context.isValid() && start.elapsedNow() < 5.seconds)
+      Thread.sleep(100)
+    context.isValid().shouldBeFalse()
+    proxy.pathManager.getAgentContextInfo("expiry_path").shouldBeNull()
+  }
+
+  @Test
+  fun cleanDisconnectTest() {
+    val context = registeredContext("closed_path")
+    proxy.disconnectAgentContext(context.agentId, "Test", resumable = false)
+    context.isParked.shouldBeFalse()
+    context.isValid().shouldBeFalse()
+    proxy.pathManager.getAgentContextInfo("closed_path").shouldBeNull()
+  }
+
+  companion object {
+    private var proxy: Proxy by notNull()
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      CollectorRegistry.defaultRegistry.clear()
+      proxy = startProxy("session", argv = listOf("-Dproxy.internal.sessionResumeGraceSecs=1"))
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      proxy.stopSync()
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2020 Paul Ambrose (pambrose@mac.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@file:Suppress("UndocumentedPublicClass", "UndocumentedPublicFunction")
+
+package io.prometheus
+
+import com.github.pambrose.common.dsl.KtorDsl.blockingGet
+import io.ktor.client.statement.bodyAsText
+import io.ktor.http.HttpStatusCode
+import io.ktor.server.cio.CIO
+import io.ktor.server.engine.embeddedServer
+import io.ktor.server.response.respondText
+import io.ktor.server.routing.get
+import io.ktor.server.routing.routing
+import io.prometheus.TestConstants.PROXY_PORT
+import io.prometheus.TestUtils.startAgent
+import io.prometheus.TestUtils.startProxy
+import io.prometheus.common.Utils.lambda
+import io.prometheus.proxy.ScrapeRequestManager
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import org.amshove.kluent.shouldBeEqualTo
+import org.amshove.kluent.shouldBeNull
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.atomics.AtomicBoolean
+import kotlin.concurrent.atomics.AtomicInt
+import kotlin.concurrent.atomics.incrementAndFetch
+
+class UnchangedContentTest {
+  private val unchangedCount: Double
+    get() = proxy.metrics.unchangedContentCount.get()
+
+  private fun scrape() =
+    blockingGet("$PROXY_PORT/$PROXY_PATH".withPrefix()) { response ->
+      response.status shouldBeEqualTo HttpStatusCode.OK
+      response.bodyAsText() shouldBeEqualTo CONTENT
+    }
+
+  @Test
+  fun cacheAccountingTest() {
+    val manager = ScrapeRequestManager(16)
+    val content = ByteArray(8)
+    manager.cacheContent("agent", "target", 1, content)
+    manager.cachedContentHash("agent", "target") shouldBeEqualTo 1
+    manager.cachedContent("agent", "target", 1) shouldBeEqualTo content
+    manager.cachedContent("agent", "target", 2).shouldBeNull()
+    manager.cachedByteCount shouldBeEqualTo 8
+
+    // A replaced payload frees its bytes
+    manager.cacheContent("agent", "target", 2, ByteArray(12))
+    manager.cachedContent("agent", "target", 1).shouldBeNull()
+    manager.cachedByteCount shouldBeEqualTo 12
+
+    // Payloads that do not fit are not cached
+    manager.cacheContent("other", "target", 3, ByteArray(8))
+    manager.cachedContentHash("other", "target") shouldBeEqualTo 0
+    manager.cachedByteCount shouldBeEqualTo 12
+
+    manager.removeCachedContent("agent")
+    manager.cachedContentHash("agent", "target") shouldBeEqualTo 0
+    manager.cachedByteCount shouldBeEqualTo 0
+  }
+
+  @Test
+  fun cacheRemoveRaceTest() =
+    runBlocking<Unit> {
+      val manager = ScrapeRequestManager(Long.MAX_VALUE)
+      repeat(1_000) { i ->
+        withContext(Dispatchers.Default) {
+          launch { manager.cacheContent("agent", "target-$i", i + 1L, ByteArray(10)) }
+          launch { manager.removeCachedContent("agent") }
+        }
+        // Content cached during a removal is either removed with it or still counted in the cache
+        manager.removeCachedContent("agent")
+        manager.cachedByteCount shouldBeEqualTo 0
+      }
+    }
+
+  @Test
+  fun unchangedContentHitTest() {
+    scrape()
+    val count = unchangedCount
+    val hits = targetHits.load()
+
+    // The target is still fetched, but the agent only sends the hash of its unchanged content
+    scrape()
+    targetHits.load() shouldBeEqualTo hits + 1
+    unchangedCount shouldBeEqualTo count + 1
+  }
+
+  @Test
+  fun unchangedContentRetryTest() {
+    scrape()
+    val count = unchangedCount
+    val hits = targetHits.load()
+
+    // The cached payload is dropped while the agent fetches the unchanged content, so the proxy
+    // cannot serve it and asks again for the full content
+    clearCache.store(true)
+    scrape()
+    targetHits.load() shouldBeEqualTo hits + 2
+    unchangedCount shouldBeEqualTo count
+    proxy.scrapeRequestManager.cachedByteCount shouldBeEqualTo CONTENT.length.toLong()
+  }
+
+  companion object : CommonCompanion() {
+    private const val TARGET_PORT = 9961
+    private const val TARGET_PATH = "unchanged-target"
+    private const val PROXY_PATH = "unchanged_path"
+    private const val CONTENT = "unchanged_metric 1\n"
+    private val targetHits = AtomicInt(0)
+    private val clearCache = AtomicBoolean(false)
+
+    private val httpServer =
+      embeddedServer(CIO, port = TARGET_PORT) {
+        routing {
+          get("/$TARGET_PATH") {
+            targetHits.incrementAndFetch()
+            if (clearCache.exchange(false))
+              proxy.scrapeRequestManager.removeCachedContent(agent.agentId)
+            call.respondText(CONTENT)
+          }
+        }
+      }
+
+    @JvmStatic
+    @BeforeAll
+    fun setUp() {
+      httpServer.start()
+      setItUp(
+        proxySetup = lambda {
+          startProxy(
+            "unchanged",
+            metricsEnabled = true,
+            argv = listOf("-Dproxy.internal.unchangedContentCacheEnabled=true"),
+          )
+        },
+        agentSetup = lambda { startAgent(serverName = "unchanged") },
+      )
+      runBlocking { agent.pathManager.registerPath(PROXY_PATH, "$TARGET_PORT/$TARGET_PATH".withPrefix()) }
+    }
+
+    @JvmStatic
+    @AfterAll
+    fun takeDown() {
+      takeItDown()
+      httpServer.stop(0, 0)
+    }
+  }
+}